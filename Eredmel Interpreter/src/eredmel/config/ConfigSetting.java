@@ -1,5 +1,6 @@
 package eredmel.config;
 
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 /**
@@ -13,14 +14,63 @@ public enum ConfigSetting {
 	 * Represents the number of spaces in a tab to be used by the
 	 * normalizer and denormalizer in representing a file
 	 */
-	TABWIDTH("4", x -> x.matches("\\d+"), "tabwidth", ConfigSettingLevel.FILE),
+	TABWIDTH("4", x -> x.matches("\\d+"), Integer::valueOf, "tabwidth",
+			ConfigSettingLevel.FILE),
 	/**
 	 * Represents the prefix that must preceed every line if it is to be
 	 * interpreted as an Eredmel command; this can be any valid regex that
 	 * works in both enhanced and non-enhanced modes.
 	 */
-	PREFIX("", x -> !x.matches(".+\\s.+"), "prefix",
-			ConfigSettingLevel.SESSION);
+	PREFIX("", x -> !x.matches(".+\\s.+"), x -> x, "prefix",
+			ConfigSettingLevel.SESSION),
+	/**
+	 * The maximum number of rewrites a single {@code replace} rule may make
+	 * before it is stopped, or {@code 0} for no limit
+	 */
+	REPLACE_RULE_STEPS("100000", x -> x.matches("\\d{1,9}"), Integer::valueOf,
+			"replacerulesteps", ConfigSettingLevel.SESSION),
+	/**
+	 * The maximum number of rewrites all the {@code replace} rules in a file
+	 * may make before replacement is stopped, or {@code 0} for no limit
+	 */
+	REPLACE_FILE_STEPS("1000000", x -> x.matches("\\d{1,9}"), Integer::valueOf,
+			"replacefilesteps", ConfigSettingLevel.SESSION),
+	/**
+	 * The maximum length of a file after replacement, as a multiple of its
+	 * length before (or of 64K characters, for smaller files), or {@code 0}
+	 * for no limit
+	 */
+	REPLACE_GROWTH("16", x -> x.matches("\\d{1,9}"), Integer::valueOf,
+			"replacegrowth", ConfigSettingLevel.SESSION),
+	/**
+	 * The maximum number of milliseconds replacement may take in a single
+	 * file, or {@code 0} for no limit
+	 */
+	REPLACE_TIME("60000", x -> x.matches("\\d{1,9}"), Integer::valueOf,
+			"replacetime", ConfigSettingLevel.SESSION),
+	/**
+	 * The number of megabytes the text of a linked or replaced file may take
+	 * on the heap, beyond which it is paged out to a temporary file, or
+	 * {@code 0} for no limit. A source file larger than the budget is read
+	 * and normalized a line at a time straight out to disk, and a rule
+	 * applied to paged text writes its result out as it goes. The files are
+	 * checked again once they are linked, and after each {@code replace}
+	 * statement is applied. The budget is of text: the line numbers,
+	 * indentation and block index of a paged file stay on the heap, and
+	 * included files each within the budget are held there until the file
+	 * including them is linked.
+	 */
+	MEMORY_BUDGET("0", x -> x.matches("\\d{1,6}"), Integer::valueOf,
+			"memorybudget", ConfigSettingLevel.SESSION),
+	/**
+	 * Whether the text of each line is interned in a pool shared by every
+	 * file, so that repeated lines are only held in memory once. The lines of
+	 * a file loaded with its lines interned are kept as they are, rather than
+	 * copied into columns, and the lines read from files stored in columns or
+	 * paged out are interned as they are read.
+	 */
+	INTERN_LINES("false", x -> x.matches("true|false"), Boolean::valueOf,
+			"internlines", ConfigSettingLevel.SESSION);
 	/**
 	 * The default value of this setting.
 	 */
@@ -29,6 +79,11 @@ public enum ConfigSetting {
 	 * Returns whether the given String would work for the given setting.
 	 */
 	Predicate<String> validator;
+	/**
+	 * Converts a valid String into the typed value used by the application.
+	 * This is only ever run once per value, when a configuration is derived.
+	 */
+	Function<String, ?> parser;
 	/**
 	 * The key used by the application to represent this configuration
 	 * setting.
@@ -39,12 +94,24 @@ public enum ConfigSetting {
 	 */
 	public ConfigSettingLevel level;
 	private ConfigSetting(String defaultValue, Predicate<String> validator,
-			String internalKey, ConfigSettingLevel level) {
+			Function<String, ?> parser, String internalKey,
+			ConfigSettingLevel level) {
 		this.defaultValue = defaultValue;
 		this.validator = validator;
+		this.parser = parser;
 		this.internalKey = internalKey;
 		this.level = level;
 	}
+	/**
+	 * Returns whether the given String would work for this setting.
+	 * 
+	 * @param value
+	 *        the value to check
+	 * @return whether the value passes this setting's validation
+	 */
+	public boolean isValid(String value) {
+		return validator.test(value);
+	}
 	/**
 	 * Loads a setting based on an internal configuration setting string.
 	 * 
@@ -1,6 +1,6 @@
 package eredmel.config;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 import eredmel.regex.EnregexType;
 import eredmel.regex.Pattern;
@@ -8,76 +8,147 @@ import eredmel.regex.Pattern;
 /**
  * A class for storing information about configuration settings regarding the
  * processing of Eredmel Files.
- * 
+ *
+ * Configurations are immutable, so they can be shared freely between files
+ * and threads. A modified configuration is derived with
+ * {@link #with(ConfigSetting, String)}. Values are validated and parsed once,
+ * when they are set, and are stored in arrays indexed by
+ * {@link ConfigSetting#ordinal()}.
+ *
  * @author Kavi Gupta
  */
-public class EredmelConfiguration {
-	private HashMap<ConfigSetting, String> config;
+public final class EredmelConfiguration {
+	private static final ConfigSetting[] SETTINGS = ConfigSetting.values();
+	/**
+	 * The configuration where nothing has been set
+	 */
+	private static final EredmelConfiguration DEFAULT = new EredmelConfiguration(
+			new String[SETTINGS.length]);
+	/**
+	 * The values that have been explicitly set, or {@code null} for those
+	 * that have not been
+	 */
+	private final String[] values;
+	/**
+	 * The parsed value of every setting, including defaults
+	 */
+	private final Object[] parsed;
+	/**
+	 * Cached from {@link #parsed}, since it is needed for every line
+	 */
+	private final int tabwidth;
+	/**
+	 * Whether any {@link ConfigSettingLevel#FILE} setting has been set
+	 */
+	private final boolean hasFileSettings;
 	/**
 	 * Gets a default configuration
-	 * 
+	 *
 	 * @return a configuration where all settings are unset, so will revert to
 	 *         their defaults
 	 */
 	public static EredmelConfiguration getDefault() {
-		return new EredmelConfiguration(new HashMap<>());
+		return DEFAULT;
 	}
 	/**
-	 * Creates a configuration settings file with the given backing map
+	 * Creates a configuration with the given backing array, which must not be
+	 * modified afterwards
 	 */
-	private EredmelConfiguration(HashMap<ConfigSetting, String> config) {
-		this.config = config;
+	private EredmelConfiguration(String[] values) {
+		this.values = values;
+		this.parsed = new Object[values.length];
+		boolean hasFileSettings = false;
+		for (ConfigSetting setting : SETTINGS) {
+			String value = values[setting.ordinal()];
+			if (value == null) {
+				value = setting.defaultValue;
+			} else if (setting.level == ConfigSettingLevel.FILE) {
+				hasFileSettings = true;
+			}
+			parsed[setting.ordinal()] = setting.parser.apply(value);
+		}
+		this.tabwidth = (Integer) parsed[ConfigSetting.TABWIDTH.ordinal()];
+		this.hasFileSettings = hasFileSettings;
 	}
 	/**
-	 * Adds a configuration setting to this file
-	 * 
+	 * Derives a configuration with the given setting set.
+	 *
 	 * @param setting
 	 *        the setting to set
 	 * @param value
 	 *        the value to associate it with
-	 * @return whether the value associated with the given setting is a valid
-	 *         match
+	 * @return a configuration equal to this one, except for the given setting
+	 * @throws IllegalArgumentException
+	 *         if the value is not valid for the setting; see
+	 *         {@link ConfigSetting#isValid(String)}
 	 */
-	public boolean set(ConfigSetting setting, String value) {
-		if (!setting.validator.test(value)) return false;
-		config.put(setting, value);
-		return true;
+	public EredmelConfiguration with(ConfigSetting setting, String value) {
+		if (!setting.isValid(value))
+			throw new IllegalArgumentException(String.format(
+					"%s is not a valid value for the setting %s", value,
+					setting));
+		if (value.equals(values[setting.ordinal()])) return this;
+		String[] values = this.values.clone();
+		values[setting.ordinal()] = value;
+		return new EredmelConfiguration(values);
 	}
 	/**
 	 * Return whether a setting has been defined by a call to
-	 * {@link #set(ConfigSetting, String)}
-	 * 
+	 * {@link #with(ConfigSetting, String)}
+	 *
 	 * @param setting
 	 *        the setting to check
 	 * @return whether it has been defined
 	 */
 	public boolean isDefined(ConfigSetting setting) {
-		return config.containsKey(setting);
+		return values[setting.ordinal()] != null;
 	}
 	/**
 	 * Gets the current value of the given setting
-	 * 
+	 *
 	 * @param setting
 	 *        the setting to get the value of
 	 * @return the associated value of the setting, or the default value if
 	 *         none has been set
 	 */
-	private String get(ConfigSetting setting) {
-		return isDefined(setting) ? config.get(setting)
-				: setting.defaultValue;
+	public String get(ConfigSetting setting) {
+		String value = values[setting.ordinal()];
+		return value == null ? setting.defaultValue : value;
 	}
 	/**
 	 * The value of tabwidth that has currently been set, or the default
-	 * 
+	 *
 	 * @return the number of spaces per tab
 	 */
 	public int tabwidth() {
-		return Integer.parseInt(get(ConfigSetting.TABWIDTH));
+		return tabwidth;
+	}
+	/**
+	 * The value of a numeric setting that has currently been set, or the
+	 * default
+	 *
+	 * @param setting
+	 *        a setting whose values are integers
+	 * @return the value of the setting
+	 */
+	public int intValue(ConfigSetting setting) {
+		return (Integer) parsed[setting.ordinal()];
+	}
+	/**
+	 * The value of a boolean setting that has currently been set, or the
+	 * default
+	 *
+	 * @param setting
+	 *        a setting whose values are {@code true} or {@code false}
+	 * @return the value of the setting
+	 */
+	public boolean booleanValue(ConfigSetting setting) {
+		return (Boolean) parsed[setting.ordinal()];
 	}
 	/**
 	 * Constructs a Regex Pattern from the line start anchor, the set line
 	 * prefix, and the given regex.
-	 * 
+	 *
 	 * @param regex
 	 *        the regex to use
 	 * @param flags
@@ -92,32 +163,21 @@ public class EredmelConfiguration {
 	/**
 	 * Unsets all the configuration values except for those that are
 	 * system-level
-	 * 
-	 * @return a clone of this configuration setting with nothing but session
-	 *         information
+	 *
+	 * @return a configuration with nothing but session information; this
+	 *         configuration itself if it has no file-level settings
 	 */
 	public EredmelConfiguration preserveOnlySession() {
-		HashMap<ConfigSetting, String> globals = new HashMap<>();
-		this.config
-				.entrySet()
-				.stream()
-				.filter(x -> x.getKey().level == ConfigSettingLevel.SESSION)
-				.forEach(x -> globals.put(x.getKey(), x.getValue()));
+		if (!hasFileSettings) return this;
+		String[] globals = new String[SETTINGS.length];
+		for (ConfigSetting setting : SETTINGS)
+			if (setting.level == ConfigSettingLevel.SESSION)
+				globals[setting.ordinal()] = values[setting.ordinal()];
 		return new EredmelConfiguration(globals);
 	}
 	@Override
-	public EredmelConfiguration clone() {
-		@SuppressWarnings("unchecked")
-		HashMap<ConfigSetting, String> mapClone = (HashMap<ConfigSetting, String>) this.config
-				.clone();
-		return new EredmelConfiguration(mapClone);
-	}
-	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((config == null) ? 0 : config.hashCode());
-		return result;
+		return Arrays.hashCode(values);
 	}
 	@Override
 	public boolean equals(Object obj) {
@@ -125,13 +185,16 @@ public class EredmelConfiguration {
 		if (obj == null) return false;
 		if (getClass() != obj.getClass()) return false;
 		EredmelConfiguration other = (EredmelConfiguration) obj;
-		if (config == null) {
-			if (other.config != null) return false;
-		} else if (!config.equals(other.config)) return false;
-		return true;
+		return Arrays.equals(values, other.values);
 	}
 	@Override
 	public String toString() {
-		return config.toString();
+		StringBuilder buff = new StringBuilder("{");
+		for (ConfigSetting setting : SETTINGS) {
+			if (!isDefined(setting)) continue;
+			if (buff.length() != 1) buff.append(", ");
+			buff.append(setting).append('=').append(get(setting));
+		}
+		return buff.append('}').toString();
 	}
 }
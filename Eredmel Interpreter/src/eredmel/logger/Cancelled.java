@@ -0,0 +1,23 @@
+package eredmel.logger;
+
+/**
+ * Raised to abort preprocessing when its
+ * {@link eredmel.preprocessor.CancellationToken} is cancelled or its deadline
+ * passes. This halts evaluation until the top level like any other
+ * {@link ControlFlow}, but can be told apart from a fatal error.
+ * 
+ * @author Kavi Gupta
+ */
+public class Cancelled extends ControlFlow {
+	/**
+	 * The message logged when preprocessing was aborted
+	 */
+	public final EredmelMessage message;
+	/**
+	 * @param message
+	 *        the message logged when preprocessing was aborted
+	 */
+	public Cancelled(EredmelMessage message) {
+		this.message = message;
+	}
+}
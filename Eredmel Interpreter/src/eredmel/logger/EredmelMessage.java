@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Optional;
 
 import eredmel.config.ConfigSetting;
+import eredmel.preprocessor.CancellationToken;
 import eredmel.preprocessor.NumberedLine;
 
 /**
@@ -156,7 +157,63 @@ public final class EredmelMessage {
 			ConfigSetting setting, String value, NumberedLine line) {
 		return new EredmelMessage(LoggingLevel.HIGH, String.format(
 				"%s is not a valid value for the setting %s", value,
-				setting), line.path, line.lineNumber, Optional.empty());
+				setting), line.path(), line.lineNumber, Optional.empty());
+	}
+	/**
+	 * A {@code replace} rule reproduced a text it had already produced, so it
+	 * would never have terminated
+	 * 
+	 * @param steps
+	 *        the number of rewrites the rule made
+	 * @param file
+	 *        the file the rule is declared in
+	 * @param line
+	 *        the line the rule is declared at
+	 * @return a high-level warning; the rule is not applied any further
+	 */
+	public static EredmelMessage replaceCycle(int steps, Path file, int line) {
+		return new EredmelMessage(LoggingLevel.HIGH, String.format(
+				"Replacement rule repeated an earlier state after %s steps",
+				steps), file, line, Optional.empty());
+	}
+	/**
+	 * A limit on replacement was exceeded
+	 * 
+	 * @param limit
+	 *        the setting whose limit was exceeded
+	 * @param value
+	 *        the value of the setting
+	 * @param file
+	 *        the file the rule being applied is declared in
+	 * @param line
+	 *        the line the rule being applied is declared at
+	 * @return a high-level warning; the rule, or all replacement if the limit
+	 *         is for the whole file, is not applied any further
+	 */
+	public static EredmelMessage replaceLimitExceeded(ConfigSetting limit,
+			int value, Path file, int line) {
+		return new EredmelMessage(LoggingLevel.HIGH, String.format(
+				"Replacement stopped after exceeding the %s limit of %s",
+				limit.internalKey, value), file, line, Optional.empty());
+	}
+	/**
+	 * Preprocessing was aborted by its {@link CancellationToken}
+	 * 
+	 * @param deadline
+	 *        whether the deadline of the token passed, rather than it being
+	 *        cancelled
+	 * @param file
+	 *        the file being processed
+	 * @param line
+	 *        the line being processed
+	 * @return a high-level warning message
+	 */
+	public static EredmelMessage cancelled(boolean deadline, Path file,
+			int line) {
+		return new EredmelMessage(LoggingLevel.HIGH,
+				deadline ? "Preprocessing stopped at its deadline"
+						: "Preprocessing was cancelled", file, line,
+				Optional.empty());
 	}
 	/**
 	 * The logging level used by this message
@@ -0,0 +1,382 @@
+package eredmel.preprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import eredmel.utils.string.TextHash;
+
+/**
+ * An index of the blocks formed by the indentation of the lines of a
+ * {@link ReadFile}.
+ *
+ * The level of a line is the number of tabs it starts with. A line which is
+ * blank, or which continues the line before it (since a file's lines may be
+ * fragments of lines after replacement), has no level. The block headed by a
+ * line with a level consists of every line after it up to, but not including,
+ * the next line whose level is no greater. A line without a level belongs to
+ * the block of the closest line before it which has one.
+ *
+ * The levels are stored in a persistent treap, ordered by line, where each
+ * node records the least level below it. Queries descend the treap, so they
+ * take time proportional to its depth, which is logarithmic in the number of
+ * lines with high probability. Slicing and concatenation also take
+ * logarithmic time and share all untouched nodes, so the index of a file is
+ * carried along as replacements cut and splice it rather than being rebuilt.
+ *
+ * Each node also records the {@link TextHash} of the text of the lines below
+ * it, and the power of the hash's base for their length, so the hash of the
+ * whole file is known at the root, and is carried along in the same way.
+ *
+ * @author Kavi Gupta
+ */
+public final class BlockIndex {
+	/**
+	 * The level stored for lines without a level, which is greater than any
+	 * real level
+	 */
+	private static final int NONE = Integer.MAX_VALUE;
+	/**
+	 * The index of a file without lines
+	 */
+	static final BlockIndex EMPTY = new BlockIndex(null);
+	private final Node root;
+	private BlockIndex(Node root) {
+		this.root = root;
+	}
+	/**
+	 * Indexes the given lines
+	 *
+	 * @param lines
+	 *        the lines of a file
+	 * @return the index of the lines
+	 */
+	static BlockIndex of(List<? extends CharSequence> lines) {
+		int[] own = new int[lines.size()];
+		boolean[] ends = new boolean[lines.size()];
+		long[] hashes = new long[lines.size()];
+		long[] powers = new long[lines.size()];
+		for (int i = 0; i < own.length; i++) {
+			CharSequence line = lines.get(i);
+			own[i] = ownLevel(line);
+			ends[i] = endsLine(line);
+			hashes[i] = TextHash.of(line);
+			powers[i] = TextHash.power(line.length());
+		}
+		return new BlockIndex(build(own, ends, hashes, powers, 0, own.length,
+				true));
+	}
+	/**
+	 * @return the number of lines indexed
+	 */
+	public int size() {
+		return size(root);
+	}
+	/**
+	 * @return the {@link TextHash} of the text of the lines indexed
+	 */
+	long hash() {
+		return root == null ? TextHash.EMPTY : root.hash;
+	}
+	/**
+	 * @param line
+	 *        the index of a line
+	 * @return the level of the line, or {@code -1} if it has none
+	 */
+	public int level(int line) {
+		int level = get(root, line).level;
+		return level == NONE ? -1 : level;
+	}
+	/**
+	 * Gets the line heading the innermost block the given line is in
+	 *
+	 * @param line
+	 *        the index of a line
+	 * @return the index of the line heading the block, or {@code -1} if the
+	 *         line is not in any block
+	 */
+	public int parent(int line) {
+		return lastBelow(root, line, get(root, line).level);
+	}
+	/**
+	 * Gets the last line of the block headed by the given line
+	 *
+	 * @param line
+	 *        the index of a line
+	 * @return the index of the last line in its block, including any lines
+	 *         without a level at the end of the block, or {@code line} itself
+	 *         if the block is empty or the line has no level
+	 */
+	public int blockEnd(int line) {
+		int level = get(root, line).level;
+		if (level == NONE) return line;
+		int next = firstBelow(root, line + 1, level + 1);
+		return (next < 0 ? size() : next) - 1;
+	}
+	/**
+	 * Gets the lines directly in the block headed by the given line, that is,
+	 * the lines with a level whose {@link #parent(int)} is the given line
+	 *
+	 * @param line
+	 *        the index of a line
+	 * @return the indices of the lines, in order
+	 */
+	public List<Integer> children(int line) {
+		List<Integer> children = new ArrayList<>();
+		int end = blockEnd(line);
+		int child = firstBelow(root, line + 1, NONE);
+		while (child >= 0 && child <= end) {
+			children.add(child);
+			child = firstBelow(root, child + 1, get(root, child).level + 1);
+		}
+		return children;
+	}
+	/**
+	 * Concatenates the lines of another index to the lines of this one
+	 *
+	 * @param other
+	 *        the index of the lines to put after these
+	 * @return the index of the concatenation
+	 */
+	BlockIndex concat(BlockIndex other) {
+		if (root == null) return other;
+		if (other.root == null) return this;
+		Node right = other.root;
+		// the first line of the other index is now preceded by a line
+		Node first = get(right, 0);
+		boolean starts = last(root).ends;
+		if (first.level != (starts ? first.own : NONE))
+			right = update(right, 0, first.with(starts));
+		return new BlockIndex(merge(root, right));
+	}
+	/**
+	 * Gets the index of a range of lines. The first line of the range becomes
+	 * the first line of a file, so it starts a line.
+	 *
+	 * @param start
+	 *        the first line of the range, inclusive
+	 * @param end
+	 *        the last line of the range, exclusive
+	 * @return the index of the range
+	 */
+	BlockIndex slice(int start, int end) {
+		if (start == end) return EMPTY;
+		Node[] split = split(root, end);
+		Node range = split(split[0], start)[1];
+		return new BlockIndex(update(range, 0, get(range, 0).with(true)));
+	}
+	/**
+	 * Replaces the text of a line, which affects its own level and whether the
+	 * line after it starts a line
+	 *
+	 * @param index
+	 *        the index of the line
+	 * @param line
+	 *        the new text of the line
+	 * @return the updated index
+	 */
+	BlockIndex set(int index, CharSequence line) {
+		boolean starts = index == 0 || get(root, index - 1).ends;
+		boolean ends = endsLine(line);
+		Node root = update(this.root, index, new Node(null, null,
+				ownLevel(line), ends, starts, TextHash.of(line), TextHash
+						.power(line.length())));
+		if (index + 1 < size())
+			root = update(root, index + 1, get(root, index + 1).with(ends));
+		return new BlockIndex(root);
+	}
+	/**
+	 * @return the level of the line if it starts a line, or {@link #NONE} if it
+	 *         is blank
+	 */
+	private static int ownLevel(CharSequence line) {
+		int tabs = 0;
+		while (tabs < line.length() && line.charAt(tabs) == '\t')
+			tabs++;
+		for (int i = tabs; i < line.length(); i++)
+			if (!Character.isWhitespace(line.charAt(i))) return tabs;
+		return NONE;
+	}
+	private static boolean endsLine(CharSequence line) {
+		return line.length() != 0 && line.charAt(line.length() - 1) == '\n';
+	}
+	/**
+	 * A node of the treap, holding a line and the lines before and after it
+	 */
+	private static final class Node {
+		final Node left, right;
+		/**
+		 * The level of the line if it starts a line
+		 */
+		final int own;
+		/**
+		 * Whether the line ends with a newline, so the line after it starts a
+		 * line
+		 */
+		final boolean ends;
+		/**
+		 * The level of the line
+		 */
+		final int level;
+		/**
+		 * The hash of the text of the line, and the power of the base for its
+		 * length
+		 */
+		final long lineHash, linePower;
+		final int size, min;
+		/**
+		 * The hash of the text of the lines below this node, and the power of
+		 * the base for their length
+		 */
+		final long hash, power;
+		Node(Node left, Node right, int own, boolean ends, int level,
+				long lineHash, long linePower) {
+			this.left = left;
+			this.right = right;
+			this.own = own;
+			this.ends = ends;
+			this.level = level;
+			this.lineHash = lineHash;
+			this.linePower = linePower;
+			this.size = size(left) + 1 + size(right);
+			this.min = Math.min(level, Math.min(min(left), min(right)));
+			long rightPower = power(right);
+			long hash = TextHash.concatByPower(hash(left), lineHash, linePower);
+			this.hash = TextHash.concatByPower(hash, hash(right), rightPower);
+			this.power = TextHash.multiply(TextHash.multiply(power(left),
+					linePower), rightPower);
+		}
+		Node(Node left, Node right, int own, boolean ends, boolean starts,
+				long lineHash, long linePower) {
+			this(left, right, own, ends, starts ? own : NONE, lineHash,
+					linePower);
+		}
+		Node with(Node left, Node right) {
+			return new Node(left, right, own, ends, level, lineHash, linePower);
+		}
+		/**
+		 * @return this line, with or without a level depending on whether it
+		 *         starts a line
+		 */
+		Node with(boolean starts) {
+			return new Node(null, null, own, ends, starts, lineHash, linePower);
+		}
+	}
+	private static int size(Node node) {
+		return node == null ? 0 : node.size;
+	}
+	private static int min(Node node) {
+		return node == null ? NONE : node.min;
+	}
+	private static long hash(Node node) {
+		return node == null ? TextHash.EMPTY : node.hash;
+	}
+	private static long power(Node node) {
+		return node == null ? 1 : node.power;
+	}
+	/**
+	 * Builds a balanced treap of the given range of lines
+	 *
+	 * @param starts
+	 *        whether the first line in the range starts a line
+	 */
+	private static Node build(int[] own, boolean[] ends, long[] hashes,
+			long[] powers, int start, int end, boolean starts) {
+		if (start == end) return null;
+		int mid = (start + end) >>> 1;
+		boolean midStarts = mid == start ? starts : ends[mid - 1];
+		return new Node(build(own, ends, hashes, powers, start, mid, starts),
+				build(own, ends, hashes, powers, mid + 1, end, ends[mid]),
+				own[mid], ends[mid], midStarts, hashes[mid], powers[mid]);
+	}
+	private static Node get(Node node, int index) {
+		while (true) {
+			int left = size(node.left);
+			if (index == left) return node;
+			if (index < left) {
+				node = node.left;
+			} else {
+				node = node.right;
+				index -= left + 1;
+			}
+		}
+	}
+	private static Node last(Node node) {
+		while (node.right != null)
+			node = node.right;
+		return node;
+	}
+	/**
+	 * Replaces a line
+	 *
+	 * @param line
+	 *        a node holding the new line, whose children are ignored
+	 */
+	private static Node update(Node node, int index, Node line) {
+		int left = size(node.left);
+		if (index < left)
+			return node.with(update(node.left, index, line), node.right);
+		if (index > left)
+			return node.with(node.left, update(node.right, index - left - 1,
+					line));
+		return line.with(node.left, node.right);
+	}
+	/**
+	 * Merges two treaps, picking the root from either in proportion to its
+	 * size, which keeps the treap random without storing priorities
+	 */
+	private static Node merge(Node left, Node right) {
+		if (left == null) return right;
+		if (right == null) return left;
+		int size = left.size + right.size;
+		if (ThreadLocalRandom.current().nextInt(size) < left.size)
+			return left.with(left.left, merge(left.right, right));
+		return right.with(merge(left, right.left), right.right);
+	}
+	/**
+	 * Splits a treap into its first {@code count} lines and the rest
+	 */
+	private static Node[] split(Node node, int count) {
+		if (node == null) return new Node[2];
+		int left = size(node.left);
+		if (count <= left) {
+			Node[] split = split(node.left, count);
+			split[1] = node.with(split[1], node.right);
+			return split;
+		}
+		Node[] split = split(node.right, count - left - 1);
+		split[0] = node.with(node.left, split[0]);
+		return split;
+	}
+	/**
+	 * @return the index of the first line at or after {@code start} whose level
+	 *         is below {@code bound}, or {@code -1} if there is none
+	 */
+	private static int firstBelow(Node node, int start, int bound) {
+		if (node == null || start >= node.size) return -1;
+		if (start <= 0 && node.min >= bound) return -1;
+		int left = size(node.left);
+		if (start < left) {
+			int found = firstBelow(node.left, start, bound);
+			if (found >= 0) return found;
+		}
+		if (start <= left && node.level < bound) return left;
+		int found = firstBelow(node.right, start - left - 1, bound);
+		return found < 0 ? -1 : left + 1 + found;
+	}
+	/**
+	 * @return the index of the last line before {@code end} whose level is
+	 *         below {@code bound}, or {@code -1} if there is none
+	 */
+	private static int lastBelow(Node node, int end, int bound) {
+		if (node == null || end <= 0) return -1;
+		if (end >= node.size && node.min >= bound) return -1;
+		int left = size(node.left);
+		if (end > left + 1) {
+			int found = lastBelow(node.right, end - left - 1, bound);
+			if (found >= 0) return left + 1 + found;
+		}
+		if (end > left && node.level < bound) return left;
+		return lastBelow(node.left, end, bound);
+	}
+}
@@ -0,0 +1,147 @@
+package eredmel.preprocessor;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import eredmel.logger.Cancelled;
+import eredmel.logger.EredmelMessage;
+
+/**
+ * Allows a preprocessing request to be bounded by a deadline, or cancelled
+ * from another thread.
+ *
+ * The preprocessor checks the token at each inclusion, each {@code replace}
+ * statement and rewrite, and every {@link #CHECK_INTERVAL} characters an
+ * enregex matcher reads. Once the token is cancelled or its deadline passes,
+ * the next check logs {@link EredmelMessage#cancelled(boolean, Path, int)}
+ * and throws {@link Cancelled}.
+ *
+ * @author Kavi Gupta
+ */
+public final class CancellationToken {
+	/**
+	 * A token which is never cancelled
+	 */
+	public static final CancellationToken NONE = new CancellationToken(false,
+			Long.MAX_VALUE);
+	/**
+	 * The number of characters a matcher reads between checks
+	 */
+	public static final int CHECK_INTERVAL = 1 << 12;
+	private final boolean cancellable;
+	private final boolean timed;
+	private final long deadline;
+	private final AtomicBoolean cancelled = new AtomicBoolean();
+	/**
+	 * Whether the abort has been logged, since parts of a file processed in
+	 * parallel may each find it
+	 */
+	private final AtomicBoolean reported = new AtomicBoolean();
+	private CancellationToken(boolean cancellable, long deadline) {
+		this.cancellable = cancellable;
+		this.timed = deadline != Long.MAX_VALUE;
+		this.deadline = deadline;
+	}
+	/**
+	 * Creates a token without a deadline, which is only stopped by
+	 * {@link #cancel()}
+	 */
+	public CancellationToken() {
+		this(true, Long.MAX_VALUE);
+	}
+	/**
+	 * Creates a token whose deadline is the given time from now
+	 *
+	 * @param timeout
+	 *        the time preprocessing may take
+	 * @return the token
+	 */
+	public static CancellationToken withTimeout(Duration timeout) {
+		return new CancellationToken(true, System.nanoTime()
+				+ timeout.toNanos());
+	}
+	/**
+	 * Cancels the request, which stops at its next check
+	 */
+	public void cancel() {
+		if (!cancellable)
+			throw new IllegalStateException("This token cannot be cancelled");
+		cancelled.set(true);
+	}
+	/**
+	 * @return whether the request has been cancelled or is past its deadline
+	 */
+	public boolean isCancelled() {
+		return cancelled.get() || timed && System.nanoTime() - deadline > 0;
+	}
+	/**
+	 * Aborts preprocessing if the request has been cancelled or is past its
+	 * deadline
+	 *
+	 * @param file
+	 *        the file being processed
+	 * @param line
+	 *        the line being processed
+	 * @throws Cancelled
+	 *         if preprocessing should stop
+	 */
+	public void check(Path file, int line) {
+		if (!cancellable || !isCancelled()) return;
+		EredmelMessage message = EredmelMessage.cancelled(!cancelled.get(),
+				file, line);
+		if (reported.compareAndSet(false, true)) message.log();
+		throw new Cancelled(message);
+	}
+	/**
+	 * Wraps text to be read by a matcher, so that the token is checked as the
+	 * matcher reads it
+	 *
+	 * @param text
+	 *        the text to read
+	 * @param file
+	 *        the file being processed
+	 * @param line
+	 *        the line being processed
+	 * @return the text, checking the token every {@link #CHECK_INTERVAL}
+	 *         characters read
+	 */
+	public CharSequence watch(CharSequence text, Path file, int line) {
+		if (!cancellable) return text;
+		return new Watched(text, file, line);
+	}
+	/**
+	 * Text that checks the token as it is read
+	 */
+	private final class Watched implements CharSequence {
+		private final CharSequence text;
+		private final Path file;
+		private final int line;
+		private int reads = 0;
+		Watched(CharSequence text, Path file, int line) {
+			this.text = text;
+			this.file = file;
+			this.line = line;
+		}
+		@Override
+		public char charAt(int index) {
+			if (++reads == CHECK_INTERVAL) {
+				reads = 0;
+				check(file, line);
+			}
+			return text.charAt(index);
+		}
+		@Override
+		public int length() {
+			return text.length();
+		}
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return text.subSequence(start, end);
+		}
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+	}
+}
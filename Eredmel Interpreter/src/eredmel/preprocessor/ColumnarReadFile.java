@@ -0,0 +1,133 @@
+package eredmel.preprocessor;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import eredmel.config.EredmelConfiguration;
+import eredmel.utils.string.StringPool;
+
+/**
+ * A file of {@link EredmelLine}s stored as columns of primitives rather than
+ * as one object per line.
+ *
+ * The file id, line number and number of tabs of each line are stored in
+ * parallel arrays, and the text of the whole file in a single character
+ * arena. An {@link EredmelLine} is only created when a line is requested, so a
+ * linked program of millions of lines costs a few bytes per line on top of its
+ * text, rather than several objects per line. Since the arena holds the text
+ * as it is displayed, {@link #charAt(int)}, {@link #getChars} and
+ * {@link #toString()} do not need to look up lines at all.
+ *
+ * Slices and concatenations of a columnar file are ordinary files of line
+ * views. If the lines of the file are interned, see
+ * {@link EredmelPreprocessor#linePool}, the text of each view is interned, so
+ * the files made of them hold each repeated line once.
+ *
+ * @author Kavi Gupta
+ */
+final class ColumnarReadFile extends ReadFile<EredmelLine> {
+	private final Columns columns;
+	private ColumnarReadFile(Columns columns, EredmelConfiguration config) {
+		super(columns, columns.offsets, config);
+		this.columns = columns;
+	}
+	/**
+	 * Stores the given file in columns, if it can be
+	 *
+	 * @param file
+	 *        the file to compact
+	 * @return an equivalent columnar file, or {@code file} itself if it is
+	 *         already columnar, or has a line indented too far to be stored in
+	 *         a column
+	 */
+	static ReadFile<EredmelLine> compact(ReadFile<EredmelLine> file) {
+		if (file instanceof ColumnarReadFile) return file;
+		int size = file.numLines();
+		int[] fileIDs = new int[size], lineNumbers = new int[size];
+		short[] tabs = new short[size];
+		int[] offsets = new int[size + 1];
+		char[] arena = new char[file.length()];
+		for (int i = 0; i < size; i++) {
+			EredmelLine line = file.lineAt(i);
+			if (line.tabs() > Short.MAX_VALUE) return file;
+			fileIDs[i] = line.fileID;
+			lineNumbers[i] = line.lineNumber;
+			tabs[i] = (short) line.tabs();
+			line.getChars(0, line.length(), arena, offsets[i]);
+			offsets[i + 1] = offsets[i] + line.length();
+		}
+		ColumnarReadFile columnar = new ColumnarReadFile(new Columns(fileIDs,
+				lineNumbers, tabs, offsets, arena, EredmelPreprocessor
+						.linePool(file.config())), file.config());
+		columnar.blocks = file.blocks;
+		return columnar;
+	}
+	/**
+	 * Creates a file from its columns, which must not be modified afterwards
+	 *
+	 * @param offsets
+	 *        the offset of each line in the arena, followed by its length
+	 * @param arena
+	 *        the text of the file
+	 * @return the file
+	 */
+	static ColumnarReadFile of(int[] fileIDs, int[] lineNumbers, short[] tabs,
+			int[] offsets, char[] arena, EredmelConfiguration config) {
+		return new ColumnarReadFile(new Columns(fileIDs, lineNumbers, tabs,
+				offsets, arena, EredmelPreprocessor.linePool(config)), config);
+	}
+	@Override
+	public char charAt(int index) {
+		if (index >= length())
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		return columns.arena[index];
+	}
+	@Override
+	public void getChars(int start, int end, char[] dst, int dstBegin) {
+		System.arraycopy(columns.arena, start, dst, dstBegin, end - start);
+	}
+	@Override
+	public String toString() {
+		return new String(columns.arena);
+	}
+	/**
+	 * The columns of a file, which appear as a list of line views
+	 */
+	private static final class Columns extends AbstractList<EredmelLine>
+			implements RandomAccess {
+		final int[] fileIDs, lineNumbers;
+		final short[] tabs;
+		/**
+		 * The offset of each line in {@link #arena}, followed by its length
+		 */
+		final int[] offsets;
+		/**
+		 * The text of every line, including its tabs
+		 */
+		final char[] arena;
+		/**
+		 * The pool the text of each line view is interned in
+		 */
+		final StringPool pool;
+		Columns(int[] fileIDs, int[] lineNumbers, short[] tabs, int[] offsets,
+				char[] arena, StringPool pool) {
+			this.fileIDs = fileIDs;
+			this.lineNumbers = lineNumbers;
+			this.tabs = tabs;
+			this.offsets = offsets;
+			this.arena = arena;
+			this.pool = pool;
+		}
+		@Override
+		public EredmelLine get(int index) {
+			int start = offsets[index] + tabs[index];
+			return new EredmelLine(fileIDs[index], lineNumbers[index],
+					pool.intern(new String(arena, start, offsets[index + 1]
+							- start)), tabs[index]);
+		}
+		@Override
+		public int size() {
+			return fileIDs.length;
+		}
+	}
+}
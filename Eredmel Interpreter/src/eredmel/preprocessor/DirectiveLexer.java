@@ -0,0 +1,224 @@
+package eredmel.preprocessor;
+
+import eredmel.config.ConfigSetting;
+import eredmel.config.EredmelConfiguration;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+import eredmel.utils.string.ChunkCursor;
+
+/**
+ * Recognizes preprocessor directives by hand, rather than by running a regex
+ * on every line.
+ *
+ * A directive is a line starting with the configured
+ * {@link ConfigSetting#PREFIX} followed by a keyword:
+ * <ul>
+ * <li>{@code config: name = value}, see {@link EredmelPreprocessor#CONFIG}</li>
+ * <li>{@code include "path"}</li>
+ * <li>{@code replace[lit] enregex}, the header of a {@code replace} statement,
+ * see {@link EredmelPreprocessor#REPLACE}</li>
+ * </ul>
+ * with any whitespace permissible between tokens. Each line is rejected by
+ * its first character unless it could start a directive, so lexing a file
+ * without directives costs a character comparison per line.
+ *
+ * A prefix is a regex. A prefix without any regex syntax is compared
+ * literally; otherwise there is no fast reject, and it is matched with a regex
+ * on every line.
+ *
+ * @author Kavi Gupta
+ */
+final class DirectiveLexer {
+	/**
+	 * The kinds of line the lexer distinguishes
+	 */
+	enum Directive {
+		CONFIG, INCLUDE, REPLACE, PLAIN;
+	}
+	private static final String REGEX_SYNTAX = "\\[](){}.*+?^$|~";
+	/**
+	 * The prefix, if it is literal
+	 */
+	private final String prefix;
+	/**
+	 * A pattern matching the prefix at the start of a line, if it is not
+	 * literal
+	 */
+	private final Pattern prefixPattern;
+	private DirectiveLexer(String prefix, Pattern prefixPattern) {
+		this.prefix = prefix;
+		this.prefixPattern = prefixPattern;
+	}
+	/**
+	 * @param config
+	 *        the configuration holding the prefix
+	 * @return a lexer for the prefix of the given configuration
+	 */
+	static DirectiveLexer of(EredmelConfiguration config) {
+		String prefix = config.get(ConfigSetting.PREFIX);
+		for (int i = 0; i < prefix.length(); i++)
+			if (REGEX_SYNTAX.indexOf(prefix.charAt(i)) >= 0)
+				return new DirectiveLexer(null, config.patternMatch("", 0));
+		return new DirectiveLexer(prefix, null);
+	}
+	/**
+	 * Classifies each line of a file
+	 *
+	 * @param file
+	 *        the file to classify
+	 * @return the kind of each line
+	 */
+	Directive[] classify(ReadFile<?> file) {
+		CharSequence text = ChunkCursor.of(file);
+		Directive[] directives = new Directive[file.numLines()];
+		for (int i = 0; i < directives.length; i++)
+			directives[i] = classify(text, file.offset(i), file.offset(i + 1));
+		return directives;
+	}
+	/**
+	 * Classifies a line
+	 *
+	 * @param text
+	 *        the text containing the line
+	 * @param start
+	 *        the start of the line
+	 * @param end
+	 *        the end of the line, after its newline if it has one
+	 * @return the kind of the line
+	 */
+	Directive classify(CharSequence text, int start, int end) {
+		int keyword = prefixEnd(text, start, end);
+		if (keyword < 0) return Directive.PLAIN;
+		if (startsWith(text, keyword, end, "config:"))
+			return Directive.CONFIG;
+		if (startsWith(text, keyword, end, "include"))
+			return Directive.INCLUDE;
+		// replace(lit)?.+ has at least one character after "replace"
+		if (startsWith(text, keyword, end, "replace")
+				&& keyword + "replace".length() < end
+				&& text.charAt(keyword + "replace".length()) != '\n')
+			return Directive.REPLACE;
+		return Directive.PLAIN;
+	}
+	/**
+	 * Checks whether any line of the given text could be the header of a
+	 * {@code replace} statement
+	 *
+	 * @param text
+	 *        the text to check
+	 * @return {@code false} if no line is the header of a {@code replace}
+	 *         statement
+	 */
+	boolean mayContainReplace(CharSequence text) {
+		text = ChunkCursor.of(text);
+		int start = 0;
+		while (start < text.length()) {
+			int end = start + 1;
+			while (end < text.length() && text.charAt(end - 1) != '\n')
+				end++;
+			if (classify(text, start, end) == Directive.REPLACE) return true;
+			start = end;
+		}
+		return false;
+	}
+	/**
+	 * Parses an inclusion statement, {@code include "path"}
+	 *
+	 * @param line
+	 *        a line classified as {@link Directive#INCLUDE}
+	 * @return the path to include, or {@code null} if the line is not a
+	 *         well-formed inclusion statement
+	 */
+	String includePath(CharSequence line) {
+		int end = trimEnd(line);
+		int i = skipSpace(line, prefixEnd(line, 0, line.length())
+				+ "include".length(), end);
+		// the path runs to the last quote, which ends the line
+		if (i >= end || line.charAt(i) != '"' || line.charAt(end - 1) != '"'
+				|| end - 1 <= i + 1)
+			return null;
+		return line.subSequence(i + 1, end - 1).toString();
+	}
+	/**
+	 * Parses a configuration statement, {@code config: name = value}
+	 *
+	 * @param line
+	 *        a line classified as {@link Directive#CONFIG}
+	 * @return the name and value set, or {@code null} if the line is not a
+	 *         well-formed configuration statement
+	 */
+	String[] configSetting(CharSequence line) {
+		int end = trimEnd(line);
+		int i = skipSpace(line, prefixEnd(line, 0, line.length())
+				+ "config:".length(), end);
+		int nameStart = i;
+		if (i >= end || !isNameStart(line.charAt(i))) return null;
+		while (i < end && (isNameStart(line.charAt(i))
+				|| line.charAt(i) >= '0' && line.charAt(i) <= '9'))
+			i++;
+		int nameEnd = i;
+		i = skipSpace(line, i, end);
+		if (i >= end || line.charAt(i) != '=') return null;
+		i = skipSpace(line, i + 1, end);
+		int valueStart = i;
+		while (i < end && !isSpace(line.charAt(i)))
+			i++;
+		if (i == valueStart || i != end) return null;
+		return new String[] { line.subSequence(nameStart, nameEnd).toString(),
+				line.subSequence(valueStart, end).toString() };
+	}
+	/**
+	 * Finds the end of the prefix at the start of a line
+	 *
+	 * @return the index after the prefix, or {@code -1} if the line does not
+	 *         start with the prefix
+	 */
+	private int prefixEnd(CharSequence text, int start, int end) {
+		if (prefix != null) {
+			// the fast reject, on the first character of the prefix or of any
+			// keyword
+			if (start == end) return -1;
+			char first = text.charAt(start);
+			if (prefix.isEmpty() ? first != 'c' && first != 'i'
+					&& first != 'r' : first != prefix.charAt(0))
+				return -1;
+			return startsWith(text, start, end, prefix) ? start
+					+ prefix.length() : -1;
+		}
+		Matcher matcher = prefixPattern.matcher(text.subSequence(start, end)
+				.toString());
+		if (!matcher.find() || matcher.start() != 0) return -1;
+		return start + matcher.end();
+	}
+	private static boolean startsWith(CharSequence text, int start, int end,
+			String word) {
+		if (end - start < word.length()) return false;
+		for (int i = 0; i < word.length(); i++)
+			if (text.charAt(start + i) != word.charAt(i)) return false;
+		return true;
+	}
+	/**
+	 * @return the end of the line, excluding trailing whitespace
+	 */
+	private static int trimEnd(CharSequence line) {
+		int end = line.length();
+		while (end > 0 && isSpace(line.charAt(end - 1)))
+			end--;
+		return end;
+	}
+	private static int skipSpace(CharSequence line, int i, int end) {
+		while (i < end && isSpace(line.charAt(i)))
+			i++;
+		return i;
+	}
+	/**
+	 * @return whether the character is matched by the regex {@code \s}
+	 */
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+				|| c == '\f' || c == '\r';
+	}
+	private static boolean isNameStart(char c) {
+		return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_';
+	}
+}
@@ -0,0 +1,480 @@
+package eredmel.preprocessor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import eredmel.config.ConfigSetting;
+import eredmel.config.EredmelConfiguration;
+import eredmel.preprocessor.DirectiveLexer.Directive;
+import eredmel.utils.math.MathUtils;
+import eredmel.utils.string.StringPool;
+
+/**
+ * A file open in an editor, which is kept loaded, linked and replaced as it is
+ * edited, doing work in proportion to the size of each edit rather than the
+ * size of the file.
+ *
+ * An edit replaces a range of the text of the file with new text. Only the
+ * lines it touches are normalized, and the linked file is spliced from ranges
+ * of the previous one and the new lines, see {@link SplicedReadFile}. When
+ * the parts of the linked file become too many, it is compacted.
+ *
+ * The {@code replace} statements are applied to the text after the last of
+ * them in chunks of lines which no match can cross, the same way
+ * {@link EredmelPreprocessor#applyReplaces(ReadFile)} applies rules to parts
+ * of a file in parallel, and an edit reapplies the rules to the chunks it
+ * touches. When the chunked result of the whole file differs from that of
+ * {@link EredmelPreprocessor#applyReplaces(ReadFile)}, no chunking is done
+ * until the file is reprocessed.
+ *
+ * The file is reprocessed as a whole, as if it were loaded again from the
+ * edited text, when an edit:
+ * <ul>
+ * <li>touches the configuration statements at the start of the file, or the
+ * first line after them</li>
+ * <li>changes the tabwidth inferred from the indentation of the file</li>
+ * <li>touches an inclusion statement</li>
+ * </ul>
+ * and its {@code replace} statements are reapplied to the whole file when an
+ * edit touches a {@code replace} statement or the text before the last one,
+ * or a rewrite reaches a limit of the {@link ReplaceBudget} or might allow a
+ * match to cross the chunks. The limits are applied to the chunks reapplied,
+ * rather than the whole file, until it is reprocessed.
+ *
+ * Included files are loaded once, when the session is opened; later changes
+ * to them are not seen. The lines after an edit are renumbered by reference,
+ * see {@link SplicedReadFile#renumber}, rather than copied.
+ *
+ * @author Kavi Gupta
+ */
+public final class EditSession {
+	/**
+	 * The number of lines in a chunk the rules are applied to, where the
+	 * chunks can be split
+	 */
+	private static final int CHUNK_LINES = 256;
+	/**
+	 * The number of parts the linked file may be spliced from before it is
+	 * compacted
+	 */
+	private static final int MAX_PARTS = 64;
+	private final Path path;
+	private final int fileID;
+	private final List<Path> linkedLibs;
+	private final EredmelConfiguration baseConfig;
+	/**
+	 * The included files loaded, by {@link FileRegistry} id
+	 */
+	private final Map<Integer, ReadFile<EredmelLine>> loadedFiles = new HashMap<>();
+	/**
+	 * The text of the lines of the file, without newlines
+	 */
+	private final List<String> source;
+	/**
+	 * The number of lines at the start of the source consumed as
+	 * configuration statements, which are not in the normalized file
+	 */
+	private int header;
+	/**
+	 * The configuration of the normalized file
+	 */
+	private EredmelConfiguration config;
+	/**
+	 * Whether the tabwidth was inferred, rather than declared
+	 */
+	private boolean inferred;
+	/**
+	 * The number of lines in the normalized file starting with each number of
+	 * spaces, other than none
+	 */
+	private final Map<Integer, Integer> spaceCounts = new HashMap<>();
+	/**
+	 * The files included by each inclusion statement, by line in the
+	 * normalized file
+	 */
+	private SortedMap<Integer, ReadFile<EredmelLine>> inclusions;
+	private ReadFile<EredmelLine> linked;
+	private ReadFile<EredmelLine> replaced;
+	/**
+	 * The rules applied to the linked file, in order
+	 */
+	private List<ReplaceRule> rules;
+	/**
+	 * Whether there is a rule which is block-local, so chunks cannot be split
+	 * before a line starting with a tab
+	 */
+	private boolean blockRule;
+	/**
+	 * The line of the linked file after the last {@code replace} statement
+	 */
+	private int bodyStart;
+	/**
+	 * The chunks the text after the last {@code replace} statement is split
+	 * into, or {@code null} if the rules must be applied to the whole file
+	 */
+	private List<Chunk> chunks;
+	private boolean incremental;
+	/**
+	 * A chunk of lines of the linked file, and the result of applying the
+	 * rules to it
+	 */
+	private static final class Chunk {
+		final int lines;
+		final ReadFile<EredmelLine> replaced;
+		Chunk(int lines, ReadFile<EredmelLine> replaced) {
+			this.lines = lines;
+			this.replaced = replaced;
+		}
+	}
+	private EditSession(Path path, List<Path> linkedLibs,
+			EredmelConfiguration config, List<String> source) {
+		this.path = path;
+		this.fileID = FileRegistry.idOf(path);
+		this.linkedLibs = linkedLibs;
+		this.baseConfig = config;
+		this.source = source;
+	}
+	/**
+	 * Opens a file, loading it as
+	 * {@link EredmelPreprocessor#loadFile(Path, List, EredmelConfiguration)}
+	 * does and applying its {@code replace} statements
+	 *
+	 * @param path
+	 *        the file to open
+	 * @param linkedLibs
+	 *        the paths where inclusions can be found
+	 * @param config
+	 *        the configuration to load the file with
+	 * @return the session editing the file
+	 * @throws IOException
+	 *         if the file cannot be read
+	 */
+	public static EditSession open(Path path, List<Path> linkedLibs,
+			EredmelConfiguration config) throws IOException {
+		EditSession session = new EditSession(path, linkedLibs, config,
+				new ArrayList<>(Files.readAllLines(path)));
+		session.reload();
+		return session;
+	}
+	/**
+	 * @return the file with its inclusions linked, as
+	 *         {@link EredmelPreprocessor#loadFile(Path, List, EredmelConfiguration)}
+	 *         would load the edited text. If it was paged out to disk, it may
+	 *         not be read after the next edit.
+	 */
+	public ReadFile<EredmelLine> linked() {
+		return linked;
+	}
+	/**
+	 * @return the linked file with its {@code replace} statements applied, as
+	 *         {@link EredmelPreprocessor#applyReplaces(ReadFile)} would apply
+	 *         them. If it was paged out to disk, it may not be read after the
+	 *         next edit.
+	 */
+	public ReadFile<EredmelLine> replaced() {
+		return replaced;
+	}
+	/**
+	 * @return whether the last edit was applied to the lines and chunks it
+	 *         touched, rather than by reprocessing the whole file
+	 */
+	public boolean incremental() {
+		return incremental;
+	}
+	/**
+	 * Replaces a range of the text of the file. Positions are given by line
+	 * and column in the text of the file as it was read, or last edited, with
+	 * lines numbered from {@code 0}, and columns not counting the newline.
+	 *
+	 * @param line
+	 *        the line of the start of the range
+	 * @param column
+	 *        the column of the start of the range
+	 * @param endLine
+	 *        the line of the end of the range
+	 * @param endColumn
+	 *        the column of the end of the range, exclusive
+	 * @param text
+	 *        the text to put in place of the range, which may contain
+	 *        newlines
+	 * @throws IndexOutOfBoundsException
+	 *         if the range is not in the file
+	 */
+	public void edit(int line, int column, int endLine, int endColumn,
+			String text) {
+		if (source.isEmpty() && line == 0 && column == 0 && endLine == 0
+				&& endColumn == 0) {
+			if (!text.isEmpty())
+				source.addAll(Arrays.asList(text.split("\r\n|\r|\n", -1)));
+			reload();
+			return;
+		}
+		if (line < 0 || endLine >= source.size() || line > endLine
+				|| column < 0 || column > source.get(line).length()
+				|| endColumn > source.get(endLine).length()
+				|| line == endLine && column > endColumn)
+			throw new IndexOutOfBoundsException(String.format(
+					"[%s:%s, %s:%s) is not in the file", line, column,
+					endLine, endColumn));
+		String edited = source.get(line).substring(0, column) + text
+				+ source.get(endLine).substring(endColumn);
+		List<String> added = Arrays.asList(edited.split("\r\n|\r|\n", -1));
+		List<String> removed = new ArrayList<>(source.subList(line,
+				endLine + 1));
+		source.subList(line, endLine + 1).clear();
+		source.addAll(line, added);
+		if (line <= header || !update(line - header, removed, added)) reload();
+	}
+	/**
+	 * Processes the whole file again, from its source
+	 */
+	private void reload() {
+		ReadFile<EredmelLine> previous = linked;
+		List<NumberedLine> numbered = new ArrayList<>(source.size());
+		for (int i = 0; i < source.size(); i++)
+			numbered.add(new NumberedLine(fileID, i, source.get(i) + '\n'));
+		// the configuration statements are consumed here, so that normalizing
+		// consumes none, and the lines consumed are known
+		ReadFile<NumberedLine> configured = EredmelPreprocessor
+				.processConfig(new ReadFile<>(numbered, baseConfig));
+		inferred = !configured.config().isDefined(ConfigSetting.TABWIDTH);
+		header = source.size() - configured.numLines();
+		ReadFile<EredmelLine> normalized = EredmelPreprocessor
+				.normalize(configured);
+		config = normalized.config();
+		spaceCounts.clear();
+		for (NumberedLine line : numbered.subList(header, numbered.size()))
+			count(line.countWhitespace().spaces, 1);
+		inclusions = EredmelPreprocessor.resolveInclusions(normalized, path,
+				linkedLibs, loadedFiles, Arrays.asList(fileID), baseConfig,
+				CancellationToken.NONE);
+		linked = PagedReadFile.withinBudget(EredmelPreprocessor.splice(
+				normalized, inclusions));
+		linked.blocks();
+		replaceAll();
+		release(previous);
+		incremental = false;
+	}
+	/**
+	 * Updates the linked and replaced files for lines of the normalized file
+	 * having been replaced
+	 *
+	 * @param start
+	 *        the first line replaced, in the normalized file
+	 * @param removed
+	 *        the source of the lines replaced
+	 * @param added
+	 *        the source of the lines they were replaced by
+	 * @return whether the update was made, or the file needs to be
+	 *         reprocessed
+	 */
+	private boolean update(int start, List<String> removed, List<String> added) {
+		int end = start + removed.size();
+		if (!inclusions.subMap(start, end).isEmpty()) return false;
+		StringPool pool = EredmelPreprocessor.linePool(config);
+		List<MeasuredLine> measured = new ArrayList<>(added.size());
+		for (int i = 0; i < added.size(); i++)
+			measured.add(new NumberedLine(fileID, header + start + i, added
+					.get(i) + '\n').countWhitespace(pool));
+		if (inferred) {
+			for (String line : removed)
+				count(new NumberedLine(fileID, 0, line).countWhitespace().spaces,
+						-1);
+			for (MeasuredLine line : measured)
+				count(line.spaces, 1);
+			int gcf = 0;
+			for (int spaces : spaceCounts.keySet())
+				gcf = MathUtils.gcf(gcf, spaces);
+			if ((gcf == 0 ? 4 : gcf) != config.tabwidth()) return false;
+		}
+		List<EredmelLine> normalized = new ArrayList<>(measured.size());
+		for (MeasuredLine line : measured)
+			normalized.add(line.applyTabwidth(config.tabwidth(), pool));
+		ReadFile<EredmelLine> lines = new ReadFile<>(normalized, config);
+		lines.blocks();
+		DirectiveLexer lexer = DirectiveLexer.of(config);
+		for (Directive directive : lexer.classify(lines))
+			if (directive == Directive.INCLUDE) return false;
+		// the lines replaced are whole lines, between the included files
+		int linkedStart = start;
+		for (Map.Entry<Integer, ReadFile<EredmelLine>> inclusion : inclusions
+				.headMap(start).entrySet())
+			linkedStart += inclusion.getValue().numLines() - 1;
+		SortedMap<Integer, ReadFile<EredmelLine>> shifted = new TreeMap<>(
+				inclusions.headMap(start));
+		for (Map.Entry<Integer, ReadFile<EredmelLine>> inclusion : inclusions
+				.tailMap(end).entrySet())
+			shifted.put(inclusion.getKey() + added.size() - removed.size(),
+					inclusion.getValue());
+		inclusions = shifted;
+		List<ReadFile<EredmelLine>> parts = new ArrayList<>();
+		SplicedReadFile.addRange(linked, 0, linkedStart, parts);
+		parts.add(lines);
+		SplicedReadFile.addRange(linked, linkedStart + removed.size(),
+				linked.numLines(), fileID, added.size() - removed.size(),
+				parts);
+		linked = SplicedReadFile.of(parts, config);
+		if (parts.size() > MAX_PARTS) linked = PagedReadFile.store(linked);
+		incremental = replace(linkedStart, removed.size(), lines);
+		if (!incremental) replaceAll();
+		return true;
+	}
+	/**
+	 * Deletes the text of a file the session no longer holds, if it was paged
+	 * out to disk
+	 */
+	private void release(ReadFile<EredmelLine> file) {
+		if (file != linked && file != replaced) PagedReadFile.closeQuietly(file);
+	}
+	private void count(int spaces, int delta) {
+		if (spaces == 0) return;
+		int count = spaceCounts.getOrDefault(spaces, 0) + delta;
+		if (count == 0) spaceCounts.remove(spaces);
+		else spaceCounts.put(spaces, count);
+	}
+	/**
+	 * Applies the rules to the whole linked file, and splits the text after
+	 * the last {@code replace} statement into chunks if the rules can be
+	 * applied to them separately
+	 */
+	private void replaceAll() {
+		chunks = null;
+		rules = new ArrayList<>();
+		ReadFile<EredmelLine> previous = replaced;
+		replaced = EredmelPreprocessor.applyReplaces(linked,
+				CancellationToken.NONE, rules);
+		release(previous);
+		replaced.blocks();
+		blockRule = false;
+		for (ReplaceRule rule : rules) {
+			if (rule.locality == ReplaceRule.Locality.FILE) return;
+			blockRule |= rule.locality == ReplaceRule.Locality.BLOCK;
+		}
+		Directive[] directives = DirectiveLexer.of(config).classify(linked);
+		bodyStart = 0;
+		for (int i = 0; i < directives.length; i++)
+			if (directives[i] == Directive.REPLACE) bodyStart = i + 2;
+		if (bodyStart > linked.numLines()) return;
+		List<Chunk> chunks = replaceChunks(bodyStart, linked.numLines(), true);
+		if (chunks == null) return;
+		List<ReadFile<EredmelLine>> parts = new ArrayList<>();
+		for (Chunk chunk : chunks)
+			parts.add(chunk.replaced);
+		if (SplicedReadFile.of(parts, config).contentEquals(replaced))
+			this.chunks = chunks;
+	}
+	/**
+	 * Applies the rules again to the chunks touched by lines of the linked
+	 * file having been replaced
+	 *
+	 * @param start
+	 *        the first line replaced
+	 * @param removed
+	 *        the number of lines replaced
+	 * @param added
+	 *        the lines they were replaced by
+	 * @return whether the rules were applied, or must be applied to the whole
+	 *         file
+	 */
+	private boolean replace(int start, int removed, ReadFile<EredmelLine> added) {
+		if (chunks == null || start < bodyStart) return false;
+		if (DirectiveLexer.of(config).mayContainReplace(added)) return false;
+		// the chunks from first, inclusive, to last, exclusive, are touched
+		int first = 0, regionStart = bodyStart;
+		while (first < chunks.size()
+				&& regionStart + chunks.get(first).lines < start)
+			regionStart += chunks.get(first++).lines;
+		int last = first, regionEnd = regionStart;
+		while (last < chunks.size() && regionEnd < start + removed)
+			regionEnd += chunks.get(last++).lines;
+		regionEnd += added.numLines() - removed;
+		// a block continuing at the start of the region belongs to the chunk
+		// before it
+		while (blockRule && regionStart < regionEnd
+				&& linked.lineAt(regionStart).charAt(0) == '\t') {
+			if (first == 0) return false;
+			regionStart -= chunks.get(--first).lines;
+		}
+		List<Chunk> replacedChunks = replaceChunks(regionStart, regionEnd,
+				last == chunks.size());
+		if (replacedChunks == null) return false;
+		// the lines of the file after the edit have moved
+		for (int i = last; i < chunks.size(); i++)
+			chunks.set(i, new Chunk(chunks.get(i).lines, SplicedReadFile
+					.renumber(chunks.get(i).replaced, fileID, added.numLines()
+							- removed)));
+		chunks.subList(first, last).clear();
+		chunks.addAll(first, replacedChunks);
+		List<ReadFile<EredmelLine>> parts = new ArrayList<>(chunks.size());
+		for (Chunk chunk : chunks)
+			parts.add(chunk.replaced);
+		ReadFile<EredmelLine> previous = replaced;
+		replaced = SplicedReadFile.of(parts, config);
+		release(previous);
+		return true;
+	}
+	/**
+	 * Splits a range of lines of the linked file into chunks, and applies the
+	 * rules to each chunk
+	 *
+	 * @param start
+	 *        the first line, inclusive
+	 * @param end
+	 *        the last line, exclusive
+	 * @param last
+	 *        whether the range is at the end of the file
+	 * @return the chunks, or {@code null} if the result could differ from
+	 *         that of applying the rules to the whole file
+	 */
+	private List<Chunk> replaceChunks(int start, int end, boolean last) {
+		List<Integer> sizes = new ArrayList<>();
+		List<ReadFile<EredmelLine>> texts = new ArrayList<>();
+		int chunkStart = start;
+		for (int i = start + 1; i <= end; i++) {
+			if (i < end
+					&& (i - chunkStart < CHUNK_LINES || blockRule
+							&& linked.lineAt(i).charAt(0) == '\t')) continue;
+			sizes.add(i - chunkStart);
+			texts.add(linked.lineRange(chunkStart, i));
+			chunkStart = i;
+		}
+		ReplaceBudget budget = new ReplaceBudget(config, linked.offset(end)
+				- linked.offset(start));
+		for (ReplaceRule rule : rules) {
+			int length = 0;
+			for (ReadFile<EredmelLine> text : texts)
+				length += text.length();
+			budget.startRule(rule, length);
+			for (int i = 0; i < texts.size(); i++) {
+				ReadFile<EredmelLine> text = EredmelPreprocessor.applyRule(
+						rule, texts.get(i), budget, last
+								&& i == texts.size() - 1,
+						CancellationToken.NONE);
+				// each chunk must still end a line, and not start inside a
+				// block
+				if (text.length() == 0
+						|| text.charAt(text.length() - 1) != '\n'
+						|| blockRule && text.charAt(0) == '\t') return null;
+				texts.set(i, text);
+			}
+			if (budget.limited()) return null;
+		}
+		DirectiveLexer lexer = DirectiveLexer.of(config);
+		List<Chunk> chunks = new ArrayList<>(texts.size());
+		for (int i = 0; i < texts.size(); i++) {
+			// a rewrite making a replace statement would make another rule
+			if (lexer.mayContainReplace(texts.get(i))) return null;
+			texts.get(i).blocks();
+			chunks.add(new Chunk(sizes.get(i), texts.get(i)));
+		}
+		return chunks;
+	}
+}
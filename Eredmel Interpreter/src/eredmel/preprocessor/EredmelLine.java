@@ -1,6 +1,6 @@
 package eredmel.preprocessor;
 
-import java.nio.file.Path;
+import java.util.Arrays;
 
 import eredmel.utils.string.StringUtils;
 
@@ -20,11 +20,34 @@ public class EredmelLine extends Line<EredmelLine> {
 	 * The number of tabs before this line
 	 */
 	private final int tabs;
-	EredmelLine(Path path, int lineNumber, String restOfLine, int tabs) {
-		super(path, lineNumber);
+	EredmelLine(int fileID, int lineNumber, String restOfLine, int tabs) {
+		super(fileID, lineNumber);
 		this.line = restOfLine;
 		this.tabs = tabs;
 	}
+	/**
+	 * @return the number of tabs before this line
+	 */
+	int tabs() {
+		return tabs;
+	}
+	/**
+	 * @return the line, excluding the preceeding tabs
+	 */
+	String restOfLine() {
+		return line;
+	}
+	@Override
+	public void getChars(int start, int end, char[] dst, int dstBegin) {
+		int tabEnd = Math.min(end, tabs);
+		if (start < tabEnd) {
+			Arrays.fill(dst, dstBegin, dstBegin + tabEnd - start, '\t');
+			dstBegin += tabEnd - start;
+			start = tabEnd;
+		}
+		if (start < end)
+			line.getChars(start - tabs, end - tabs, dst, dstBegin);
+	}
 	/**
 	 * Returns this line, displayed with tabs in front
 	 */
@@ -56,11 +79,11 @@ public class EredmelLine extends Line<EredmelLine> {
 	public EredmelLine subSequence(int start, int end) {
 		if (start < tabs) {
 			if (end < tabs)
-				return new EredmelLine(path, lineNumber, "", end - start);
-			return new EredmelLine(path, lineNumber, line.substring(0, end
+				return new EredmelLine(fileID, lineNumber, "", end - start);
+			return new EredmelLine(fileID, lineNumber, line.substring(0, end
 					- tabs), tabs - start);
 		}
-		return new EredmelLine(path, lineNumber, line.substring(start - tabs,
+		return new EredmelLine(fileID, lineNumber, line.substring(start - tabs,
 				end - tabs), 0);
 	}
 	@Override
@@ -1,20 +1,24 @@
 package eredmel.preprocessor;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import eredmel.config.ConfigSetting;
 import eredmel.config.EredmelConfiguration;
 import eredmel.logger.EredmelMessage;
-import eredmel.regex.EnregexType;
+import eredmel.preprocessor.DirectiveLexer.Directive;
 import eredmel.regex.Matcher;
 import eredmel.regex.Pattern;
 import eredmel.utils.io.IOUtils;
 import eredmel.utils.math.MathUtils;
+import eredmel.utils.string.ChunkCursor;
+import eredmel.utils.string.StringPool;
 
 /**
  * This utility class contains methods that allow for the normalization and
@@ -30,12 +34,6 @@ public final class EredmelPreprocessor {
 	 * permissible between tokens
 	 */
 	public static final String CONFIG = "config:\\s*(?<name>[A-Za-z_][A-Za-z0-9_]*)\\s*=\\s*(?<value>\\S+)\\s*$";
-	/**
-	 * Matches an inclusion statement, which has the form
-	 * {@code include "pathToInclude"}, with any number of spaces permissible
-	 * between segments
-	 */
-	private static final String INCLUDE = "include\\s*\"(?<path>.+)\"\\s*$";
 	/**
 	 * Matches the a replacement statement, which has the form
 	 * {@code replace[lit] <enregex>\n\t<replacement>}, with any number of
@@ -48,7 +46,19 @@ public final class EredmelPreprocessor {
 	 * {@code \t} will represent a new line and an indentation level rather
 	 * than {@code n} and {@code t} as they would have otherwise.
 	 */
-	private static final String REPLACE = "replace(?<lit>lit)?(?<enregex>.+)\n\t(?<repl>.+)\n";
+	static final String REPLACE = "replace(?<lit>lit)?(?<enregex>.+)\n\t(?<repl>.+)\n";
+	/**
+	 * The smallest part of a file a line- or block-local rule is applied to
+	 * on its own
+	 */
+	private static final int PARTITION_SIZE = 1 << 14;
+	/**
+	 * The pool the text of lines is interned in, if
+	 * {@link ConfigSetting#INTERN_LINES} is set. It is shared by every file,
+	 * so a line repeated across files, or by an included library, is held
+	 * once; its statistics give the share of lines that were repeats.
+	 */
+	public static final StringPool LINE_POOL = new StringPool();
 	/**
 	 * Reads a file into memory, and assign numbers to lines. Each line will be
 	 * terminated with a new line ({@code \n}) regardless of it's original
@@ -64,10 +74,20 @@ public final class EredmelPreprocessor {
 	 */
 	public static ReadFile<NumberedLine> readFile(Path path,
 			EredmelConfiguration config) throws IOException {
-		List<String> lines = Files.readAllLines(path);
-		List<NumberedLine> numbered = new ArrayList<>(lines.size());
-		for (int i = 0; i < lines.size(); i++) {
-			numbered.add(new NumberedLine(path, i, lines.get(i) + '\n'));
+		PreprocessorEvents.FileRead event = new PreprocessorEvents.FileRead();
+		event.begin();
+		List<NumberedLine> numbered = new ArrayList<>();
+		int fileID = FileRegistry.idOf(path);
+		try (BufferedReader reader = Files.newBufferedReader(path)) {
+			for (String line; (line = reader.readLine()) != null;)
+				numbered.add(new NumberedLine(fileID, numbered.size(), line
+						+ '\n'));
+		}
+		if (event.shouldCommit()) {
+			event.path = path.toString();
+			event.bytes = Files.size(path);
+			event.lines = numbered.size();
+			event.commit();
 		}
 		return new ReadFile<>(numbered, config);
 	}
@@ -97,35 +117,131 @@ public final class EredmelPreprocessor {
 	 */
 	public static ReadFile<EredmelLine> normalize(
 			ReadFile<NumberedLine> toNormalize) {
+		PreprocessorEvents.Normalize event = new PreprocessorEvents.Normalize();
+		event.begin();
 		ReadFile<MeasuredLine> countedStart = countWhitespace(processConfig(toNormalize));
-		int tabwidth;
 		EredmelConfiguration config = countedStart.config();
-		if (!config.isDefined(ConfigSetting.TABWIDTH)) {
-			int gcf = 0;
+		int gcf = 0;
+		if (!config.isDefined(ConfigSetting.TABWIDTH))
 			for (MeasuredLine line : countedStart.lines)
 				gcf = MathUtils.gcf(gcf, line.spaces);
-			if (gcf == 0) {
-				// no spaces. Set to 4 to prevent divide by 0 errors and
-				// allow for standard conversion to spaces
-				tabwidth = 4;
-			} else {
-				// take a guess
-				tabwidth = gcf;
-				EredmelMessage.guessAtTabwidth(tabwidth,
-						toNormalize.lineAt(0).path).log();
-			}
-			boolean validated = config.set(ConfigSetting.TABWIDTH,
-					Integer.toString(tabwidth));
-			assert validated : "Either the definition of TABWIDTH was changed,"
-					+ " or the code to produce it was, and they are now"
-					+ " unsychronized. Please file a bug report";
-		}
+		config = withTabwidth(config, gcf, gcf == 0 ? null : toNormalize
+				.lineAt(0).path());
 		List<EredmelLine> normalized = new ArrayList<>(
 				countedStart.numLines());
+		int tabwidth = config.tabwidth();
+		StringPool pool = linePool(config);
 		for (MeasuredLine line : countedStart.lines) {
-			normalized.add(line.applyTabwidth(config.tabwidth()));
+			normalized.add(line.applyTabwidth(tabwidth, pool));
+		}
+		ReadFile<EredmelLine> file = new ReadFile<>(normalized, config);
+		file.blocks();
+		if (event.shouldCommit()) {
+			if (toNormalize.numLines() != 0)
+				event.path = toNormalize.lineAt(0).path().toString();
+			event.lines = file.numLines();
+			event.commit();
 		}
-		return new ReadFile<>(normalized, config);
+		return file;
+	}
+	/**
+	 * Reads and normalizes a file too large for its memory budget, as
+	 * {@code normalize(readFile(path, config))} does, without holding it on
+	 * the heap. The file is read twice, a line at a time: once to find its
+	 * configuration settings and tabwidth, and once to write its normalized
+	 * lines out to disk, see {@link PagedReadFile.Writer}.
+	 * 
+	 * @param path
+	 *        the file to read
+	 * @return the normalized file, paged out
+	 * @throws IOException
+	 *         if there was an error in reading the file, or in writing it out
+	 */
+	static PagedReadFile normalizePaged(Path path, EredmelConfiguration config)
+			throws IOException {
+		PreprocessorEvents.FileRead read = new PreprocessorEvents.FileRead();
+		read.begin();
+		int fileID = FileRegistry.idOf(path);
+		DirectiveLexer lexer = DirectiveLexer.of(config);
+		// the number of lines of settings the file starts with, which is -1
+		// until a line which is not a setting is read
+		int header = -1, lines = 0, gcf = 0;
+		try (BufferedReader reader = Files.newBufferedReader(path)) {
+			for (String text; (text = reader.readLine()) != null; lines++) {
+				NumberedLine line = new NumberedLine(fileID, lines, text
+						+ '\n');
+				if (header < 0) {
+					EredmelConfiguration configured = configure(config, lexer,
+							line);
+					if (configured != null) {
+						config = configured;
+						continue;
+					}
+					header = lines;
+				}
+				gcf = MathUtils.gcf(gcf, line.countWhitespace().spaces);
+			}
+		}
+		if (header < 0) header = lines;
+		if (read.shouldCommit()) {
+			read.path = path.toString();
+			read.bytes = Files.size(path);
+			read.lines = lines;
+			read.commit();
+		}
+		PreprocessorEvents.Normalize event = new PreprocessorEvents.Normalize();
+		event.begin();
+		config = withTabwidth(config, gcf, path);
+		int tabwidth = config.tabwidth();
+		PagedReadFile.Writer writer = PagedReadFile.writer(config);
+		try (BufferedReader reader = Files.newBufferedReader(path)) {
+			int i = 0;
+			for (String text; (text = reader.readLine()) != null; i++)
+				if (i >= header)
+					writer.write(new NumberedLine(fileID, i, text + '\n')
+							.countWhitespace().applyTabwidth(tabwidth));
+		} catch (UncheckedIOException e) {
+			writer.abort();
+			throw e.getCause();
+		} catch (IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+		PagedReadFile file = writer.finish();
+		if (event.shouldCommit()) {
+			event.path = path.toString();
+			event.lines = file.numLines();
+			event.commit();
+		}
+		return file;
+	}
+	/**
+	 * Sets the tabwidth of a file which does not declare one
+	 * 
+	 * @param config
+	 *        the configuration of the file
+	 * @param gcf
+	 *        the greatest common factor of the number of spaces each line
+	 *        starts with, which is taken as the tabwidth, with a warning, or
+	 *        {@code 0} if no line starts with spaces
+	 * @param path
+	 *        the file, which is warned about
+	 * @return the configuration, with a tabwidth
+	 */
+	private static EredmelConfiguration withTabwidth(
+			EredmelConfiguration config, int gcf, Path path) {
+		if (config.isDefined(ConfigSetting.TABWIDTH)) return config;
+		int tabwidth;
+		if (gcf == 0) {
+			// no spaces. Set to 4 to prevent divide by 0 errors and
+			// allow for standard conversion to spaces
+			tabwidth = 4;
+		} else {
+			// take a guess
+			tabwidth = gcf;
+			EredmelMessage.guessAtTabwidth(tabwidth, path).log();
+		}
+		return config.with(ConfigSetting.TABWIDTH, Integer.toString(tabwidth));
 	}
 	/**
 	 * 
@@ -135,6 +251,14 @@ public final class EredmelPreprocessor {
 	 * If a file is not found, an error occurs in reading the file, or a
 	 * circular reference is found, a warning or fatal error is raised.
 	 * 
+	 * The lines of each file loaded are stored in columns once, see
+	 * {@link ColumnarReadFile}, and the files including it splice them in by
+	 * reference, see {@link SplicedReadFile}. A linked file larger than
+	 * {@link ConfigSetting#MEMORY_BUDGET} is paged out to disk instead, see
+	 * {@link PagedReadFile}, and a source file larger than the budget is read
+	 * straight out to disk, see {@link #normalizePaged}. The
+	 * {@link BlockIndex} of each file is built.
+	 * 
 	 * @param toRead
 	 *        The files to load
 	 * @param linkedLibs
@@ -147,11 +271,36 @@ public final class EredmelPreprocessor {
 	 */
 	public static List<ReadFile<EredmelLine>> loadFiles(List<Path> toRead,
 			List<Path> linkedLibs, EredmelConfiguration config) {
-		Map<Path, ReadFile<EredmelLine>> allLoaded = new HashMap<>();
+		return loadFiles(toRead, linkedLibs, config, CancellationToken.NONE);
+	}
+	/**
+	 * Loads several files, as {@link #loadFiles(List, List, EredmelConfiguration)}
+	 * does, stopping if the given token is cancelled
+	 * 
+	 * @param token
+	 *        the token checked at each inclusion
+	 * @throws eredmel.logger.Cancelled
+	 *         if the token is cancelled before the files are loaded
+	 */
+	public static List<ReadFile<EredmelLine>> loadFiles(List<Path> toRead,
+			List<Path> linkedLibs, EredmelConfiguration config,
+			CancellationToken token) {
+		Map<Integer, ReadFile<EredmelLine>> allLoaded = new HashMap<>();
 		List<ReadFile<EredmelLine>> requestedLoaded = new ArrayList<>();
 		for (Path individual : toRead) {
-			requestedLoaded.add(loadFile(individual, linkedLibs, allLoaded,
-					new ArrayList<>(), config));
+			PreprocessorEvents.Link event = new PreprocessorEvents.Link();
+			event.begin();
+			ReadFile<EredmelLine> loaded = PagedReadFile
+					.withinBudget(loadFile(individual, linkedLibs, allLoaded,
+							new ArrayList<>(), config, token));
+			loaded.blocks();
+			requestedLoaded.add(loaded);
+			if (event.shouldCommit()) {
+				event.path = individual.toString();
+				event.lines = loaded.numLines();
+				event.characters = loaded.length();
+				event.commit();
+			}
 		}
 		return requestedLoaded;
 	}
@@ -173,92 +322,218 @@ public final class EredmelPreprocessor {
 	 */
 	public static ReadFile<EredmelLine> loadFile(Path toRead,
 			List<Path> linkedLibs, EredmelConfiguration config) {
-		return loadFiles(Arrays.asList(toRead), linkedLibs, config).get(0);
+		return loadFile(toRead, linkedLibs, config, CancellationToken.NONE);
+	}
+	/**
+	 * Loads a single file, as
+	 * {@link #loadFile(Path, List, EredmelConfiguration)} does, stopping if the
+	 * given token is cancelled
+	 * 
+	 * @param token
+	 *        the token checked at each inclusion
+	 * @throws eredmel.logger.Cancelled
+	 *         if the token is cancelled before the file is loaded
+	 */
+	public static ReadFile<EredmelLine> loadFile(Path toRead,
+			List<Path> linkedLibs, EredmelConfiguration config,
+			CancellationToken token) {
+		return loadFiles(Arrays.asList(toRead), linkedLibs, config, token)
+				.get(0);
 	}
 	/**
 	 * Loads a file into memory, first checking to see if it has already been
-	 * loaded.
+	 * loaded, or has an up to date {@link LibraryArtifact}.
 	 * 
 	 * @param toRead
 	 *        the file to read
 	 * @param loadedFiles
-	 *        a set of loaded files, which is added to every time a file is
-	 *        loaded. A short-circuit return is utilized to prevent the same
-	 *        file being loaded multiple times
+	 *        the loaded files, by {@link FileRegistry} id, which is added to
+	 *        every time a file is loaded. A short-circuit return is utilized to
+	 *        prevent the same file being loaded multiple times
 	 * @param linkedLibs
 	 *        the paths where inclusions can be found.
 	 * @param inclusionChain
-	 *        the chain of inclusions needed to get to this point
+	 *        the ids of the chain of inclusions needed to get to this point
+	 * @param token
+	 *        the token checked before the file and each of its inclusions is
+	 *        loaded
 	 * @return the file loaded into memory
 	 * 
 	 */
-	private static ReadFile<EredmelLine> loadFile(Path toRead,
+	static ReadFile<EredmelLine> loadFile(Path toRead,
 			List<Path> linkedLibs,
-			Map<Path, ReadFile<EredmelLine>> loadedFiles,
-			List<Path> inclusionChain, EredmelConfiguration config) {
+			Map<Integer, ReadFile<EredmelLine>> loadedFiles,
+			List<Integer> inclusionChain, EredmelConfiguration config,
+			CancellationToken token) {
+		token.check(toRead, 0);
 		if (!Files.exists(toRead))
 			EredmelMessage.fileNotFound(toRead.toString(), toRead, 0).log();
-		for (Entry<Path, ReadFile<EredmelLine>> linkedFile : loadedFiles
-				.entrySet())
-			if (linkedFile.getKey().equals(toRead))
-				return linkedFile.getValue();
-		int index = inclusionChain.stream()
-				.map(x -> x.normalize().toString())
-				.collect(Collectors.toList())
-				.indexOf(toRead.normalize().toString());
+		int fileID = FileRegistry.idOf(toRead);
+		ReadFile<EredmelLine> loaded = loadedFiles.get(fileID);
+		if (loaded != null) return loaded;
+		int index = inclusionChain.indexOf(fileID);
 		if (index >= 0) {
-			List<Path> circle = inclusionChain.subList(index,
-					inclusionChain.size());
+			List<Path> circle = new ArrayList<>();
+			for (int id : inclusionChain.subList(index, inclusionChain.size()))
+				circle.add(FileRegistry.pathOf(id));
 			circle.add(toRead);
 			EredmelMessage.circularInclusionLink(circle, toRead, 0).log();
 		}
 		inclusionChain = new ArrayList<>(inclusionChain);
-		inclusionChain.add(toRead);
+		inclusionChain.add(fileID);
+		Optional<ReadFile<EredmelLine>> artifact = LibraryArtifact
+				.loadIfFresh(toRead, linkedLibs, config);
+		if (artifact.isPresent()) {
+			loadedFiles.put(fileID, artifact.get());
+			return artifact.get();
+		}
 		ReadFile<EredmelLine> normalizedFile;
 		try {
-			normalizedFile = normalize(readFile(toRead, config));
+			// a file has no more characters than bytes
+			if (PagedReadFile.overBudget(Files.size(toRead), config)) {
+				normalizedFile = normalizePaged(toRead, config);
+			} else {
+				normalizedFile = normalize(readFile(toRead, config));
+				// the lines are compacted once here, rather than in every
+				// file including them, unless they are interned, and hold the
+				// text themselves
+				if (linePool(normalizedFile.config()) == StringPool.NONE)
+					normalizedFile = ColumnarReadFile.compact(normalizedFile);
+			}
 		} catch (IOException e) {
 			EredmelMessage.errorLoadingFile(e, toRead).log();
 			// if this point in the code is released, return an empty file.
 			return new ReadFile<>(new ArrayList<>(), null);
 		}
-		Pattern includePattern = normalizedFile.config().patternMatch(
-				INCLUDE, 0);
-		List<EredmelLine> withInclusions = new ArrayList<>(
-				normalizedFile.numLines());
-		for (int i = 0; i < normalizedFile.numLines(); i++) {
-			Matcher inclusion = includePattern.matcher(normalizedFile
-					.lineAt(i).canonicalRepresentation());
-			if (!inclusion.find()) {
-				withInclusions.add(normalizedFile.lineAt(i));
-				continue;
-			}
-			Optional<Path> optPath = IOUtils.resolve(toRead, linkedLibs,
-					inclusion.group("path"));
+		ReadFile<EredmelLine> file = splice(normalizedFile, resolveInclusions(
+				normalizedFile, toRead, linkedLibs, loadedFiles, inclusionChain,
+				config, token));
+		loadedFiles.put(fileID, file);
+		return file;
+	}
+	/**
+	 * Loads the files included by a normalized file
+	 * 
+	 * @param normalizedFile
+	 *        the file containing the inclusion statements
+	 * @param toRead
+	 *        the path of the file, which inclusions are resolved against
+	 * @param inclusionChain
+	 *        the ids of the chain of inclusions needed to get to this file,
+	 *        including the file itself
+	 * @return the file included by each well-formed inclusion statement, by
+	 *         line, which is empty if the included file was not found
+	 * @see #loadFile(Path, List, Map, List, EredmelConfiguration,
+	 *      CancellationToken)
+	 */
+	static SortedMap<Integer, ReadFile<EredmelLine>> resolveInclusions(
+			ReadFile<EredmelLine> normalizedFile, Path toRead,
+			List<Path> linkedLibs,
+			Map<Integer, ReadFile<EredmelLine>> loadedFiles,
+			List<Integer> inclusionChain, EredmelConfiguration config,
+			CancellationToken token) {
+		SortedMap<Integer, ReadFile<EredmelLine>> inclusions = new TreeMap<>();
+		for (Map.Entry<Integer, String> statement : includePaths(
+				normalizedFile).entrySet()) {
+			int i = statement.getKey();
+			String path = statement.getValue();
+			token.check(toRead, i);
+			PreprocessorEvents.Include event = new PreprocessorEvents.Include();
+			event.begin();
+			Optional<Path> optPath = IOUtils.resolve(toRead, linkedLibs, path);
 			if (!optPath.isPresent()) {
-				EredmelMessage.fileNotFound(inclusion.group("path"),
-						normalizedFile.lineAt(0).path, i).log();
+				EredmelMessage.fileNotFound(path,
+						normalizedFile.lineAt(0).path(), i).log();
 				// just skip if this error is being ignored
+				inclusions.put(i, normalizedFile.lineRange(i, i));
 				continue;
 			}
-			withInclusions.addAll(loadFile(optPath.get(), linkedLibs,
-					loadedFiles, inclusionChain,
-					config.preserveOnlySession()).lines);
+			ReadFile<EredmelLine> included = loadFile(optPath.get(),
+					linkedLibs, loadedFiles, inclusionChain,
+					config.preserveOnlySession(), token);
+			inclusions.put(i, included);
+			if (event.shouldCommit()) {
+				event.path = toRead.toString();
+				event.line = i;
+				event.included = optPath.get().toString();
+				event.characters = included.length();
+				event.commit();
+			}
 		}
-		ReadFile<EredmelLine> file = normalizedFile
-				.copyConfig(withInclusions);
-		loadedFiles.put(toRead, file);
-		return file;
+		return inclusions;
+	}
+	/**
+	 * Finds the inclusion statements of a normalized file
+	 * 
+	 * @param normalizedFile
+	 *        the file containing the inclusion statements
+	 * @return the path included by each well-formed inclusion statement, as
+	 *         it is written, by line
+	 */
+	static SortedMap<Integer, String> includePaths(
+			ReadFile<EredmelLine> normalizedFile) {
+		DirectiveLexer lexer = DirectiveLexer.of(normalizedFile.config());
+		Directive[] directives = lexer.classify(normalizedFile);
+		SortedMap<Integer, String> paths = new TreeMap<>();
+		for (int i = 0; i < normalizedFile.numLines(); i++) {
+			if (directives[i] != Directive.INCLUDE) continue;
+			String path = lexer.includePath(normalizedFile.lineAt(i));
+			if (path != null) paths.put(i, path);
+		}
+		return paths;
+	}
+	/**
+	 * Splices included files into a normalized file in place of the
+	 * statements including them
+	 * 
+	 * @param normalizedFile
+	 *        the file containing the inclusion statements
+	 * @param inclusions
+	 *        the included files, see
+	 *        {@link #resolveInclusions(ReadFile, Path, List, Map, List, EredmelConfiguration, CancellationToken)}
+	 * @return the linked file
+	 */
+	static ReadFile<EredmelLine> splice(ReadFile<EredmelLine> normalizedFile,
+			SortedMap<Integer, ReadFile<EredmelLine>> inclusions) {
+		if (inclusions.isEmpty()) return normalizedFile;
+		// the included files are spliced in by reference, so that a file
+		// included many times is only held in memory once
+		List<ReadFile<EredmelLine>> withInclusions = new ArrayList<>();
+		int runStart = 0;
+		for (Map.Entry<Integer, ReadFile<EredmelLine>> inclusion : inclusions
+				.entrySet()) {
+			withInclusions.add(normalizedFile.lineRange(runStart,
+					inclusion.getKey()));
+			withInclusions.add(inclusion.getValue());
+			runStart = inclusion.getKey() + 1;
+		}
+		withInclusions.add(normalizedFile.lineRange(runStart,
+				normalizedFile.numLines()));
+		return SplicedReadFile.of(withInclusions, normalizedFile.config());
 	}
 	/**
 	 * Measures each line for how many tabs and spaces it has
 	 */
 	private static ReadFile<MeasuredLine> countWhitespace(
 			ReadFile<NumberedLine> norm) {
+		StringPool pool = linePool(norm.config());
 		return norm.copyConfig(norm.lines.stream()
-				.map(NumberedLine::countWhitespace)
+				.map(line -> line.countWhitespace(pool))
 				.collect(Collectors.toList()));
 	}
+	/**
+	 * Gets the pool the text of lines is interned in
+	 * 
+	 * @param config
+	 *        the configuration of the file, or {@code null}
+	 * @return {@link #LINE_POOL} if {@link ConfigSetting#INTERN_LINES} is set,
+	 *         otherwise {@link StringPool#NONE}
+	 */
+	static StringPool linePool(EredmelConfiguration config) {
+		return config != null
+				&& config.booleanValue(ConfigSetting.INTERN_LINES) ? LINE_POOL
+				: StringPool.NONE;
+	}
 	/**
 	 * Gets the tabwidth and consumes a tabwidth statement
 	 * 
@@ -269,31 +544,61 @@ public final class EredmelPreprocessor {
 	 *         returns the specified Optional.of(width). Otherwise, it returns
 	 *         Optional.none()
 	 */
-	private static ReadFile<NumberedLine> processConfig(
+	static ReadFile<NumberedLine> processConfig(
 			ReadFile<NumberedLine> original) {
 		EredmelConfiguration config = original.config();
-		Pattern configMatch = config.patternMatch(CONFIG, 0);
+		DirectiveLexer lexer = DirectiveLexer.of(config);
 		int i = 0;
 		for (i = 0; i < original.numLines(); i++) {
-			if (original.lineAt(i).line.trim().length() == 0) continue;
-			Matcher mat = configMatch.matcher(original.lineAt(i));
-			if (!mat.find()) break;
-			ConfigSetting econfig = ConfigSetting.fromConfigString(mat
-					.group("name"));
-			boolean validated = config.set(econfig, mat.group("value"));
-			if (!validated)
-				EredmelMessage.invalidConfigurationSetting(econfig,
-						mat.group("value"), original.lineAt(i)).log();
+			EredmelConfiguration configured = configure(config, lexer,
+					original.lineAt(i));
+			if (configured == null) break;
+			config = configured;
 		}
 		return new ReadFile<>(original.lines.subList(i, original.numLines()),
 				config);
 	}
+	/**
+	 * Applies the configuration setting on a line at the start of a file
+	 * 
+	 * @param config
+	 *        the configuration so far
+	 * @param lexer
+	 *        the lexer for the file
+	 * @param line
+	 *        the line
+	 * @return the configuration with the setting applied, the configuration
+	 *         itself if the line is blank or its setting is invalid, or
+	 *         {@code null} if the line is not a setting, and so ends the
+	 *         settings
+	 */
+	private static EredmelConfiguration configure(EredmelConfiguration config,
+			DirectiveLexer lexer, NumberedLine line) {
+		if (line.line.trim().length() == 0) return config;
+		if (lexer.classify(line, 0, line.length()) != Directive.CONFIG)
+			return null;
+		String[] setting = lexer.configSetting(line);
+		if (setting == null) return null;
+		ConfigSetting econfig = ConfigSetting.fromConfigString(setting[0]);
+		String value = setting[1];
+		if (econfig.isValid(value)) return config.with(econfig, value);
+		EredmelMessage.invalidConfigurationSetting(econfig, value, line).log();
+		return config;
+	}
 	/**
 	 * Applies the {@code replace} and {@code replacelit} statements in
 	 * this file one-by-one to the text below them, recursively.
 	 * 
 	 * TODO: Future versions may implement an END to the replacement scope
 	 * 
+	 * The work replacement may do is limited, see {@link ReplaceBudget}. After
+	 * each rule, text larger than {@link ConfigSetting#MEMORY_BUDGET} is paged
+	 * out to disk, see {@link PagedReadFile}, and the text paged out after the
+	 * rule before is deleted. A paged result is {@link java.io.Closeable}, and
+	 * deletes its text when it is closed. A rule applied to paged text writes
+	 * its result out to disk as it goes, rather than building it on the heap,
+	 * and is not applied to parts of the text in parallel.
+	 * 
 	 * @param preReplace
 	 *        the file before {@code replace[lit]} statements have been
 	 *        applied
@@ -302,77 +607,254 @@ public final class EredmelPreprocessor {
 	 */
 	public static ReadFile<EredmelLine> applyReplaces(
 			ReadFile<EredmelLine> preReplace) {
+		return applyReplaces(preReplace, CancellationToken.NONE);
+	}
+	/**
+	 * Applies the {@code replace} statements of a file, as
+	 * {@link #applyReplaces(ReadFile)} does, stopping if the given token is
+	 * cancelled
+	 * 
+	 * @param token
+	 *        the token checked at each {@code replace} statement and rewrite,
+	 *        and as the enregexes read the text
+	 * @throws eredmel.logger.Cancelled
+	 *         if the token is cancelled before the statements are applied
+	 */
+	public static ReadFile<EredmelLine> applyReplaces(
+			ReadFile<EredmelLine> preReplace, CancellationToken token) {
+		return applyReplaces(preReplace, token, new ArrayList<>());
+	}
+	/**
+	 * Applies the {@code replace} statements in the given file, as
+	 * {@link #applyReplaces(ReadFile, CancellationToken)} does
+	 * 
+	 * @param rules
+	 *        the list to add each rule applied to, in order
+	 */
+	static ReadFile<EredmelLine> applyReplaces(
+			ReadFile<EredmelLine> preReplace, CancellationToken token,
+			List<ReplaceRule> rules) {
+		// the reason for this structure is the regexes are self-modifying
+		Pattern replacePattern = preReplace.config().patternMatch(REPLACE, 0);
+		ReplaceBudget budget = new ReplaceBudget(preReplace.config(),
+				preReplace.length());
+		// the block index is carried through every rewrite
+		preReplace.blocks();
+		DirectiveLexer lexer = DirectiveLexer.of(preReplace.config());
+		// the file paged out after the last rule, which is closed when it is
+		// replaced, rather than the file given
+		ReadFile<EredmelLine> spilled = null;
+		try {
+			while (!budget.exhausted()) {
+				Path path = preReplace.numLines() == 0 ? null : preReplace
+						.lineAt(0).path();
+				token.check(path, 0);
+				if (!lexer.mayContainReplace(preReplace)) break;
+				Matcher findRepl = replacePattern.matcher(token.watch(
+						ChunkCursor.of(preReplace), path, 0));
+				if (!findRepl.find()) {
+					break;
+				} // no replace
+				ReplaceRule rule = ReplaceRule.of(findRepl, preReplace);
+				rules.add(rule);
+				// pop replace off
+				preReplace = preReplace.subSequence(findRepl.end(),
+						preReplace.length());
+				budget.startRule(rule, preReplace.length());
+				if (rule.locality != ReplaceRule.Locality.FILE
+						&& preReplace.length() >= 2 * PARTITION_SIZE
+						&& !preReplace.paged())
+					preReplace = applyRuleInParallel(rule, preReplace, budget,
+							token);
+				else preReplace = applyRule(rule, preReplace, budget, true,
+						token);
+				preReplace = PagedReadFile.withinBudget(preReplace, spilled);
+				spilled = preReplace;
+			}
+		} catch (RuntimeException e) {
+			PagedReadFile.closeQuietly(spilled);
+			throw e;
+		}
+		return preReplace;
+	}
+	/**
+	 * Applies a rule to the given text until it no longer matches the text
+	 * after its last rewrite
+	 * 
+	 * @param rule
+	 *        the rule to apply
+	 * @param preReplace
+	 *        the text to apply it to
+	 * @param budget
+	 *        the budget of the file
+	 * @param last
+	 *        whether the text is the end of the file. If it is not, an empty
+	 *        match at the end of the text is left to the text after it, where
+	 *        it is also found
+	 * @param token
+	 *        the token checked at each rewrite
+	 * @return the text with the rule applied
+	 */
+	static ReadFile<EredmelLine> applyRule(ReplaceRule rule,
+			ReadFile<EredmelLine> preReplace, ReplaceBudget budget,
+			boolean last, CancellationToken token) {
+		return applyRule(rule, preReplace, budget.run(preReplace), last,
+				ReplaceTrace.active(), token);
+	}
+	/**
+	 * Applies a rule as
+	 * {@link #applyRule(ReplaceRule, ReadFile, ReplaceBudget, boolean, CancellationToken)}
+	 * does, tracking its rewrites with the given run and recording them in
+	 * the given trace, if any.
+	 * 
+	 * The text before the last rewrite is finished with. If the text is paged,
+	 * see {@link PagedReadFile}, the text finished with is written out to a
+	 * new paged file as the rule goes, and the text left to match is a view of
+	 * the pages and the rewritten lines.
+	 */
+	private static ReadFile<EredmelLine> applyRule(ReplaceRule rule,
+			ReadFile<EredmelLine> preReplace, ReplaceBudget.Run run,
+			boolean last, ReplaceTrace trace, CancellationToken token) {
 		ReadFile<EredmelLine> processed = preReplace
 				.copyConfig(new ArrayList<>());
-		// the reason for this structure is the regexes are self-modifying
-		Pattern replacePattern = processed.config().patternMatch(REPLACE, 0);
-		while (true) {
-			Matcher findRepl = replacePattern.matcher(preReplace);
-			if (!findRepl.find()) {
-				break;
-			} // no replace
-			Pattern enregex = Pattern.compile(findRepl.group("enregex"),
-					Pattern.ENHANCED_REGEX | Pattern.COMMENTS,
-					EnregexType.EREDMEL_STANDARD);
-			boolean lit = findRepl.group("lit") != null
-					&& findRepl.group("lit").equals("lit");
-			String replace = findRepl.group("repl");
-			if (!lit)
-				replace = replace.replace("\\t", "\t").replace("\\n", "\n");
-			// pop replace off
-			preReplace = preReplace.subSequence(findRepl.end(),
-					preReplace.length());
-			System.out.println(preReplace);
+		PagedReadFile.Writer writer = pagedResult(preReplace);
+		// paged text whose result cannot be written out is read onto the
+		// heap, rather than gathering a view of it respliced at each rewrite
+		if (writer == null && preReplace.paged())
+			preReplace = ColumnarReadFile.compact(preReplace);
+		CharSequence done = writer == null ? processed : writer;
+		// the quotes and parentheses of the text an enhanced rule rewrites,
+		// which only the rewritten region and the text after it invalidate
+		SyntaxIndex syntax = rule.enhanced ? SyntaxIndex.of(preReplace,
+				ReplaceRule.TYPE) : null;
+		try {
 			while (true) {
-				Matcher replacer = enregex.matcher(preReplace);
+				token.check(rule.path(), rule.lineNumber);
+				PreprocessorEvents.ReplaceMatch event = new PreprocessorEvents.ReplaceMatch();
+				event.begin();
+				Matcher replacer = rule.enregex.matcher(token.watch(
+						ChunkCursor.of(preReplace), rule.path(),
+						rule.lineNumber));
 				if (!replacer.find()) break;
-				String replacement;
-				if (lit) {
-					replacement = replace;
-				} else {
-					StringBuffer sbRepl = new StringBuffer();
-					replacer.appendReplacement(sbRepl, replace, false,
-							true);
-					replacement = sbRepl.toString();
-					// System.out.println("111111111111111111");
-					// System.out.println(replace);
-					// System.out.println("222222222222222222");
-					// System.out.println(replacement);
-					// System.out.println("333333333333333333");
-				}
-				ReadFile<EredmelLine> beforeMatch = preReplace.subSequence(
-						0, replacer.start());
+				if (!last && replacer.start() == preReplace.length()) break;
+				if (!run.mayRewrite()) break;
+				String replacement = rule.replacementFor(replacer);
+				ReadFile<EredmelLine> beforeMatch = preReplace.subSequence(0,
+						replacer.start());
 				ReadFile<EredmelLine> match = preReplace.subSequence(
 						replacer.start(), replacer.end());
 				ReadFile<EredmelLine> afterMatch = preReplace.subSequence(
 						replacer.end(), preReplace.length());
-				// System.out.println("-------------------");
-				// System.out.print(beforeMatch);
-				// System.out.print(match);
-				// System.out.print(afterMatch);
-				// System.out.println("~~~~~~~~~~~~~~~~~~~");
-				// System.out.print(beforeMatch);
-				// System.out.print(replacement);
-				// System.out.print(afterMatch);
-				// applies the replacements
-				// System.out.println("```````````````````");
-				// System.out.println(preReplace);
-				// System.out.println(********************");
-				processed = processed.concat(beforeMatch);
-				preReplace = ReadFile.replace(match, replacement).concat(
-						afterMatch);
-				// System.out.println(processed);
-				// System.out.println("@@@@@@@@@@@@@@@@@@@");
-				// System.out.println(replacement);
-				// System.out.println("$$$$$$$$$$$$$$$$$$$");
-				// System.out.println(afterMatch);
-				// System.out.println("==================>");
-				// System.out.println(preReplace);
+				if (trace != null)
+					trace.record(rule, done.length() + replacer.start(), match,
+							replacement);
+				ReadFile<EredmelLine> replaced = ReadFile.replace(match,
+						replacement);
+				if (writer == null)
+					done = processed = processed.concat(beforeMatch);
+				else writer.write(beforeMatch);
+				boolean more = run.rewrote(preReplace, replacer.end(),
+						replaced);
+				preReplace = replaced.concat(afterMatch);
+				if (syntax != null)
+					syntax.edit(done, preReplace, done.length());
+				if (event.shouldCommit()) {
+					event.rule = rule.path() + ":" + rule.lineNumber;
+					if (match.numLines() != 0) {
+						event.path = match.lineAt(0).path().toString();
+						event.line = match.lineAt(0).lineNumber;
+					}
+					event.matched = match.length();
+					event.replacement = replacement.length();
+					event.commit();
+				}
+				if (!more) break;
+			}
+			if (writer == null) return processed.concat(preReplace);
+			if (writer.length() == 0) {
+				// nothing was finished with, so the text left is all there is
+				writer.abort();
+				return preReplace;
 			}
-			preReplace = processed.concat(preReplace);
-			processed = processed.copyConfig(new ArrayList<>());
+			writer.write(preReplace);
+			return writer.finish();
+		} catch (RuntimeException e) {
+			if (writer != null) writer.abort();
+			throw e;
+		}
+	}
+	/**
+	 * Starts writing the result of a rule applied to the given text out to
+	 * disk, if the text is paged
+	 * 
+	 * @param text
+	 *        the text the rule is applied to
+	 * @return the writer, or {@code null} if the text is not paged, or the
+	 *         result cannot be paged, in which case it is built on the heap
+	 */
+	private static PagedReadFile.Writer pagedResult(
+			ReadFile<EredmelLine> text) {
+		if (!text.paged()) return null;
+		try {
+			return PagedReadFile.writer(text.config());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	/**
+	 * Applies a {@link ReplaceRule.Locality#LINE} or
+	 * {@link ReplaceRule.Locality#BLOCK} rule to parts of the given text at
+	 * once. The text is split after newlines that no match of the rule can
+	 * contain. Since a rule is never applied to the text before its last
+	 * rewrite, the text before a split is finished with before any match
+	 * after it is rewritten, and the result is the same as that of
+	 * {@link #applyRule(ReplaceRule, ReadFile, ReplaceBudget, boolean, CancellationToken)}.
+	 * 
+	 * The parts are tracked apart from the budget, and committed to it once
+	 * they are all done. If applying the rule in order would have reached a
+	 * limit of the budget, the parts are discarded and the rule is applied in
+	 * order, so where it stops does not depend on how the parts were
+	 * scheduled. A rule being traced is always applied in order, so that its
+	 * rewrites are recorded in order.
+	 * 
+	 * @param rule
+	 *        the rule to apply
+	 * @param text
+	 *        the text to apply it to
+	 * @param budget
+	 *        the budget of the file
+	 * @param token
+	 *        the token checked at each rewrite
+	 * @return the text with the rule applied
+	 */
+	private static ReadFile<EredmelLine> applyRuleInParallel(
+			ReplaceRule rule, ReadFile<EredmelLine> text, ReplaceBudget budget,
+			CancellationToken token) {
+		List<ReadFile<EredmelLine>> parts = new ArrayList<>();
+		int start = 0;
+		for (int i = 1; i < text.numLines(); i++) {
+			int offset = text.offset(i);
+			if (offset - start < PARTITION_SIZE
+					|| text.charAt(offset - 1) != '\n'
+					|| rule.locality == ReplaceRule.Locality.BLOCK
+					&& text.charAt(offset) == '\t') continue;
+			parts.add(text.subSequence(start, offset));
+			start = offset;
 		}
-		processed = processed.concat(preReplace);
-		return processed;
+		parts.add(text.subSequence(start, text.length()));
+		if (ReplaceTrace.active() != null || parts.size() == 1)
+			return applyRule(rule, text, budget, true, token);
+		List<ReplaceBudget.Run> runs = parts.stream().map(budget::part)
+				.collect(Collectors.toList());
+		List<ReadFile<EredmelLine>> replaced = IntStream
+				.range(0, parts.size())
+				.parallel()
+				.mapToObj(
+						i -> applyRule(rule, parts.get(i), runs.get(i),
+								i == parts.size() - 1, null, token))
+				.collect(Collectors.toList());
+		if (!budget.commit(runs))
+			return applyRule(rule, text, budget, true, token);
+		return ReadFile.concat(replaced, text.config());
 	}
 }
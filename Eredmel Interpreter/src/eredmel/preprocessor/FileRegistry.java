@@ -0,0 +1,101 @@
+package eredmel.preprocessor;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A process-wide registry assigning dense integer ids to files, so that lines
+ * and caches can refer to a file by an int, and two references to the same
+ * file can be compared with {@code ==}. Files stay registered until
+ * {@link #reset()} is called.
+ *
+ * Paths are identified by their absolute, normalized form, so
+ * {@code eg/a.edmh} and {@code eg/b/../a.edmh} get the same id. The path
+ * returned by {@link #pathOf(int)} is the normalized form of the first path
+ * registered for the file since the last reset, as it was given, so that
+ * messages print paths the way the user wrote them.
+ *
+ * Ids are not reused after a reset: the ids assigned before it are no longer
+ * valid, rather than referring to other files.
+ *
+ * Registration is synchronized, but {@link #pathOf(int)} only reads a volatile
+ * array, so resolving an id back to its path never blocks.
+ *
+ * @author Kavi Gupta
+ */
+public final class FileRegistry {
+	private static final ConcurrentHashMap<Path, Integer> ids = new ConcurrentHashMap<>();
+	/**
+	 * The path of each id since the last reset, offset by {@link #base}.
+	 * Replaced by a larger copy when full, so readers always see an array at
+	 * least as long as the largest id they can hold.
+	 */
+	private static volatile Path[] paths = new Path[64];
+	/**
+	 * The first id assigned since the last reset
+	 */
+	private static volatile int base = 0;
+	/**
+	 * The number of ids assigned since the last reset, guarded by the class
+	 * lock
+	 */
+	private static int size = 0;
+	private FileRegistry() {}
+	/**
+	 * Gets the id of the given file, assigning it one if it has not yet been
+	 * registered
+	 *
+	 * @param path
+	 *        a path to the file
+	 * @return the id of the file
+	 */
+	public static int idOf(Path path) {
+		Path key = path.toAbsolutePath().normalize();
+		Integer id = ids.get(key);
+		if (id != null) return id;
+		synchronized (FileRegistry.class) {
+			id = ids.get(key);
+			if (id != null) return id;
+			Path[] paths = FileRegistry.paths;
+			if (size == paths.length) {
+				paths = Arrays.copyOf(paths, size * 2);
+				paths[size] = path.normalize();
+				FileRegistry.paths = paths;
+			} else paths[size] = path.normalize();
+			// the path is written before the id is published through the map
+			ids.put(key, base + size);
+			return base + size++;
+		}
+	}
+	/**
+	 * @param fileID
+	 *        an id returned by {@link #idOf(Path)}
+	 * @return the path of the file with the given id
+	 */
+	public static Path pathOf(int fileID) {
+		Path[] paths = FileRegistry.paths;
+		int index = fileID - base;
+		if (index < 0 || index >= paths.length || paths[index] == null)
+			throw new IllegalArgumentException("No file with id " + fileID);
+		return paths[index];
+	}
+	/**
+	 * @return the number of files registered since the last reset
+	 */
+	public static synchronized int size() {
+		return size;
+	}
+	/**
+	 * Forgets every file registered, so that the files registered afterwards
+	 * get new ids, and the paths they are registered with. This must not be
+	 * called while files are being processed, since the ids of their lines
+	 * are no longer valid afterwards.
+	 */
+	public static synchronized void reset() {
+		ids.clear();
+		paths = new Path[64];
+		base += size;
+		size = 0;
+	}
+}
@@ -0,0 +1,332 @@
+package eredmel.preprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import eredmel.config.ConfigSetting;
+import eredmel.config.EredmelConfiguration;
+import eredmel.regex.Matcher;
+import eredmel.utils.io.IOUtils;
+import eredmel.utils.string.ChunkCursor;
+
+/**
+ * A library that has been loaded, normalized and linked ahead of time, so that
+ * the files including it need not repeat the work.
+ *
+ * The artifact of a library is stored next to its source, see
+ * {@link #artifactOf(Path)}, and holds
+ * <ul>
+ * <li>the configuration and search path it was built with</li>
+ * <li>every file it was built from, with its modification time</li>
+ * <li>the include graph of those files: the inclusion statements of each, as
+ * they are written, with the file each resolved to, if any</li>
+ * <li>the configuration of the linked library</li>
+ * <li>the indentation and length of every linked line</li>
+ * <li>the origin of every linked line, as a {@link SourceMap} of line
+ * indices, in which lines from the same original line share an interval</li>
+ * <li>the text of the linked library</li>
+ * <li>the enregexes of the {@code replace} statements in the linked library</li>
+ * </ul>
+ * An artifact is only used if it was built with the same configuration and
+ * search path, none of the files it was built from has been modified since,
+ * and every inclusion statement still resolves to the same file. So an
+ * inclusion that was not found, and is now, or a file now shadowing the one
+ * included, being earlier in the search path, makes the artifact stale.
+ * Loading one reads the lines straight into a {@link ColumnarReadFile}, and
+ * compiles its enregexes into the cache used by {@link ReplaceRule}.
+ *
+ * @author Kavi Gupta
+ */
+public final class LibraryArtifact {
+	private static final int MAGIC = 0x45444D4C; // "EDML"
+	/**
+	 * The version of the artifact format written by this class
+	 */
+	public static final int VERSION = 3;
+	private LibraryArtifact() {}
+	/**
+	 * Gets the file the artifact of the given library is stored in
+	 *
+	 * @param source
+	 *        the source of the library
+	 * @return the path of its artifact
+	 */
+	public static Path artifactOf(Path source) {
+		return source.resolveSibling(source.getFileName() + ".edmlib");
+	}
+	/**
+	 * Loads and links a library, and writes its artifact
+	 *
+	 * @param source
+	 *        the source of the library
+	 * @param linkedLibs
+	 *        the paths where inclusions can be found
+	 * @param config
+	 *        the configuration of the session
+	 * @throws IOException
+	 *         if the library cannot be read, or the artifact cannot be
+	 *         written
+	 */
+	public static void build(Path source, List<Path> linkedLibs,
+			EredmelConfiguration config) throws IOException {
+		Map<Integer, ReadFile<EredmelLine>> loaded = new HashMap<>();
+		ReadFile<EredmelLine> file = EredmelPreprocessor.loadFile(source,
+				linkedLibs, loaded, new ArrayList<>(), config,
+				CancellationToken.NONE);
+		if (file.config() == null)
+			throw new IOException("Could not load " + source);
+		// files which were loaded from artifacts themselves are only known
+		// by the lines they contributed
+		Map<Integer, Integer> fileIndices = new LinkedHashMap<>();
+		fileIndices.put(FileRegistry.idOf(source), 0);
+		for (int fileID : loaded.keySet())
+			fileIndices.putIfAbsent(fileID, fileIndices.size());
+		for (EredmelLine line : file.lines)
+			fileIndices.putIfAbsent(line.fileID, fileIndices.size());
+		// the include graph is found by reading the inclusion statements of
+		// each file again, since those loaded from artifacts were not read,
+		// and may add files which contributed no lines
+		List<Integer> fileIDs = new ArrayList<>(fileIndices.keySet());
+		List<List<Inclusion>> graph = new ArrayList<>();
+		for (int i = 0; i < fileIDs.size(); i++) {
+			Path path = FileRegistry.pathOf(fileIDs.get(i));
+			List<Inclusion> inclusions = new ArrayList<>();
+			for (String include : EredmelPreprocessor.includePaths(
+					EredmelPreprocessor.normalize(EredmelPreprocessor.readFile(
+							path, i == 0 ? config : config
+									.preserveOnlySession()))).values()) {
+				Optional<Path> resolved = IOUtils.resolve(path, linkedLibs,
+						include);
+				int target = -1;
+				if (resolved.isPresent()) {
+					int fileID = FileRegistry.idOf(resolved.get());
+					if (!fileIndices.containsKey(fileID)) {
+						fileIndices.put(fileID, fileIndices.size());
+						fileIDs.add(fileID);
+					}
+					target = fileIndices.get(fileID);
+				}
+				inclusions.add(new Inclusion(include, target));
+			}
+			graph.add(inclusions);
+		}
+		Set<String> enregexes = new LinkedHashSet<>();
+		Matcher findRepl = file.config()
+				.patternMatch(EredmelPreprocessor.REPLACE, 0)
+				.matcher(ChunkCursor.of(file));
+		while (findRepl.find())
+			enregexes.add(findRepl.group("enregex"));
+		Path artifact = artifactOf(source);
+		Path temp = Files.createTempFile(artifact.toAbsolutePath()
+				.getParent(), artifact.getFileName().toString(), ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeConfig(out, config);
+			out.writeInt(linkedLibs.size());
+			for (Path lib : linkedLibs)
+				out.writeUTF(lib.toString());
+			out.writeInt(fileIndices.size());
+			for (int fileID : fileIndices.keySet()) {
+				Path path = FileRegistry.pathOf(fileID);
+				out.writeUTF(path.toAbsolutePath().normalize().toString());
+				out.writeLong(Files.getLastModifiedTime(path).toMillis());
+			}
+			for (List<Inclusion> inclusions : graph) {
+				out.writeInt(inclusions.size());
+				for (Inclusion inclusion : inclusions) {
+					out.writeUTF(inclusion.path);
+					// unresolved inclusions are written as 0
+					IOUtils.writeVarint(out, inclusion.target + 1);
+				}
+			}
+			writeConfig(out, file.config());
+			out.writeInt(file.numLines());
+			SourceMap.Builder origins = new SourceMap.Builder();
+			for (EredmelLine line : file.lines) {
+				origins.add(line.fileID, line.lineNumber, 1);
+				IOUtils.writeVarint(out, line.tabs());
+				IOUtils.writeVarint(out, line.length());
+			}
+			origins.build().write(out, fileIndices);
+			byte[] text = file.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(text.length);
+			out.write(text);
+			out.writeInt(enregexes.size());
+			for (String enregex : enregexes)
+				out.writeUTF(enregex);
+		} catch (IOException e) {
+			Files.delete(temp);
+			throw e;
+		}
+		Files.move(temp, artifact, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+	/**
+	 * Loads the artifact of a library, if it is up to date
+	 *
+	 * @param source
+	 *        the source of the library
+	 * @param linkedLibs
+	 *        the paths where inclusions can be found
+	 * @param config
+	 *        the configuration of the session
+	 * @return the linked library, or {@code Optional.empty()} if there is no
+	 *         artifact, or it was built with a different configuration or
+	 *         search path, or from files that have since been modified
+	 */
+	public static Optional<ReadFile<EredmelLine>> loadIfFresh(Path source,
+			List<Path> linkedLibs, EredmelConfiguration config) {
+		PreprocessorEvents.CacheLookup event = new PreprocessorEvents.CacheLookup();
+		event.begin();
+		Optional<ReadFile<EredmelLine>> loaded = load(source, linkedLibs,
+				config);
+		if (event.shouldCommit()) {
+			event.path = source.toString();
+			event.hit = loaded.isPresent();
+			event.commit();
+		}
+		return loaded;
+	}
+	private static Optional<ReadFile<EredmelLine>> load(Path source,
+			List<Path> linkedLibs, EredmelConfiguration config) {
+		Path artifact = artifactOf(source);
+		if (!Files.exists(artifact)) return Optional.empty();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(artifact)))) {
+			// no table has more entries than the artifact has bytes
+			long limit = Files.size(artifact);
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return Optional.empty();
+			if (!readConfig(in).equals(config)) return Optional.empty();
+			int libs = readCount(in, limit);
+			if (libs != linkedLibs.size()) return Optional.empty();
+			for (Path lib : linkedLibs)
+				if (!in.readUTF().equals(lib.toString()))
+					return Optional.empty();
+			int[] fileIDs = new int[readCount(in, limit)];
+			Path[] paths = new Path[fileIDs.length];
+			for (int i = 0; i < fileIDs.length; i++) {
+				paths[i] = Paths.get(in.readUTF());
+				if (Files.getLastModifiedTime(paths[i]).toMillis() != in
+						.readLong()) return Optional.empty();
+				fileIDs[i] = FileRegistry.idOf(paths[i]);
+			}
+			for (Path path : paths)
+				for (int i = in.readInt(); i > 0; i--) {
+					Optional<Path> resolved = IOUtils.resolve(path, linkedLibs,
+							in.readUTF());
+					int target = IOUtils.readVarint(in) - 1;
+					int resolvedID = resolved.isPresent() ? FileRegistry
+							.idOf(resolved.get()) : -1;
+					if (resolvedID != (target == -1 ? -1 : fileIDs[target]))
+						return Optional.empty();
+				}
+			EredmelConfiguration fileConfig = readConfig(in);
+			int size = readCount(in, limit);
+			int[] lineFiles = new int[size], lineNumbers = new int[size];
+			short[] tabs = new short[size];
+			int[] offsets = new int[size + 1];
+			for (int i = 0; i < size; i++) {
+				int tab = IOUtils.readVarint(in);
+				int length = IOUtils.readVarint(in);
+				// a line indented too far for a column cannot be loaded
+				if (tab < 0 || tab > Short.MAX_VALUE) return Optional.empty();
+				if (length <= 0 || length < tab)
+					throw new IOException("The artifact is corrupt");
+				tabs[i] = (short) tab;
+				offsets[i + 1] = offsets[i] + length;
+			}
+			SourceMap origins = SourceMap.read(in, fileIDs);
+			if (origins.length() != size) return Optional.empty();
+			for (int i = 0; i < size; i++) {
+				lineFiles[i] = origins.fileIDAt(i);
+				lineNumbers[i] = origins.lineAt(i);
+			}
+			byte[] bytes = new byte[readCount(in, limit)];
+			in.readFully(bytes);
+			char[] text = new String(bytes, StandardCharsets.UTF_8)
+					.toCharArray();
+			if (text.length != offsets[size]) return Optional.empty();
+			for (int i = in.readInt(); i > 0; i--)
+				ReplaceRule.compile(in.readUTF());
+			return Optional.of(ColumnarReadFile.of(lineFiles, lineNumbers,
+					tabs, offsets, text, fileConfig));
+		} catch (IOException | IllegalArgumentException
+				| IndexOutOfBoundsException e) {
+			// a file it was built from has been deleted, or the artifact is
+			// corrupt, so the sources are loaded instead
+			return Optional.empty();
+		}
+	}
+	/**
+	 * Reads the size of a table, which a corrupt artifact may make negative,
+	 * or too large to allocate
+	 *
+	 * @param limit
+	 *        the largest size possible
+	 * @throws IOException
+	 *         if the size is out of range, or cannot be read
+	 */
+	private static int readCount(DataInputStream in, long limit)
+			throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > limit)
+			throw new IOException("The artifact is corrupt");
+		return count;
+	}
+	/**
+	 * An inclusion statement, and the file it resolved to
+	 */
+	private static final class Inclusion {
+		final String path;
+		/**
+		 * The index of the file in the table of files, or {@code -1} if it was
+		 * not found
+		 */
+		final int target;
+		Inclusion(String path, int target) {
+			this.path = path;
+			this.target = target;
+		}
+	}
+	private static void writeConfig(DataOutputStream out,
+			EredmelConfiguration config) throws IOException {
+		List<ConfigSetting> defined = new ArrayList<>();
+		for (ConfigSetting setting : ConfigSetting.values())
+			if (config.isDefined(setting)) defined.add(setting);
+		out.writeInt(defined.size());
+		for (ConfigSetting setting : defined) {
+			out.writeUTF(setting.internalKey);
+			out.writeUTF(config.get(setting));
+		}
+	}
+	private static EredmelConfiguration readConfig(DataInputStream in)
+			throws IOException {
+		EredmelConfiguration config = EredmelConfiguration.getDefault();
+		for (int i = in.readInt(); i > 0; i--) {
+			ConfigSetting setting = ConfigSetting.fromConfigString(in
+					.readUTF());
+			if (setting == null) throw new IOException("Unknown setting");
+			config = config.with(setting, in.readUTF());
+		}
+		return config;
+	}
+}
@@ -2,29 +2,46 @@ package eredmel.preprocessor;
 
 import java.nio.file.Path;
 
+import eredmel.utils.string.ChunkedCharSequence;
+
 /**
- * An interface representing a line in a text file
+ * An interface representing a line in a text file. A line is a single chunk.
  * 
  * @author Kavi Gupta
  */
-public abstract class Line<SELF extends Line<SELF>> implements CharSequence {
+public abstract class Line<SELF extends Line<SELF>> implements
+		ChunkedCharSequence {
 	/**
-	 * The path of the original document
+	 * The {@link FileRegistry} id of the original document
 	 */
-	public final Path path;
+	public final int fileID;
 	/**
 	 * The line number in the original document
 	 */
 	public final int lineNumber;
-	protected Line(Path path, int lineNumber) {
-		this.path = path;
+	protected Line(int fileID, int lineNumber) {
+		this.fileID = fileID;
 		this.lineNumber = lineNumber;
 	}
+	/**
+	 * @return the path of the original document
+	 */
+	public Path path() {
+		return FileRegistry.pathOf(fileID);
+	}
 	/**
 	 * A representation of the original line in an equivalent form
 	 */
 	public abstract String canonicalRepresentation();
 	@Override
+	public int chunkStart(int index) {
+		return 0;
+	}
+	@Override
+	public int chunkEnd(int index) {
+		return length();
+	}
+	@Override
 	public abstract SELF subSequence(int start, int end);
 	@Override
 	public final String toString() {
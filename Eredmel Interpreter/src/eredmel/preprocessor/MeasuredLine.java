@@ -1,9 +1,9 @@
 package eredmel.preprocessor;
 
-import java.nio.file.Path;
 import java.util.Arrays;
 
 import eredmel.logger.EredmelMessage;
+import eredmel.utils.string.StringPool;
 
 /**
  * A line associated with measurements of the numbers of spaces and tabs before
@@ -27,15 +27,26 @@ public class MeasuredLine extends Line<MeasuredLine> {
 	/**
 	 * Copies parameters to fields
 	 */
-	MeasuredLine(Path path, int lineNumber, String restOfLine, int spaces,
+	MeasuredLine(int fileID, int lineNumber, String restOfLine, int spaces,
 			int tabs) {
-		super(path, lineNumber);
+		super(fileID, lineNumber);
 		this.restOfLine = restOfLine;
 		this.spaces = spaces;
 		this.tabs = tabs;
 	}
 	public EredmelLine applyTabwidth(int tabwidth) {
-		return new EredmelLine(path, spaces, restOfLine,
+		return applyTabwidth(tabwidth, StringPool.NONE);
+	}
+	/**
+	 * Converts this line to an {@link EredmelLine}, interning its text
+	 * 
+	 * @param tabwidth
+	 *        the number of spaces per tab
+	 * @param pool
+	 *        the pool to intern the text of the line in
+	 */
+	public EredmelLine applyTabwidth(int tabwidth, StringPool pool) {
+		return new EredmelLine(fileID, lineNumber, pool.intern(restOfLine),
 				indentationLevel(tabwidth));
 	}
 	/**
@@ -45,7 +56,7 @@ public class MeasuredLine extends Line<MeasuredLine> {
 	 */
 	public int indentationLevel(int tabwidth) {
 		if (spaces % tabwidth != 0)
-			EredmelMessage.roundingTabwidth(tabwidth, spaces, path,
+			EredmelMessage.roundingTabwidth(tabwidth, spaces, path(),
 					lineNumber);
 		return (spaces + tabwidth / 2) / tabwidth + tabs;
 	}
@@ -71,22 +82,22 @@ public class MeasuredLine extends Line<MeasuredLine> {
 	public MeasuredLine subSequence(int start, int end) {
 		if (start < tabs) {
 			if (end < tabs)
-				return new MeasuredLine(path, lineNumber, "", end - start,
+				return new MeasuredLine(fileID, lineNumber, "", end - start,
 						0);
 			if (end < tabs + spaces)
-				return new MeasuredLine(path, lineNumber, "", end - tabs,
+				return new MeasuredLine(fileID, lineNumber, "", end - tabs,
 						tabs - start);
-			return new MeasuredLine(path, lineNumber, restOfLine.substring(
+			return new MeasuredLine(fileID, lineNumber, restOfLine.substring(
 					0, end - tabs - spaces), spaces, tabs - start);
 		}
 		if (start < spaces) {
 			if (end < spaces)
-				return new MeasuredLine(path, lineNumber, "", end - start,
+				return new MeasuredLine(fileID, lineNumber, "", end - start,
 						0);
-			return new MeasuredLine(path, lineNumber, restOfLine.substring(
+			return new MeasuredLine(fileID, lineNumber, restOfLine.substring(
 					0, end - tabs - spaces), 0, spaces);
 		}
-		return new MeasuredLine(path, lineNumber, restOfLine.substring(start
+		return new MeasuredLine(fileID, lineNumber, restOfLine.substring(start
 				- tabs - spaces, end - tabs - spaces), 0, 0);
 	}
 	@Override
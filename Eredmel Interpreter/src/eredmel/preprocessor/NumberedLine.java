@@ -1,6 +1,6 @@
 package eredmel.preprocessor;
 
-import java.nio.file.Path;
+import eredmel.utils.string.StringPool;
 
 /**
  * A line associated with a context in an original file
@@ -15,8 +15,8 @@ public class NumberedLine extends Line<NumberedLine> {
 	/**
 	 * Copies parameters into fields
 	 */
-	NumberedLine(Path path, int lineNumber, String line) {
-		super(path, lineNumber);
+	NumberedLine(int fileID, int lineNumber, String line) {
+		super(fileID, lineNumber);
 		this.line = line;
 	}
 	/**
@@ -26,6 +26,16 @@ public class NumberedLine extends Line<NumberedLine> {
 	 * @return the Measured version of this line
 	 */
 	public MeasuredLine countWhitespace() {
+		return countWhitespace(StringPool.NONE);
+	}
+	/**
+	 * Counts the whitespace before this line, interning the text after it
+	 * 
+	 * @param pool
+	 *        the pool to intern the text after the whitespace in
+	 * @return the Measured version of this line
+	 */
+	public MeasuredLine countWhitespace(StringPool pool) {
 		int spaces = 0, tabs = 0;
 		int i = 0;
 		for (; i < line.length(); i++) {
@@ -35,7 +45,8 @@ public class NumberedLine extends Line<NumberedLine> {
 				tabs++;
 			else break;
 		}
-		return new MeasuredLine(path, tabs, line.substring(i), spaces, tabs);
+		return new MeasuredLine(fileID, lineNumber, pool.intern(line
+				.substring(i)), spaces, tabs);
 	}
 	@Override
 	public String canonicalRepresentation() {
@@ -50,8 +61,12 @@ public class NumberedLine extends Line<NumberedLine> {
 		return line.length();
 	}
 	@Override
+	public void getChars(int start, int end, char[] dst, int dstBegin) {
+		line.getChars(start, end, dst, dstBegin);
+	}
+	@Override
 	public NumberedLine subSequence(int start, int end) {
-		return new NumberedLine(path, lineNumber, line.substring(start, end));
+		return new NumberedLine(fileID, lineNumber, line.substring(start, end));
 	}
 	@Override
 	public int hashCode() {
@@ -0,0 +1,480 @@
+package eredmel.preprocessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import eredmel.config.ConfigSetting;
+import eredmel.config.EredmelConfiguration;
+import eredmel.utils.string.ChunkedCharSequence;
+import eredmel.utils.string.StringPool;
+
+/**
+ * A file of {@link EredmelLine}s whose text is kept in a temporary file rather
+ * than on the heap, for files larger than
+ * {@link ConfigSetting#MEMORY_BUDGET}.
+ *
+ * Like a {@link ColumnarReadFile}, the file id, line number and number of tabs
+ * of each line are stored in parallel arrays. The text is split into pages of
+ * {@link #PAGE_CHARS} characters, which are written out once and read back as
+ * they are needed. The most recently used pages stay resident, as many as fit
+ * in half the budget, and the least recently used page is dropped when
+ * another is read. Pages are addressed by {@code long} positions in the
+ * temporary file, so the text on disk is not limited by the size of an array.
+ *
+ * Slices and concatenations of a paged file are {@link SplicedReadFile}s of
+ * ranges of its lines, so they read its pages rather than copying its text,
+ * and only the lines cut at either end of a slice are held on the heap. A
+ * line is read back into a string only when it is asked for. A file derived
+ * from a paged file, such as the result of a rule, is written out to a new
+ * temporary file as it is built, see {@link Writer}. The columns and the
+ * {@link BlockIndex} of a paged file stay on the heap, costing memory per
+ * line rather than per character.
+ *
+ * Since pages are shared by every slice of the file, which may be read by
+ * several threads, reading a page is synchronized. The temporary file is
+ * deleted when it is closed, or when the virtual machine exits. A paged file
+ * replaced by another derived from it is closed once the new file no longer
+ * reads its pages, see {@link #withinBudget(ReadFile, ReadFile)}.
+ *
+ * @author Kavi Gupta
+ */
+final class PagedReadFile extends ReadFile<EredmelLine> implements
+		Closeable {
+	/**
+	 * The number of characters in a page
+	 */
+	static final int PAGE_CHARS = 1 << 18;
+	private static final int PAGE_BYTES = 2 * PAGE_CHARS;
+	private final Columns columns;
+	private PagedReadFile(Columns columns, EredmelConfiguration config) {
+		super(columns, columns.offsets, config);
+		this.columns = columns;
+	}
+	/**
+	 * Stores the given file in the way its memory budget allows: in columns
+	 * on the heap if it fits within the budget, and paged out to disk if it
+	 * does not.
+	 *
+	 * @param file
+	 *        the file to store
+	 * @return an equivalent file, see {@link ColumnarReadFile#compact}
+	 */
+	static ReadFile<EredmelLine> store(ReadFile<EredmelLine> file) {
+		ReadFile<EredmelLine> stored = withinBudget(file);
+		return stored == file ? ColumnarReadFile.compact(file) : stored;
+	}
+	/**
+	 * Checks whether text of the given length is too large for the memory
+	 * budget of the given configuration
+	 *
+	 * @param length
+	 *        the number of characters in the text
+	 * @param config
+	 *        the configuration, or {@code null} for no budget
+	 * @return whether the text should be paged out
+	 */
+	static boolean overBudget(long length, EredmelConfiguration config) {
+		long budget = budget(config);
+		return budget != 0 && 2 * length > budget;
+	}
+	private static long budget(EredmelConfiguration config) {
+		return config == null ? 0 : (long) config
+				.intValue(ConfigSetting.MEMORY_BUDGET) << 20;
+	}
+	/**
+	 * Pages the given file out to disk if it is over its memory budget
+	 *
+	 * @param file
+	 *        the file to check
+	 * @return a paged file equivalent to {@code file}, or {@code file} itself
+	 *         if it is within its budget, already paged, or cannot be paged
+	 */
+	static ReadFile<EredmelLine> withinBudget(ReadFile<EredmelLine> file) {
+		if (file instanceof PagedReadFile
+				|| !overBudget(file.length(), file.config())) return file;
+		try {
+			return spill(file);
+		} catch (IOException e) {
+			// the file can still be processed on the heap, if it fits
+			return file;
+		}
+	}
+	/**
+	 * Pages the given file out to disk if it is over its memory budget, as
+	 * {@link #withinBudget(ReadFile)} does, closing the paged file it was
+	 * derived from. A file within its budget which reads the pages of the
+	 * previous one is copied onto the heap before it is closed.
+	 *
+	 * @param file
+	 *        the file to check
+	 * @param previous
+	 *        the file it was derived from, which is closed if it is paged, or
+	 *        {@code null}
+	 * @return a file equivalent to {@code file} which does not read the pages
+	 *         of {@code previous}
+	 */
+	static ReadFile<EredmelLine> withinBudget(ReadFile<EredmelLine> file,
+			ReadFile<EredmelLine> previous) {
+		ReadFile<EredmelLine> stored = withinBudget(file);
+		if (!(previous instanceof PagedReadFile) || stored == previous)
+			return stored;
+		if (stored.paged() && !(stored instanceof PagedReadFile))
+			stored = ColumnarReadFile.compact(stored);
+		// a file with a line indented too far for a column still reads the
+		// pages, which are deleted on exit instead
+		if (stored instanceof PagedReadFile || !stored.paged())
+			closeQuietly(previous);
+		return stored;
+	}
+	/**
+	 * Closes the given file if it is paged, as {@link #close()} does,
+	 * ignoring a failure to close it, since its temporary file is deleted
+	 * when the virtual machine exits anyway
+	 *
+	 * @param file
+	 *        the file to close, or {@code null}
+	 */
+	static void closeQuietly(ReadFile<EredmelLine> file) {
+		if (!(file instanceof PagedReadFile)) return;
+		try {
+			((PagedReadFile) file).close();
+		} catch (IOException e) {
+			// the temporary file is deleted on exit
+		}
+	}
+	/**
+	 * Writes the text of the given file out to a temporary file
+	 *
+	 * @param file
+	 *        the file to page out
+	 * @return the paged file
+	 * @throws IOException
+	 *         if the temporary file cannot be written
+	 */
+	static PagedReadFile spill(ReadFile<EredmelLine> file) throws IOException {
+		Writer writer = writer(file.config());
+		try {
+			writer.write(file);
+		} catch (UncheckedIOException e) {
+			writer.abort();
+			throw e.getCause();
+		}
+		return writer.finish();
+	}
+	/**
+	 * Starts writing a paged file out to a new temporary file
+	 *
+	 * @param config
+	 *        the configuration of the file, whose budget decides how many
+	 *        pages stay resident
+	 * @return a writer for the file
+	 * @throws IOException
+	 *         if the temporary file cannot be created
+	 */
+	static Writer writer(EredmelConfiguration config) throws IOException {
+		Path temp = Files.createTempFile("eredmel", ".pages");
+		temp.toFile().deleteOnExit();
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		return new Writer(new Pages(channel, (int) Math.max(2, budget(config)
+				/ 2 / PAGE_BYTES)), config);
+	}
+	@Override
+	boolean paged() {
+		return true;
+	}
+	/**
+	 * Deletes the temporary file holding the text. The file may not be read
+	 * afterwards.
+	 *
+	 * @throws IOException
+	 *         if the temporary file cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		columns.pages.channel.close();
+	}
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length())
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		return columns.pages.charAt(index);
+	}
+	/**
+	 * The chunks of a paged file are its pages
+	 */
+	@Override
+	public int chunkStart(int index) {
+		return index - index % PAGE_CHARS;
+	}
+	@Override
+	public int chunkEnd(int index) {
+		return Math.min(length(), chunkStart(index) + PAGE_CHARS);
+	}
+	@Override
+	public void getChars(int start, int end, char[] dst, int dstBegin) {
+		columns.pages.getChars(start, end, dst, dstBegin);
+	}
+	@Override
+	public String toString() {
+		char[] text = new char[length()];
+		getChars(0, text.length, text, 0);
+		return new String(text);
+	}
+	/**
+	 * Writes a paged file out a line at a time, so that a file over its budget
+	 * is never held on the heap whole. Full pages are written out as soon as
+	 * they are filled, and the text written so far can be read back, through
+	 * the pages written and the page being filled, while the rest is written.
+	 *
+	 * A writer is used by one thread. A failure to write a page is thrown as
+	 * an {@link UncheckedIOException}, as a failure to read one is.
+	 */
+	static final class Writer implements ChunkedCharSequence {
+		private final Pages pages;
+		private final EredmelConfiguration config;
+		private final ByteBuffer buffer = ByteBuffer.allocate(PAGE_BYTES);
+		/**
+		 * The page being filled, which starts at {@link #flushed}
+		 */
+		private final char[] page = new char[PAGE_CHARS];
+		private int[] fileIDs = new int[16], lineNumbers = new int[16],
+				tabs = new int[16], offsets = new int[17];
+		private int size = 0, length = 0, flushed = 0;
+		/**
+		 * The index of the blocks of the lines written, or {@code null} if one
+		 * of the files written had none
+		 */
+		private BlockIndex blocks = BlockIndex.EMPTY;
+		private Writer(Pages pages, EredmelConfiguration config) {
+			this.pages = pages;
+			this.config = config;
+		}
+		/**
+		 * Writes the lines of the given file, keeping the index of the blocks
+		 * written if the file has one
+		 *
+		 * @param file
+		 *        the file to write
+		 */
+		void write(ReadFile<EredmelLine> file) {
+			for (int i = 0; i < file.numLines(); i++)
+				append(file.lineAt(i));
+			blocks = blocks == null || file.blocks == null ? null : blocks
+					.concat(file.blocks);
+		}
+		/**
+		 * Writes a line, after which the index of the blocks is built from
+		 * the lines written when it is needed
+		 *
+		 * @param line
+		 *        the line to write
+		 */
+		void write(EredmelLine line) {
+			append(line);
+			blocks = null;
+		}
+		private void append(EredmelLine line) {
+			if (size == fileIDs.length) {
+				fileIDs = Arrays.copyOf(fileIDs, 2 * size);
+				lineNumbers = Arrays.copyOf(lineNumbers, 2 * size);
+				tabs = Arrays.copyOf(tabs, 2 * size);
+				offsets = Arrays.copyOf(offsets, 2 * size + 1);
+			}
+			fileIDs[size] = line.fileID;
+			lineNumbers[size] = line.lineNumber;
+			tabs[size] = line.tabs();
+			for (int start = 0; start < line.length();) {
+				int fill = length - flushed;
+				int end = Math.min(line.length(), start + PAGE_CHARS - fill);
+				line.getChars(start, end, page, fill);
+				length = Math.addExact(length, end - start);
+				start = end;
+				if (length - flushed == PAGE_CHARS) flush();
+			}
+			offsets[++size] = length;
+		}
+		/**
+		 * Writes out the page being filled, which is only partly filled once
+		 * the file is finished
+		 */
+		private void flush() {
+			buffer.clear();
+			buffer.asCharBuffer().put(page, 0, length - flushed);
+			buffer.limit(2 * (length - flushed));
+			long position = 2L * flushed;
+			try {
+				while (buffer.hasRemaining())
+					position += pages.channel.write(buffer, position);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			flushed = length;
+		}
+		/**
+		 * Finishes the file. The writer may not be used afterwards.
+		 *
+		 * @return the file of the lines written
+		 */
+		PagedReadFile finish() {
+			if (length != flushed) flush();
+			PagedReadFile file = new PagedReadFile(new Columns(Arrays.copyOf(
+					fileIDs, size), Arrays.copyOf(lineNumbers, size),
+					Arrays.copyOf(tabs, size), Arrays.copyOf(offsets, size + 1),
+					pages, EredmelPreprocessor.linePool(config)), config);
+			if (size != 0) file.blocks = blocks;
+			return file;
+		}
+		/**
+		 * Deletes the text written, for a file which will not be finished
+		 */
+		void abort() {
+			try {
+				pages.channel.close();
+			} catch (IOException e) {
+				// the temporary file is deleted on exit
+			}
+		}
+		@Override
+		public int length() {
+			return length;
+		}
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			return index < flushed ? pages.charAt(index) : page[index
+					- flushed];
+		}
+		@Override
+		public int chunkStart(int index) {
+			return index - index % PAGE_CHARS;
+		}
+		@Override
+		public int chunkEnd(int index) {
+			return Math.min(length, chunkStart(index) + PAGE_CHARS);
+		}
+		@Override
+		public void getChars(int start, int end, char[] dst, int dstBegin) {
+			int split = Math.max(start, Math.min(end, flushed));
+			pages.getChars(start, split, dst, dstBegin);
+			if (split < end)
+				System.arraycopy(page, split - flushed, dst, dstBegin + split
+						- start, end - split);
+		}
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			char[] text = new char[end - start];
+			getChars(start, end, text, 0);
+			return new String(text);
+		}
+		@Override
+		public String toString() {
+			return subSequence(0, length).toString();
+		}
+	}
+	/**
+	 * The pages of text which are resident, by index, from the least to the
+	 * most recently used
+	 */
+	private static final class Pages extends LinkedHashMap<Integer, char[]> {
+		private static final long serialVersionUID = 1L;
+		final FileChannel channel;
+		private final int resident;
+		private final ByteBuffer buffer = ByteBuffer.allocate(PAGE_BYTES);
+		Pages(FileChannel channel, int resident) {
+			super(16, 0.75f, true);
+			this.channel = channel;
+			this.resident = resident;
+		}
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+			return size() > resident;
+		}
+		synchronized char charAt(int index) {
+			return page(index / PAGE_CHARS)[index % PAGE_CHARS];
+		}
+		synchronized void getChars(int start, int end, char[] dst,
+				int dstBegin) {
+			while (start < end) {
+				int pageEnd = Math.min(end, start - start % PAGE_CHARS
+						+ PAGE_CHARS);
+				System.arraycopy(page(start / PAGE_CHARS), start % PAGE_CHARS,
+						dst, dstBegin, pageEnd - start);
+				dstBegin += pageEnd - start;
+				start = pageEnd;
+			}
+		}
+		private char[] page(int index) {
+			char[] page = get(index);
+			if (page != null) return page;
+			long position = (long) index * PAGE_BYTES;
+			buffer.clear();
+			try {
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, position + buffer.position());
+					if (read < 0) break;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			buffer.flip();
+			page = new char[PAGE_CHARS];
+			buffer.asCharBuffer().get(page, 0, buffer.remaining() / 2);
+			put(index, page);
+			return page;
+		}
+	}
+	/**
+	 * The columns of a file, which appear as a list of line views
+	 */
+	private static final class Columns extends AbstractList<EredmelLine>
+			implements RandomAccess {
+		/**
+		 * The number of tabs is not limited to a {@code short}, as it is in a
+		 * {@link ColumnarReadFile}, so any file can be paged out
+		 */
+		final int[] fileIDs, lineNumbers, tabs;
+		/**
+		 * The offset of each line in the text, followed by its length
+		 */
+		final int[] offsets;
+		final Pages pages;
+		/**
+		 * The pool the text of each line read is interned in
+		 */
+		final StringPool pool;
+		Columns(int[] fileIDs, int[] lineNumbers, int[] tabs, int[] offsets,
+				Pages pages, StringPool pool) {
+			this.fileIDs = fileIDs;
+			this.lineNumbers = lineNumbers;
+			this.tabs = tabs;
+			this.offsets = offsets;
+			this.pages = pages;
+			this.pool = pool;
+		}
+		@Override
+		public EredmelLine get(int index) {
+			int start = offsets[index] + tabs[index];
+			char[] rest = new char[offsets[index + 1] - start];
+			pages.getChars(start, offsets[index + 1], rest, 0);
+			return new EredmelLine(fileIDs[index], lineNumbers[index],
+					pool.intern(new String(rest)), tabs[index]);
+		}
+		@Override
+		public int size() {
+			return fileIDs.length;
+		}
+	}
+}
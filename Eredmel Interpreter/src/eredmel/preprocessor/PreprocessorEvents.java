@@ -0,0 +1,153 @@
+package eredmel.preprocessor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Flight Recorder events emitted by the preprocessor, so that a recording
+ * attributes the time spent preprocessing to files and {@code replace}
+ * statements.
+ *
+ * Each phase creates its event and calls {@link Event#begin()} before it
+ * starts, then fills in the fields and calls {@link Event#commit()} only if
+ * {@link Event#shouldCommit()}, so nothing but the event itself is computed
+ * when the event is disabled or below its threshold. Since there is an event
+ * for every match, {@code eredmel.ReplaceMatch} is disabled unless a
+ * recording enables it by name.
+ *
+ * The events extend {@code jdk.jfr.Event}, which is not part of the Java 8
+ * API, so the projects target Java 11.
+ *
+ * @author Kavi Gupta
+ */
+final class PreprocessorEvents {
+	private PreprocessorEvents() {}
+	/**
+	 * Reading a file from disk, see
+	 * {@link EredmelPreprocessor#readFile(java.nio.file.Path, eredmel.config.EredmelConfiguration)}
+	 */
+	@Name("eredmel.FileRead")
+	@Label("File Read")
+	@Category({ "Eredmel", "Preprocessor" })
+	@StackTrace(false)
+	static final class FileRead extends Event {
+		@Label("Path")
+		String path;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		@Label("Lines")
+		int lines;
+	}
+	/**
+	 * Normalizing a file, see
+	 * {@link EredmelPreprocessor#normalize(eredmel.preprocessor.ReadFile)}
+	 */
+	@Name("eredmel.Normalize")
+	@Label("Normalize")
+	@Category({ "Eredmel", "Preprocessor" })
+	@StackTrace(false)
+	static final class Normalize extends Event {
+		@Label("Path")
+		String path;
+		@Label("Lines")
+		int lines;
+	}
+	/**
+	 * Resolving an inclusion, and loading and linking the file it includes
+	 */
+	@Name("eredmel.Include")
+	@Label("Include")
+	@Category({ "Eredmel", "Preprocessor" })
+	@Description("Resolving and linking an included file, including the files it includes")
+	@StackTrace(false)
+	static final class Include extends Event {
+		@Label("Path")
+		@Description("The file containing the inclusion statement")
+		String path;
+		@Label("Line")
+		int line;
+		@Label("Included")
+		@Description("The resolved path of the included file")
+		String included;
+		@Label("Characters")
+		@DataAmount
+		long characters;
+	}
+	/**
+	 * Loading and linking a requested file, see
+	 * {@link EredmelPreprocessor#loadFiles(java.util.List, java.util.List, eredmel.config.EredmelConfiguration)}
+	 */
+	@Name("eredmel.Link")
+	@Label("Link")
+	@Category({ "Eredmel", "Preprocessor" })
+	@StackTrace(false)
+	static final class Link extends Event {
+		@Label("Path")
+		String path;
+		@Label("Lines")
+		int lines;
+		@Label("Characters")
+		@DataAmount
+		long characters;
+	}
+	/**
+	 * Compiling the enregex of a {@code replace} statement, see
+	 * {@link ReplaceRule#compile(String)}
+	 */
+	@Name("eredmel.RuleCompile")
+	@Label("Rule Compile")
+	@Category({ "Eredmel", "Preprocessor", "Replace" })
+	@StackTrace(false)
+	static final class RuleCompile extends Event {
+		@Label("Enregex")
+		String enregex;
+		@Label("Cached")
+		@Description("Whether the enregex had already been compiled")
+		boolean cached;
+	}
+	/**
+	 * Finding and rewriting a match of a {@code replace} statement
+	 */
+	@Name("eredmel.ReplaceMatch")
+	@Label("Replace Match")
+	@Category({ "Eredmel", "Preprocessor", "Replace" })
+	@Enabled(false)
+	@StackTrace(false)
+	static final class ReplaceMatch extends Event {
+		@Label("Rule")
+		@Description("The file and line declaring the rule")
+		String rule;
+		@Label("Path")
+		@Description("The file the match originated in")
+		String path;
+		@Label("Line")
+		int line;
+		@Label("Matched")
+		@DataAmount
+		long matched;
+		@Label("Replacement")
+		@DataAmount
+		long replacement;
+	}
+	/**
+	 * Looking up the artifact of a library, see
+	 * {@link LibraryArtifact#loadIfFresh(java.nio.file.Path, java.util.List, eredmel.config.EredmelConfiguration)}
+	 */
+	@Name("eredmel.CacheLookup")
+	@Label("Cache Lookup")
+	@Category({ "Eredmel", "Preprocessor" })
+	@StackTrace(false)
+	static final class CacheLookup extends Event {
+		@Label("Path")
+		String path;
+		@Label("Hit")
+		boolean hit;
+	}
+}
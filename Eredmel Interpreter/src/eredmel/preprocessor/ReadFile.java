@@ -2,11 +2,13 @@ package eredmel.preprocessor;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 import eredmel.config.EredmelConfiguration;
 import eredmel.utils.collections.Pair;
+import eredmel.utils.string.ChunkedCharSequence;
+import eredmel.utils.string.StringPool;
+import eredmel.utils.string.TextHash;
 
 /**
  * 
@@ -22,21 +24,28 @@ import eredmel.utils.collections.Pair;
  * 
  * @author Kavi Gupta
  */
-public class ReadFile<LINE extends Line<?>> implements CharSequence {
+public class ReadFile<LINE extends Line<?>> implements ChunkedCharSequence {
 	/**
 	 * The list of lines, backing a file
 	 */
 	final List<LINE> lines;
 	/**
-	 * The list of the starting offset of the character in the file
+	 * The starting offset of each line in the file, followed by the length of
+	 * the file, or {@code null} if a subclass computes them, see
+	 * {@link #offset(int)}
 	 */
-	final List<Integer> offsets;
+	private final int[] offsets;
 	/**
-	 * The configuration settings of this file. Since
-	 * {@code EredmelConfiguration} is non-immutable and this is, it is private
-	 * and references to it are limited
+	 * The configuration settings of this file. {@code EredmelConfiguration} is
+	 * immutable, so it is shared rather than copied
 	 */
 	private final EredmelConfiguration config;
+	/**
+	 * The index of the blocks of this file, or {@code null} if it has not been
+	 * built yet. Files derived from a file with an index derive their own
+	 * index from it.
+	 */
+	BlockIndex blocks;
 	/**
 	 * A struct constructor that copies the arguments over to the final fields.
 	 * 
@@ -49,23 +58,84 @@ public class ReadFile<LINE extends Line<?>> implements CharSequence {
 	 */
 	ReadFile(List<LINE> lines, EredmelConfiguration config) {
 		this.lines = lines;
-		List<Integer> offsets = new ArrayList<>();
-		int off = 0;
+		int[] offsets = new int[lines.size() + 1];
+		int off = 0, i = 0;
 		for (LINE line : lines) {
-			offsets.add(off);
+			offsets[i++] = off;
 			off += line.length();
 			if (line.length() == 0)
 				throw new IllegalArgumentException(line.toString());
 		}
-		offsets.add(off);
+		offsets[i] = off;
 		this.offsets = offsets;
 		this.config = config;
+		this.blocks = lines.isEmpty() ? BlockIndex.EMPTY : null;
+	}
+	/**
+	 * Creates a file whose offsets have already been computed
+	 * 
+	 * @param offsets
+	 *        the starting offset of each line, followed by the length of the
+	 *        file
+	 */
+	ReadFile(List<LINE> lines, int[] offsets, EredmelConfiguration config) {
+		this.lines = lines;
+		this.offsets = offsets;
+		this.config = config;
+		this.blocks = lines.isEmpty() ? BlockIndex.EMPTY : null;
 	}
 	<T extends Line<T>> ReadFile<T> copyConfig(List<T> lines) {
 		return new ReadFile<T>(lines, config);
 	}
 	public EredmelConfiguration config() {
-		return config.clone();
+		return config;
+	}
+	/**
+	 * Gets the index of the blocks of this file, building it if necessary
+	 * 
+	 * @return the index of the blocks, by line in the <i>current</i>
+	 *         representation
+	 */
+	public BlockIndex blocks() {
+		if (blocks == null) blocks = BlockIndex.of(lines);
+		return blocks;
+	}
+	/**
+	 * Gets the {@link TextHash} of the text of this file. The hash is kept in
+	 * the {@link BlockIndex}, so it is computed once for a file, and then
+	 * maintained through slices, concatenations and replacements in time
+	 * logarithmic in the number of lines, plus the length of any lines cut or
+	 * written.
+	 * 
+	 * @return the hash of {@link #toString()}
+	 */
+	public long contentHash() {
+		return blocks().hash();
+	}
+	/**
+	 * Checks whether this file has the same text as another, by comparing
+	 * their lengths and {@link #contentHash()}es. Files with different text
+	 * are reported equal with a probability of about {@code 2^-61} times their
+	 * length, as the base of the hash is chosen at random for each run.
+	 * 
+	 * @param other
+	 *        the other file
+	 * @return whether the files have the same text
+	 */
+	public boolean contentEquals(ReadFile<?> other) {
+		return length() == other.length()
+				&& contentHash() == other.contentHash();
+	}
+	/**
+	 * Gets the block the given index is in
+	 * 
+	 * @param index
+	 *        the index, in chars, of a location in the file
+	 * @return the line heading the innermost block containing the location,
+	 *         or {@code -1} if it is not in any block
+	 */
+	public int enclosingBlock(int index) {
+		return blocks().parent(lineIndexAt(index));
 	}
 	/**
 	 * Gets the line at the line number in the <i>current</i> representation,
@@ -110,9 +180,151 @@ public class ReadFile<LINE extends Line<?>> implements CharSequence {
 	 * @return the concatenation of this file and other
 	 */
 	public ReadFile<LINE> concat(ReadFile<LINE> other) {
-		ArrayList<LINE> lines = new ArrayList<>(this.lines);
-		lines.addAll(other.lines);
-		return new ReadFile<>(lines, this.config);
+		ReadFile<LINE> result;
+		if (paged() || other.paged()) {
+			result = lineView(SplicedReadFile.join(Arrays.asList(
+					eredmel(this), eredmel(other)), config));
+		} else {
+			ArrayList<LINE> lines = new ArrayList<>(this.lines);
+			lines.addAll(other.lines);
+			result = new ReadFile<>(lines, this.config);
+		}
+		if (this.blocks != null && other.blocks != null)
+			result.blocks = this.blocks.concat(other.blocks);
+		return result;
+	}
+	/**
+	 * Checks whether the text of this file is read from pages on disk, see
+	 * {@link PagedReadFile}. The slices and concatenations of such a file are
+	 * {@link SplicedReadFile}s which read the same pages, rather than files of
+	 * lines copied onto the heap.
+	 *
+	 * @return whether this file, or a file it is a view of, is paged
+	 */
+	boolean paged() {
+		return false;
+	}
+	/**
+	 * Views a file of {@link EredmelLine}s, which only paged files are, as a
+	 * file of this file's type of line
+	 */
+	@SuppressWarnings("unchecked")
+	private static <LINE extends Line<?>> ReadFile<LINE> lineView(
+			ReadFile<EredmelLine> file) {
+		return (ReadFile<LINE>) (ReadFile<?>) file;
+	}
+	/**
+	 * Views a paged file as the file of {@link EredmelLine}s it is
+	 */
+	@SuppressWarnings("unchecked")
+	private static ReadFile<EredmelLine> eredmel(ReadFile<?> file) {
+		return (ReadFile<EredmelLine>) file;
+	}
+	/**
+	 * Gets a range of whole lines of this file, which shares this file's lines
+	 * and offsets rather than copying them, so it takes time logarithmic in
+	 * the size of the file rather than linear in the size of the range
+	 *
+	 * @param start
+	 *        the first line, inclusive
+	 * @param end
+	 *        the last line, exclusive
+	 * @return the lines in the range
+	 */
+	ReadFile<LINE> lineRange(int start, int end) {
+		ReadFile<LINE> range = Range.of(this, start, end);
+		if (blocks != null) range.blocks = blocks.slice(start, end);
+		return range;
+	}
+	/**
+	 * A range of whole lines of a file, whose offsets are those of the file,
+	 * shifted by the offset of the first line in the range
+	 */
+	private static final class Range<LINE extends Line<?>> extends
+			ReadFile<LINE> {
+		private final ReadFile<LINE> file;
+		private final int start, base;
+		private Range(ReadFile<LINE> file, int start, int end) {
+			super(file.lines.subList(start, end), null, file.config);
+			this.file = file;
+			this.start = start;
+			this.base = file.offset(start);
+		}
+		/**
+		 * Gets a range of the given file, referring to the underlying file if
+		 * it is itself a range, so ranges of ranges do not nest
+		 */
+		static <LINE extends Line<?>> Range<LINE> of(ReadFile<LINE> file,
+				int start, int end) {
+			if (!(file instanceof Range)) return new Range<>(file, start, end);
+			Range<LINE> range = (Range<LINE>) file;
+			return new Range<>(range.file, range.start + start, range.start
+					+ end);
+		}
+		@Override
+		int offset(int line) {
+			return file.offset(start + line) - base;
+		}
+		@Override
+		int lineIndexAt(int index) {
+			return file.lineIndexAt(index + base) - start;
+		}
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length())
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			return file.charAt(index + base);
+		}
+		@Override
+		public void getChars(int start, int end, char[] dst, int dstBegin) {
+			file.getChars(start + base, end + base, dst, dstBegin);
+		}
+		/**
+		 * The chunks of a range are those of the file, cut to the range
+		 */
+		@Override
+		public int chunkStart(int index) {
+			return Math.max(0, file.chunkStart(index + base) - base);
+		}
+		@Override
+		public int chunkEnd(int index) {
+			return Math.min(length(), file.chunkEnd(index + base) - base);
+		}
+		@Override
+		boolean paged() {
+			return file.paged();
+		}
+	}
+	/**
+	 * Concatenates the given files, with the given configuration
+	 * 
+	 * @param files
+	 *        the files to concatenate
+	 * @return the concatenation of the files
+	 */
+	static <LINE extends Line<?>> ReadFile<LINE> concat(
+			List<ReadFile<LINE>> files, EredmelConfiguration config) {
+		BlockIndex blocks = BlockIndex.EMPTY;
+		boolean paged = false;
+		for (ReadFile<LINE> file : files) {
+			paged |= file.paged();
+			blocks = blocks == null || file.blocks == null ? null : blocks
+					.concat(file.blocks);
+		}
+		ReadFile<LINE> result;
+		if (paged) {
+			List<ReadFile<EredmelLine>> parts = new ArrayList<>();
+			for (ReadFile<LINE> file : files)
+				parts.add(eredmel(file));
+			result = lineView(SplicedReadFile.join(parts, config));
+		} else {
+			ArrayList<LINE> lines = new ArrayList<>();
+			for (ReadFile<LINE> file : files)
+				lines.addAll(file.lines);
+			result = new ReadFile<>(lines, config);
+		}
+		if (result.numLines() != 0) result.blocks = blocks;
+		return result;
 	}
 	/**
 	 * Replaces the given file with a string representation and returns a file
@@ -147,16 +359,20 @@ public class ReadFile<LINE extends Line<?>> implements CharSequence {
 				i++;
 		}
 		double scale = (double) orReprLines.size() / replWithLines.size();
+		StringPool pool = EredmelPreprocessor.linePool(replThis.config);
 		ArrayList<EredmelLine> replThisLines = new ArrayList<>();
 		for (int i = 0; i < replWithLines.size(); i++) {
 			EredmelLine origReprLine = orReprLines.get((int) (scale * i));
-			EredmelLine replWithLine = new NumberedLine(origReprLine.path,
+			EredmelLine replWithLine = new NumberedLine(origReprLine.fileID,
 					origReprLine.lineNumber, replWithLines.get(i))
-					.countWhitespace().applyTabwidth(
-							replThis.config.tabwidth());
+					.countWhitespace(pool).applyTabwidth(
+							replThis.config.tabwidth(), pool);
 			replThisLines.add(replWithLine);
 		}
-		return new ReadFile<>(replThisLines, replThis.config);
+		ReadFile<EredmelLine> replaced = new ReadFile<>(replThisLines,
+				replThis.config);
+		replaced.blocks();
+		return replaced;
 	}
 	/**
 	 * Gets the line and column numbers associated with the given index
@@ -166,13 +382,33 @@ public class ReadFile<LINE extends Line<?>> implements CharSequence {
 	 * @return (line, col)
 	 */
 	private Pair<Integer, Integer> lineCol(int index) {
-		int line = Collections.binarySearch(offsets, index);
-		if (line < 0) {
-			// not exact match. If -line-1 is the insertion point, then
-			// -line-2 is the line it's in
-			line = -line - 2;
-		}
-		return Pair.getInstance(line, index - offsets.get(line));
+		int line = lineIndexAt(index);
+		return Pair.getInstance(line, index - offset(line));
+	}
+	/**
+	 * Gets the offset at which the given line starts
+	 * 
+	 * @param line
+	 *        the index of the line, or {@link #numLines()} for the end of the
+	 *        file
+	 * @return the index, in chars, of the start of the line
+	 */
+	int offset(int line) {
+		return offsets[line];
+	}
+	/**
+	 * Gets the index of the line containing the given index
+	 * 
+	 * @param index
+	 *        the index, in chars, of the location in the file being searched
+	 * @return the index of the line, or {@link #numLines()} for the end of
+	 *         the file
+	 */
+	int lineIndexAt(int index) {
+		int line = Arrays.binarySearch(offsets, index);
+		// not exact match. If -line-1 is the insertion point, then
+		// -line-2 is the line it's in
+		return line >= 0 ? line : -line - 2;
 	}
 	/**
 	 * Gets part of a line
@@ -209,34 +445,69 @@ public class ReadFile<LINE extends Line<?>> implements CharSequence {
 	}
 	@Override
 	public int length() {
-		return offsets.get(lines.size());
+		return offset(lines.size());
+	}
+	/**
+	 * The chunks of a file are its lines
+	 */
+	@Override
+	public int chunkStart(int index) {
+		return offset(lineIndexAt(index));
+	}
+	@Override
+	public int chunkEnd(int index) {
+		return offset(lineIndexAt(index) + 1);
+	}
+	@Override
+	public void getChars(int start, int end, char[] dst, int dstBegin) {
+		for (int line = lineIndexAt(start); start < end; line++) {
+			int lineStart = offset(line);
+			int lineEnd = Math.min(end, offset(line + 1));
+			lines.get(line).getChars(start - lineStart, lineEnd - lineStart,
+					dst, dstBegin);
+			dstBegin += lineEnd - start;
+			start = lineEnd;
+		}
 	}
 	@Override
 	public ReadFile<LINE> subSequence(int start, int end) {
 		Pair<Integer, Integer> stLC = lineCol(start), endLC = lineCol(end);
+		ReadFile<LINE> slice;
 		if (stLC.key.intValue() == endLC.key.intValue()) {
 			if (stLC.value.intValue() == endLC.value.intValue())
 				return new ReadFile<>(new ArrayList<>(), config);
-			return new ReadFile<>(Arrays.asList(subLine(stLC.key,
+			slice = new ReadFile<>(Arrays.asList(subLine(stLC.key,
 					stLC.value, endLC.value)), config);
+		} else {
+			LINE first = subLine(stLC.key, stLC.value);
+			LINE last = endLC.value.equals(0) ? null : subLine(endLC.key, 0,
+					endLC.value);
+			if (paged()) {
+				// the whole lines are a range of the pages
+				slice = lineView(SplicedReadFile.slice(eredmel(this),
+						(EredmelLine) first, stLC.key + 1, endLC.key,
+						(EredmelLine) last));
+			} else {
+				List<LINE> lines = new ArrayList<>();
+				lines.add(first);
+				lines.addAll(this.lines.subList(stLC.key + 1, endLC.key));
+				if (last != null) lines.add(last);
+				slice = new ReadFile<>(lines, config);
+			}
+		}
+		if (blocks != null) {
+			// only the lines at either end of the slice have been cut
+			int last = slice.numLines() - 1;
+			slice.blocks = blocks.slice(stLC.key, stLC.key + last + 1)
+					.set(0, slice.lineAt(0)).set(last, slice.lineAt(last));
 		}
-		List<LINE> lines = new ArrayList<>();
-		lines.add(subLine(stLC.key, stLC.value));
-		lines.addAll(this.lines.subList(stLC.key + 1, endLC.key));
-		if (!endLC.value.equals(0))
-			lines.add(subLine(endLC.key, 0, endLC.value));
-		return new ReadFile<>(lines, config);
+		return slice;
 	}
 	@Override
 	public String toString() {
-		char[] c = new char[length()];
-		for (int i = 0; i < length(); i++) {
-			c[i] = charAt(i);
-		}
-		return new String(c);
-		// return lines.stream().map(Line::toString)
-		// .collect(Collectors.reducing("", (x, y) -> x + y));
-		// LOWPRI performance improvement possibility here; replace +
-		// concatenation with a StringBuilder
+		StringBuilder text = new StringBuilder(length());
+		for (LINE line : lines)
+			text.append(line);
+		return text.toString();
 	}
 }
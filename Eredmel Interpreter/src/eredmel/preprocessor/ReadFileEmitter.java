@@ -0,0 +1,264 @@
+package eredmel.preprocessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes preprocessed files out as UTF-8, straight from their lines.
+ *
+ * Lines are encoded into direct buffers, which are taken from a pool shared
+ * by every emitter, and written to the channel a batch at a time with a
+ * gathering write. Indentation is copied from runs of tabs or spaces encoded
+ * once, rather than built as a string for every line.
+ *
+ * The {@link SourceMap} of the output can be built in the same pass, from the
+ * origin of each line and the number of characters written for it, so that
+ * its offsets are those of the output whichever indentation is written.
+ *
+ * @author Kavi Gupta
+ */
+public final class ReadFileEmitter {
+	/**
+	 * How the indentation of each line is written out
+	 */
+	public enum Indentation {
+		/**
+		 * One tab per level
+		 */
+		TABS,
+		/**
+		 * {@link eredmel.config.ConfigSetting#TABWIDTH} spaces per level
+		 */
+		SPACES;
+	}
+	private static final int BUFFER_SIZE = 1 << 16;
+	/**
+	 * The number of buffers filled before they are written out together
+	 */
+	private static final int BATCH_SIZE = 16;
+	/**
+	 * The number of free buffers kept for reuse
+	 */
+	private static final int POOL_SIZE = 4 * BATCH_SIZE;
+	/**
+	 * The longest encoding of a single character in UTF-8
+	 */
+	private static final int MAX_CHAR_BYTES = 4;
+	private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+	private static final byte[] TAB_RUN = run('\t'), SPACE_RUN = run(' ');
+	private final FileChannel channel;
+	private final byte[] indentRun;
+	private final int indentWidth;
+	private final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+	private int batched = 0;
+	private ByteBuffer current;
+	/**
+	 * The source map of the output, if one is being built
+	 */
+	private final SourceMap.Builder origins;
+	/**
+	 * A high surrogate not yet written out, or 0
+	 */
+	private char high = 0;
+	private ReadFileEmitter(FileChannel channel, Indentation indentation,
+			int tabwidth, SourceMap.Builder origins) {
+		this.channel = channel;
+		this.origins = origins;
+		this.indentRun = indentation == Indentation.TABS ? TAB_RUN : SPACE_RUN;
+		this.indentWidth = indentation == Indentation.TABS ? 1 : tabwidth;
+		this.current = acquire();
+	}
+	/**
+	 * Writes a file out to the given path, replacing anything already there
+	 *
+	 * @param file
+	 *        the file to write
+	 * @param indentation
+	 *        how to write out indentation
+	 * @param out
+	 *        the path to write to
+	 * @throws IOException
+	 *         if the file cannot be written
+	 */
+	public static void emit(ReadFile<EredmelLine> file,
+			Indentation indentation, Path out) throws IOException {
+		try (FileChannel channel = FileChannel.open(out,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			emit(file, indentation, channel);
+		}
+	}
+	/**
+	 * Writes a file out to the given channel, at its current position
+	 *
+	 * @param file
+	 *        the file to write
+	 * @param indentation
+	 *        how to write out indentation
+	 * @param channel
+	 *        the channel to write to, which is left open
+	 * @throws IOException
+	 *         if the file cannot be written
+	 */
+	public static void emit(ReadFile<EredmelLine> file,
+			Indentation indentation, FileChannel channel) throws IOException {
+		emit(file, indentation, channel, null);
+	}
+	/**
+	 * Writes a file out to the given path, replacing anything already there,
+	 * and its source map to {@link SourceMap#sidecarOf(Path)}
+	 *
+	 * @param file
+	 *        the file to write
+	 * @param indentation
+	 *        how to write out indentation
+	 * @param out
+	 *        the path to write to
+	 * @return the source map of the output, which maps offsets of characters
+	 *         in the output
+	 * @throws IOException
+	 *         if the file or its source map cannot be written
+	 */
+	public static SourceMap emitMapped(ReadFile<EredmelLine> file,
+			Indentation indentation, Path out) throws IOException {
+		SourceMap.Builder origins = new SourceMap.Builder();
+		try (FileChannel channel = FileChannel.open(out,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			emit(file, indentation, channel, origins);
+		}
+		SourceMap map = origins.build();
+		map.write(SourceMap.sidecarOf(out));
+		return map;
+	}
+	private static void emit(ReadFile<EredmelLine> file,
+			Indentation indentation, FileChannel channel,
+			SourceMap.Builder origins) throws IOException {
+		int tabwidth = file.config() == null ? 0 : file.config().tabwidth();
+		ReadFileEmitter emitter = new ReadFileEmitter(channel, indentation,
+				tabwidth, origins);
+		try {
+			for (EredmelLine line : file.lines)
+				emitter.line(line);
+			emitter.flush();
+		} finally {
+			emitter.release();
+		}
+	}
+	private void line(EredmelLine line) throws IOException {
+		if (line.tabs() != 0) unpaired();
+		for (int n = line.tabs() * indentWidth; n > 0;) {
+			if (!current.hasRemaining()) next();
+			int count = Math.min(n, Math.min(indentRun.length,
+					current.remaining()));
+			current.put(indentRun, 0, count);
+			n -= count;
+		}
+		String text = line.restOfLine();
+		for (int i = 0; i < text.length(); i++)
+			encode(text.charAt(i));
+		if (origins != null)
+			origins.add(line.fileID, line.lineNumber, line.tabs()
+					* indentWidth + text.length());
+	}
+	/**
+	 * Encodes a single character. A high surrogate is held back until the
+	 * next character, which may be at the start of the next line, as a pair can
+	 * be split across the lines of a spliced file.
+	 */
+	private void encode(char c) throws IOException {
+		if (current.remaining() < MAX_CHAR_BYTES) next();
+		if (high != 0) {
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				high = 0;
+				current.put((byte) (0xF0 | cp >> 18));
+				current.put((byte) (0x80 | cp >> 12 & 0x3F));
+				current.put((byte) (0x80 | cp >> 6 & 0x3F));
+				current.put((byte) (0x80 | cp & 0x3F));
+				return;
+			}
+			unpaired();
+			if (current.remaining() < MAX_CHAR_BYTES) next();
+		}
+		if (c < 0x80) {
+			current.put((byte) c);
+		} else if (c < 0x800) {
+			current.put((byte) (0xC0 | c >> 6));
+			current.put((byte) (0x80 | c & 0x3F));
+		} else if (Character.isHighSurrogate(c)) {
+			high = c;
+		} else if (Character.isSurrogate(c)) {
+			// unpaired, as String.getBytes does
+			current.put((byte) '?');
+		} else {
+			current.put((byte) (0xE0 | c >> 12));
+			current.put((byte) (0x80 | c >> 6 & 0x3F));
+			current.put((byte) (0x80 | c & 0x3F));
+		}
+	}
+	/**
+	 * Writes out a held back high surrogate, if any, as unpaired
+	 */
+	private void unpaired() throws IOException {
+		if (high == 0) return;
+		high = 0;
+		if (!current.hasRemaining()) next();
+		current.put((byte) '?');
+	}
+	/**
+	 * Adds the current buffer to the batch, writing out the batch if it is
+	 * full, and starts a new buffer
+	 */
+	private void next() throws IOException {
+		batch[batched++] = current;
+		current = null;
+		if (batched == BATCH_SIZE) writeBatch();
+		current = acquire();
+	}
+	private void flush() throws IOException {
+		unpaired();
+		if (current.position() != 0) {
+			batch[batched++] = current;
+			current = null;
+		}
+		writeBatch();
+	}
+	private void writeBatch() throws IOException {
+		for (int i = 0; i < batched; i++)
+			batch[i].flip();
+		while (batched != 0 && batch[batched - 1].hasRemaining())
+			channel.write(batch, 0, batched);
+		for (int i = 0; i < batched; i++) {
+			free(batch[i]);
+			batch[i] = null;
+		}
+		batched = 0;
+	}
+	private void release() {
+		for (int i = 0; i < batched; i++)
+			free(batch[i]);
+		if (current != null) free(current);
+		current = null;
+		batched = 0;
+	}
+	private static ByteBuffer acquire() {
+		ByteBuffer buffer = POOL.poll();
+		return buffer == null ? ByteBuffer.allocateDirect(BUFFER_SIZE) : buffer;
+	}
+	private static void free(ByteBuffer buffer) {
+		buffer.clear();
+		// the size check races, so the pool may briefly grow a little larger
+		if (POOL.size() < POOL_SIZE) POOL.offer(buffer);
+	}
+	private static byte[] run(char c) {
+		byte[] run = new byte[256];
+		Arrays.fill(run, (byte) c);
+		return run;
+	}
+}
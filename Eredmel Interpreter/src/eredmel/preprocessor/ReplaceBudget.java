@@ -0,0 +1,336 @@
+package eredmel.preprocessor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import eredmel.config.ConfigSetting;
+import eredmel.config.EredmelConfiguration;
+import eredmel.logger.EredmelMessage;
+import eredmel.utils.string.TextHash;
+
+/**
+ * The limits on how much work the {@code replace} rules of a file may do, so
+ * that a rule which feeds itself cannot run forever.
+ *
+ * Each rule may make {@link ConfigSetting#REPLACE_RULE_STEPS} rewrites, and
+ * the whole file {@link ConfigSetting#REPLACE_FILE_STEPS} rewrites, taking
+ * {@link ConfigSetting#REPLACE_TIME} milliseconds and growing by a factor of
+ * {@link ConfigSetting#REPLACE_GROWTH}.
+ *
+ * A rule only ever matches the text after its last rewrite, so if that text
+ * repeats, the rule will rewrite it the same way forever. The text is
+ * identified by its {@link TextHash} and length, which are updated from the
+ * rewritten region alone, and a rule is stopped as soon as they repeat.
+ *
+ * When a limit is reached, a message pointing to the rule is logged. A rule
+ * that exceeds its own limits is not applied further; if the limits of the
+ * file are exceeded, no more rules are applied.
+ *
+ * A rule may be applied to several parts of a file at once, each with its own
+ * {@link #part(CharSequence) Run}. The parts count their own rewrites and
+ * growth, and take nothing from the budget until they are
+ * {@link #commit(List) committed} together. If applying the rule to the whole
+ * file in order would have reached a limit, the parts are discarded, and the
+ * rule is applied to the whole file again in order, so the result does not
+ * depend on how the parts were scheduled.
+ *
+ * @author Kavi Gupta
+ */
+final class ReplaceBudget {
+	/**
+	 * The length below which files are treated as this length when limiting
+	 * growth
+	 */
+	private static final long MIN_GROWTH_BASE = 1 << 16;
+	private final int ruleSteps, fileSteps, growth, time;
+	private final long maxLength;
+	private final long deadline;
+	private final boolean timed;
+	private int fileStepsTaken = 0;
+	private boolean exhausted = false;
+	private ReplaceRule rule;
+	private int ruleStepsTaken = 0;
+	private boolean ruleStopped = false;
+	/**
+	 * Whether any limit has been reached, by the whole file or by a rule
+	 */
+	private boolean limited = false;
+	/**
+	 * The length of the whole file, as the current rule rewrites it
+	 */
+	private long length = 0;
+	/**
+	 * Starts the budget of a file
+	 *
+	 * @param config
+	 *        the configuration holding the limits
+	 * @param initialLength
+	 *        the length of the file before replacement
+	 */
+	ReplaceBudget(EredmelConfiguration config, int initialLength) {
+		this.ruleSteps = config.intValue(ConfigSetting.REPLACE_RULE_STEPS);
+		this.fileSteps = config.intValue(ConfigSetting.REPLACE_FILE_STEPS);
+		this.growth = config.intValue(ConfigSetting.REPLACE_GROWTH);
+		this.maxLength = growth == 0 ? Long.MAX_VALUE : growth
+				* Math.max(initialLength, MIN_GROWTH_BASE);
+		this.time = config.intValue(ConfigSetting.REPLACE_TIME);
+		this.timed = time != 0;
+		this.deadline = System.nanoTime() + time * 1_000_000L;
+	}
+	/**
+	 * @return whether a limit of the whole file has been reached, so no more
+	 *         rules should be applied
+	 */
+	boolean exhausted() {
+		return exhausted;
+	}
+	/**
+	 * @return whether any limit has been reached since the budget was
+	 *         started, either by the whole file or by one of its rules
+	 */
+	boolean limited() {
+		return limited;
+	}
+	/**
+	 * Starts the budget of a rule. This must not be called while the previous
+	 * rule is being applied.
+	 *
+	 * @param rule
+	 *        the rule being applied
+	 * @param fileLength
+	 *        the length of the file it is applied to
+	 */
+	void startRule(ReplaceRule rule, int fileLength) {
+		this.rule = rule;
+		ruleStepsTaken = 0;
+		ruleStopped = false;
+		length = fileLength;
+	}
+	/**
+	 * Starts tracking the application of the current rule to a part of the
+	 * file, which no match can extend out of
+	 *
+	 * @param text
+	 *        the part of the file
+	 * @return the tracker for the part
+	 */
+	Run run(CharSequence text) {
+		return new Run(text, false);
+	}
+	/**
+	 * Starts tracking the application of the current rule to one of several
+	 * parts of the file it is applied to at once, which no match can extend
+	 * out of. This may be called from any thread, but not at the same time as
+	 * {@link #commit(List)} or a sequential {@link Run}.
+	 *
+	 * @param text
+	 *        the part of the file
+	 * @return the tracker for the part, which stops the rule, without logging
+	 *         anything, wherever applying the rule to the whole file might
+	 *         have reached a limit
+	 */
+	Run part(CharSequence text) {
+		return new Run(text, true);
+	}
+	/**
+	 * Takes the rewrites made to the parts of a file from the budget, if
+	 * applying the rule to the whole file in order would have made the same
+	 * rewrites
+	 *
+	 * @param parts
+	 *        the trackers of every part of the file, in order
+	 * @return whether the parts were committed. If they were not, nothing is
+	 *         taken from the budget, and the rule should be applied to the
+	 *         whole file in order instead.
+	 */
+	boolean commit(List<Run> parts) {
+		long steps = 0, grown = 0;
+		for (Run part : parts) {
+			if (part.overran || length + grown + part.peak > maxLength)
+				return false;
+			steps += part.steps;
+			grown += part.grown;
+		}
+		if (steps > stepsLeft() || !distinct(parts)) return false;
+		ruleStepsTaken += steps;
+		fileStepsTaken += steps;
+		length += grown;
+		return true;
+	}
+	/**
+	 * Checks that the texts left to match after each rewrite of the parts
+	 * would be distinct as texts of the whole file, as they are within each
+	 * part. A part does not check its own text before its first rewrite,
+	 * since the text of the whole file at that point starts with the end of
+	 * the part before it.
+	 */
+	private static boolean distinct(List<Run> parts) {
+		Set<Long> seen = new HashSet<>();
+		// the text of the parts after the current one, before any rewrite
+		long suffix = TextHash.EMPTY;
+		int suffixLength = 0;
+		for (int i = parts.size() - 1; i >= 0; i--) {
+			Run part = parts.get(i);
+			for (int j = 0; j < part.steps; j++)
+				if (!seen.add(key(TextHash.concat(part.hashes[j], suffix,
+						suffixLength), part.lengths[j] + suffixLength)))
+					return false;
+			suffix = TextHash.concat(part.initialHash, suffix, suffixLength);
+			suffixLength += part.initialLength;
+		}
+		return seen.add(key(suffix, suffixLength));
+	}
+	/**
+	 * @return the number of rewrites the current rule may still make
+	 */
+	private int stepsLeft() {
+		int left = Integer.MAX_VALUE;
+		if (ruleSteps != 0) left = Math.min(left, ruleSteps - ruleStepsTaken);
+		if (fileSteps != 0) left = Math.min(left, fileSteps - fileStepsTaken);
+		return left;
+	}
+	private boolean exhaust(ConfigSetting limit, int value) {
+		limited = true;
+		if (!exhausted)
+			EredmelMessage.replaceLimitExceeded(limit, value, rule.path(),
+					rule.lineNumber).log();
+		exhausted = true;
+		return false;
+	}
+	private boolean stopRule(EredmelMessage message) {
+		limited = true;
+		if (!ruleStopped) message.log();
+		ruleStopped = true;
+		return false;
+	}
+	private static Long key(long hash, int length) {
+		return hash * 31 + length;
+	}
+	/**
+	 * Tracks the application of the current rule to a part of the file
+	 */
+	final class Run {
+		/**
+		 * The hash and length of the text the rule has yet to match
+		 */
+		private long hash;
+		private int length;
+		/**
+		 * The texts the rule has been applied to, as combinations of their
+		 * hashes and lengths
+		 */
+		private final Set<Long> seen = new HashSet<>();
+		/**
+		 * Whether this tracks one of several parts of the file, see
+		 * {@link ReplaceBudget#part(CharSequence)}
+		 */
+		private final boolean part;
+		/**
+		 * For a part, the hash and length of the part before any rewrite
+		 */
+		private final long initialHash;
+		private final int initialLength;
+		/**
+		 * For a part, the rewrites made, and how much the part has grown, in
+		 * total and at most
+		 */
+		private int steps = 0;
+		private long grown = 0, peak = 0;
+		/**
+		 * For a part, the hash and length of the text left to match after each
+		 * rewrite
+		 */
+		private long[] hashes = new long[0];
+		private int[] lengths = new int[0];
+		/**
+		 * Whether a part was stopped where the whole file might have reached a
+		 * limit
+		 */
+		private boolean overran = false;
+		private Run(CharSequence text, boolean part) {
+			// a file keeps its hash in its block index
+			this.hash = text instanceof ReadFile ? ((ReadFile<?>) text)
+					.contentHash() : TextHash.of(text);
+			this.length = text.length();
+			this.part = part;
+			this.initialHash = hash;
+			this.initialLength = length;
+			// see distinct
+			if (!part) seen.add(key(hash, length));
+		}
+		/**
+		 * Checks whether the rule may make another rewrite, having found a
+		 * match
+		 *
+		 * @return whether the rule may rewrite the match
+		 */
+		boolean mayRewrite() {
+			if (part) {
+				if (steps >= stepsLeft() || timed
+						&& System.nanoTime() - deadline > 0) return overrun();
+				return true;
+			}
+			if (exhausted || ruleStopped) return false;
+			if (fileSteps != 0 && fileStepsTaken >= fileSteps)
+				return exhaust(ConfigSetting.REPLACE_FILE_STEPS, fileSteps);
+			if (timed && System.nanoTime() - deadline > 0)
+				return exhaust(ConfigSetting.REPLACE_TIME, time);
+			if (ruleSteps != 0 && ruleStepsTaken >= ruleSteps)
+				return stopRule(EredmelMessage.replaceLimitExceeded(
+						ConfigSetting.REPLACE_RULE_STEPS, ruleSteps,
+						rule.path(), rule.lineNumber));
+			return true;
+		}
+		/**
+		 * Records a rewrite, where the text {@code before} has its first
+		 * {@code end} characters replaced by {@code replaced}
+		 *
+		 * @param before
+		 *        the text the rule matched in
+		 * @param end
+		 *        the end of the match
+		 * @param replaced
+		 *        the text the start of {@code before} was replaced by
+		 * @return whether the rule may look for another match
+		 */
+		boolean rewrote(CharSequence before, int end, CharSequence replaced) {
+			int rest = length - end;
+			long restHash = TextHash.removePrefix(hash,
+					TextHash.of(before, 0, end), rest);
+			hash = TextHash.concat(TextHash.of(replaced), restHash, rest);
+			int growth = replaced.length() - end;
+			length += growth;
+			if (part) {
+				if (steps == hashes.length) {
+					hashes = Arrays.copyOf(hashes, Math.max(16, 2 * steps));
+					lengths = Arrays.copyOf(lengths, hashes.length);
+				}
+				hashes[steps] = hash;
+				lengths[steps] = length;
+				steps++;
+				grown += growth;
+				peak = Math.max(peak, grown);
+				// the part alone may show that the file would grow too much
+				if (ReplaceBudget.this.length + peak > maxLength
+						|| !seen.add(key(hash, length))) return overrun();
+				return true;
+			}
+			ruleStepsTaken++;
+			fileStepsTaken++;
+			ReplaceBudget.this.length += growth;
+			if (ReplaceBudget.this.length > maxLength)
+				return exhaust(ConfigSetting.REPLACE_GROWTH,
+						ReplaceBudget.this.growth);
+			if (!seen.add(key(hash, length)))
+				return stopRule(EredmelMessage.replaceCycle(ruleStepsTaken,
+						rule.path(), rule.lineNumber));
+			return true;
+		}
+		private boolean overrun() {
+			overran = true;
+			return false;
+		}
+	}
+}
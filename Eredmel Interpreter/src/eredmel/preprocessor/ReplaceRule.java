@@ -0,0 +1,263 @@
+package eredmel.preprocessor;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import eredmel.regex.EnregexType;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+
+/**
+ * A {@code replace} or {@code replacelit} statement, along with the line it
+ * was declared at.
+ *
+ * @author Kavi Gupta
+ */
+final class ReplaceRule {
+	/**
+	 * How far apart in a file the text a rule matches can be
+	 */
+	enum Locality {
+		/**
+		 * The rule never matches a newline, so each line can be processed on
+		 * its own
+		 */
+		LINE,
+		/**
+		 * The rule only matches a newline followed by a tab, so it never
+		 * matches the end of an unindented block, and each such block can be
+		 * processed on its own
+		 */
+		BLOCK,
+		/**
+		 * The rule may match any text, and depend on the text before the
+		 * match, so the file must be processed as a whole
+		 */
+		FILE;
+	}
+	/**
+	 * The escapes that match neither a newline nor a position depending on
+	 * what is outside the line, apart from escaped punctuation and
+	 * backreferences
+	 */
+	private static final String LOCAL_ESCAPES = "tfaerSwdVhbBkE";
+	/**
+	 * The kind of enregex rules are compiled as, which defines their quotes
+	 * and parentheses
+	 */
+	static final EnregexType TYPE = EnregexType.EREDMEL_STANDARD;
+	/**
+	 * The number of compiled enregexes kept
+	 */
+	static final int COMPILED_CAPACITY = 1024;
+	/**
+	 * The enregexes compiled most recently, by source, guarded by itself
+	 */
+	private static final CompiledCache COMPILED = new CompiledCache();
+	/**
+	 * The enregex matching the text to replace
+	 */
+	final Pattern enregex;
+	/**
+	 * The replacement, with {@code \t} and {@code \n} already interpreted if
+	 * it is not literal
+	 */
+	final String replacement;
+	/**
+	 * Whether the replacement is inserted literally, rather than as a regex
+	 * replacement string
+	 */
+	final boolean lit;
+	/**
+	 * The {@link FileRegistry} id of the file the rule was declared in
+	 */
+	final int fileID;
+	/**
+	 * The line the rule was declared at
+	 */
+	final int lineNumber;
+	/**
+	 * How far apart the text matched by {@link #enregex} can be
+	 */
+	final Locality locality;
+	/**
+	 * Whether {@link #enregex} uses enhanced constructs, whose matches depend
+	 * on the quotes and parentheses of the text, see {@link SyntaxIndex}
+	 */
+	final boolean enhanced;
+	private ReplaceRule(Pattern enregex, Locality locality, boolean enhanced,
+			String replacement, boolean lit, int fileID, int lineNumber) {
+		this.enregex = enregex;
+		this.locality = locality;
+		this.enhanced = enhanced;
+		this.replacement = replacement;
+		this.lit = lit;
+		this.fileID = fileID;
+		this.lineNumber = lineNumber;
+	}
+	/**
+	 * Reads a rule from a match of {@link EredmelPreprocessor#REPLACE}
+	 *
+	 * @param findRepl
+	 *        the match
+	 * @param in
+	 *        the file it was found in
+	 * @return the rule matched
+	 */
+	static ReplaceRule of(Matcher findRepl, ReadFile<EredmelLine> in) {
+		String source = findRepl.group("enregex");
+		boolean lit = findRepl.group("lit") != null
+				&& findRepl.group("lit").equals("lit");
+		String replace = findRepl.group("repl");
+		if (!lit)
+			replace = replace.replace("\\t", "\t").replace("\\n", "\n");
+		EredmelLine origin = in.lineAt(in.lineIndexAt(findRepl.start()));
+		return new ReplaceRule(compile(source), localityOf(source),
+				source.indexOf('~') >= 0, replace, lit, origin.fileID,
+				origin.lineNumber);
+	}
+	/**
+	 * Compiles the enregex of a rule, reusing the compiled enregex if the same
+	 * source has been compiled recently. A library is typically included by
+	 * many files, so its rules are met many times. Only the
+	 * {@link #COMPILED_CAPACITY} most recently used enregexes are kept.
+	 *
+	 * @param source
+	 *        the source of the enregex
+	 * @return the compiled enregex
+	 */
+	static Pattern compile(String source) {
+		PreprocessorEvents.RuleCompile event = new PreprocessorEvents.RuleCompile();
+		event.begin();
+		Pattern compiled;
+		synchronized (COMPILED) {
+			compiled = COMPILED.get(source);
+		}
+		boolean cached = compiled != null;
+		if (!cached) {
+			// compiled outside the lock, so other enregexes can be looked up
+			compiled = Pattern.compile(source, Pattern.ENHANCED_REGEX
+					| Pattern.COMMENTS, TYPE);
+			synchronized (COMPILED) {
+				Pattern raced = COMPILED.putIfAbsent(source, compiled);
+				if (raced != null) compiled = raced;
+			}
+		}
+		if (event.shouldCommit()) {
+			event.enregex = source;
+			event.cached = cached;
+			event.commit();
+		}
+		return compiled;
+	}
+	/**
+	 * The compiled enregexes, from the least to the most recently used, which
+	 * drops the least recently used beyond {@link #COMPILED_CAPACITY}
+	 */
+	private static final class CompiledCache extends
+			LinkedHashMap<String, Pattern> {
+		private static final long serialVersionUID = 1L;
+		CompiledCache() {
+			super(16, 0.75f, true);
+		}
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+			return size() > COMPILED_CAPACITY;
+		}
+	}
+	/**
+	 * Conservatively determines how far apart the text matched by an enregex
+	 * can be, from its source. Any construct that could match a newline,
+	 * anchor to the start or end of the input, or look behind the match makes
+	 * the enregex {@link Locality#FILE}, except for a {@code \n} immediately
+	 * followed by a {@code \t} which must match at least once, which makes it
+	 * {@link Locality#BLOCK}.
+	 * Enhanced constructs, which begin with {@code ~}, depend on the text
+	 * before the match, so are also {@link Locality#FILE}.
+	 *
+	 * @param source
+	 *        the source of the enregex, which is compiled in comments mode
+	 * @return the locality of the enregex
+	 */
+	static Locality localityOf(String source) {
+		boolean block = false;
+		int classDepth = 0;
+		for (int i = 0; i < source.length(); i++) {
+			char c = source.charAt(i);
+			if ("~^$\n".indexOf(c) >= 0) return Locality.FILE;
+			// a range in a class starting below a newline could contain one
+			if (classDepth > 0 && c < '\n') return Locality.FILE;
+			if (c == '[') {
+				classDepth++;
+			} else if (c == ']') {
+				if (classDepth > 0) classDepth--;
+			} else if (c == '(' && source.startsWith("?", i + 1)) {
+				if (source.startsWith("<=", i + 2)
+						|| source.startsWith("<!", i + 2))
+					return Locality.FILE; // lookbehind
+				// flags, which could enable dotall
+				for (int f = i + 2; f < source.length(); f++) {
+					char flag = source.charAt(f);
+					if (flag == 's') return Locality.FILE;
+					if (!Character.isLetter(flag) && flag != '-') break;
+				}
+			} else if (c == '\\') {
+				if (++i == source.length()) return Locality.FILE;
+				char escaped = source.charAt(i);
+				if (escaped == 'n') {
+					if (classDepth > 0 || !followedByTab(source, i + 1))
+						return Locality.FILE;
+					block = true;
+				} else if (classDepth > 0 && (escaped == 't' || escaped == 'a')) {
+					return Locality.FILE;
+				} else if (Character.isLetterOrDigit(escaped)
+						&& LOCAL_ESCAPES.indexOf(escaped) < 0
+						&& (escaped < '1' || escaped > '9'))
+					return Locality.FILE;
+			}
+		}
+		return block ? Locality.BLOCK : Locality.LINE;
+	}
+	/**
+	 * Whether the next token at the given index, ignoring whitespace, is a
+	 * {@code \t} which must match at least once, that is, which has no
+	 * quantifier, or one with a minimum of at least one
+	 */
+	private static boolean followedByTab(String source, int i) {
+		i = skipSpace(source, i);
+		if (!source.startsWith("\\t", i)) return false;
+		i = skipSpace(source, i + 2);
+		if (i == source.length()) return true;
+		char quantifier = source.charAt(i);
+		if (quantifier == '*' || quantifier == '?') return false;
+		if (quantifier != '{') return true;
+		// {n}, {n,} and {n,m} have a minimum of n, which is at least one if
+		// any of its digits is not zero
+		for (i++; i < source.length() && Character.isDigit(source.charAt(i)); i++)
+			if (source.charAt(i) != '0') return true;
+		return false;
+	}
+	private static int skipSpace(String source, int i) {
+		while (i < source.length() && Character.isWhitespace(source.charAt(i)))
+			i++;
+		return i;
+	}
+	/**
+	 * @param replacer
+	 *        a match of {@link #enregex}
+	 * @return the text to replace the match with
+	 */
+	String replacementFor(Matcher replacer) {
+		if (lit) return replacement;
+		StringBuffer sbRepl = new StringBuffer();
+		replacer.appendReplacement(sbRepl, replacement, false, true);
+		return sbRepl.toString();
+	}
+	/**
+	 * @return the path of the file the rule was declared in
+	 */
+	Path path() {
+		return FileRegistry.pathOf(fileID);
+	}
+}
@@ -0,0 +1,308 @@
+package eredmel.preprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eredmel.utils.io.IOUtils;
+
+/**
+ * Records each rewrite made by
+ * {@link EredmelPreprocessor#applyReplaces(ReadFile)}, for debugging
+ * {@code replace} statements.
+ *
+ * A trace is either a ring, which keeps the last steps in memory, or a file,
+ * which records every step in a compact binary form that
+ * {@link #read(Path)} reads back. At most one trace is active at a time; it is
+ * started with {@link #start()} and stopped with {@link #close()}. The
+ * replacer reads the active trace once each time it applies a rule, and
+ * checks it against {@code null} at each rewrite, so nothing is recorded, or
+ * computed for the record, while no trace is active. A rule which read the
+ * trace before it was closed may still report steps afterwards, which are
+ * ignored.
+ *
+ * Rules applied to parts of a file in parallel record their steps from
+ * several threads, so the order of steps from different parts is not
+ * defined.
+ *
+ * @author Kavi Gupta
+ */
+public final class ReplaceTrace implements Closeable {
+	private static final int MAGIC = 0x45445254; // "EDRT"
+	private static final int PATH = 0, STEP = 1;
+	/**
+	 * The trace being recorded to, or {@code null} if there is none
+	 */
+	private static volatile ReplaceTrace active;
+	/**
+	 * A rewrite made by a rule
+	 */
+	public static final class Step {
+		/**
+		 * The file declaring the rule
+		 */
+		public final Path rulePath;
+		/**
+		 * The line declaring the rule
+		 */
+		public final int ruleLine;
+		/**
+		 * The start of the match, in the text the rule was applied to, or in
+		 * the part of it the match was found in if the rule was applied to
+		 * parts in parallel
+		 */
+		public final int start;
+		/**
+		 * The end of the match, exclusive
+		 */
+		public final int end;
+		/**
+		 * The text the match was replaced with
+		 */
+		public final String replacement;
+		/**
+		 * The file the matched text originated in
+		 */
+		public final Path originPath;
+		/**
+		 * The line the matched text originated in
+		 */
+		public final int originLine;
+		Step(Path rulePath, int ruleLine, int start, int end,
+				String replacement, Path originPath, int originLine) {
+			this.rulePath = rulePath;
+			this.ruleLine = ruleLine;
+			this.start = start;
+			this.end = end;
+			this.replacement = replacement;
+			this.originPath = originPath;
+			this.originLine = originLine;
+		}
+		@Override
+		public String toString() {
+			return String.format("%s:%s [%s, %s) from %s:%s -> %s", rulePath,
+					ruleLine, start, end, originPath, originLine, replacement);
+		}
+	}
+	/**
+	 * The last steps, if this is a ring
+	 */
+	private final Step[] ring;
+	private long recorded = 0;
+	/**
+	 * Whether this trace has been closed, after which steps are ignored
+	 */
+	private boolean closed = false;
+	/**
+	 * The file written to, if this is a file trace
+	 */
+	private final DataOutputStream out;
+	/**
+	 * The index in the trace file of each file id written
+	 */
+	private final Map<Integer, Integer> pathIndices = new HashMap<>();
+	private ReplaceTrace(Step[] ring, DataOutputStream out) {
+		this.ring = ring;
+		this.out = out;
+	}
+	/**
+	 * Creates a trace which keeps the last steps in memory
+	 *
+	 * @param capacity
+	 *        the number of steps kept
+	 * @return the trace, which is not yet active
+	 */
+	public static ReplaceTrace ring(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		return new ReplaceTrace(new Step[capacity], null);
+	}
+	/**
+	 * Creates a trace which writes every step to the given file
+	 *
+	 * @param file
+	 *        the file to write to, which is overwritten
+	 * @return the trace, which is not yet active
+	 * @throws IOException
+	 *         if the file cannot be opened
+	 */
+	public static ReplaceTrace toFile(Path file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(file)));
+		out.writeInt(MAGIC);
+		return new ReplaceTrace(null, out);
+	}
+	/**
+	 * Makes this trace the active one
+	 *
+	 * @return this trace
+	 * @throws IllegalStateException
+	 *         if another trace is active
+	 */
+	public ReplaceTrace start() {
+		synchronized (ReplaceTrace.class) {
+			if (active != null)
+				throw new IllegalStateException("A trace is already active");
+			active = this;
+		}
+		return this;
+	}
+	/**
+	 * Stops this trace if it is active, and closes its file if it has one.
+	 * Steps reported afterwards are ignored.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (ReplaceTrace.class) {
+			if (active == this) active = null;
+		}
+		synchronized (this) {
+			closed = true;
+			if (out != null) out.close();
+		}
+	}
+	/**
+	 * @return the active trace, or {@code null} if there is none
+	 */
+	static ReplaceTrace active() {
+		return active;
+	}
+	/**
+	 * Records a rewrite, unless this trace has been closed
+	 *
+	 * @param rule
+	 *        the rule that made it
+	 * @param start
+	 *        the start of the match
+	 * @param match
+	 *        the matched text
+	 * @param replacement
+	 *        the text it was replaced with
+	 */
+	void record(ReplaceRule rule, int start, ReadFile<EredmelLine> match,
+			String replacement) {
+		int originFile = match.numLines() == 0 ? rule.fileID : match
+				.lineAt(0).fileID;
+		int originLine = match.numLines() == 0 ? rule.lineNumber : match
+				.lineAt(0).lineNumber;
+		int end = start + match.length();
+		synchronized (this) {
+			if (closed) return;
+			if (ring != null) {
+				ring[(int) (recorded++ % ring.length)] = new Step(rule.path(),
+						rule.lineNumber, start, end, replacement,
+						FileRegistry.pathOf(originFile), originLine);
+				return;
+			}
+			try {
+				int ruleIndex = pathIndex(rule.fileID);
+				int originIndex = pathIndex(originFile);
+				out.writeByte(STEP);
+				IOUtils.writeVarint(out, ruleIndex);
+				IOUtils.writeVarint(out, rule.lineNumber);
+				IOUtils.writeVarint(out, start);
+				IOUtils.writeVarint(out, end - start);
+				IOUtils.writeVarint(out, originIndex);
+				IOUtils.writeVarint(out, originLine);
+				byte[] bytes = replacement.getBytes(StandardCharsets.UTF_8);
+				IOUtils.writeVarint(out, bytes.length);
+				out.write(bytes);
+				recorded++;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	/**
+	 * Writes the path of the given file the first time it is used
+	 */
+	private int pathIndex(int fileID) throws IOException {
+		Integer index = pathIndices.get(fileID);
+		if (index != null) return index;
+		index = pathIndices.size();
+		pathIndices.put(fileID, index);
+		out.writeByte(PATH);
+		out.writeUTF(FileRegistry.pathOf(fileID).toString());
+		return index;
+	}
+	/**
+	 * @return the number of steps recorded, including those which have
+	 *         since been dropped from a ring
+	 */
+	public synchronized long recorded() {
+		return recorded;
+	}
+	/**
+	 * Gets the steps kept by a ring trace
+	 *
+	 * @return the last steps, from the oldest to the newest
+	 * @throws IllegalStateException
+	 *         if this trace writes to a file
+	 */
+	public synchronized List<Step> steps() {
+		if (ring == null)
+			throw new IllegalStateException("The trace is written to a file");
+		int kept = (int) Math.min(recorded, ring.length);
+		List<Step> steps = new ArrayList<>(kept);
+		for (long i = recorded - kept; i < recorded; i++)
+			steps.add(ring[(int) (i % ring.length)]);
+		return steps;
+	}
+	/**
+	 * Reads a trace file
+	 *
+	 * @param file
+	 *        the file written by a trace from {@link #toFile(Path)}
+	 * @return the steps recorded, in order
+	 * @throws IOException
+	 *         if the file cannot be read, or is not a trace file
+	 */
+	public static List<Step> read(Path file) throws IOException {
+		List<Step> steps = new ArrayList<>();
+		List<Path> paths = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a trace file");
+			while (true) {
+				int tag;
+				try {
+					tag = in.readByte();
+				} catch (EOFException e) {
+					return steps;
+				}
+				if (tag == PATH) {
+					paths.add(Paths.get(in.readUTF()));
+				} else if (tag == STEP) {
+					Path rulePath = paths.get(IOUtils.readVarint(in));
+					int ruleLine = IOUtils.readVarint(in);
+					int start = IOUtils.readVarint(in);
+					int end = start + IOUtils.readVarint(in);
+					Path originPath = paths.get(IOUtils.readVarint(in));
+					int originLine = IOUtils.readVarint(in);
+					byte[] bytes = new byte[IOUtils.readVarint(in)];
+					in.readFully(bytes);
+					steps.add(new Step(rulePath, ruleLine, start, end,
+							new String(bytes, StandardCharsets.UTF_8),
+							originPath, originLine));
+				} else {
+					throw new IOException("Unknown record " + tag + " in "
+							+ file);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package eredmel.preprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eredmel.utils.io.IOUtils;
+
+/**
+ * A map from offsets in a processed file back to the path and line of the
+ * original source they came from.
+ *
+ * The map is a sorted table of intervals of the processed file, where
+ * adjacent lines from the same original line (such as those produced by a
+ * replacement) share a single interval. An offset is looked up by binary
+ * search, so the lines of the processed file need not be kept in memory.
+ * Files are referred to by their {@link FileRegistry} ids in memory; on disk,
+ * the table is delta-encoded and refers to a table of the paths it uses.
+ * {@link ReadFileEmitter#emitMapped} builds the map of a file as it writes the
+ * file out, and stores it beside the output.
+ *
+ * The offsets need not be of characters: a {@link LibraryArtifact} stores the
+ * origins of the lines of a library as a map of line indices, with a table
+ * of paths of its own.
+ *
+ * @author Kavi Gupta
+ */
+public final class SourceMap {
+	private static final int MAGIC = 0x45444D53; // "EDMS"
+	private static final int VERSION = 1;
+	/**
+	 * The starting offset of each interval, in increasing order
+	 */
+	private final int[] starts;
+	/**
+	 * The {@link FileRegistry} id of the file of each interval
+	 */
+	private final int[] files;
+	/**
+	 * The original line number of each interval
+	 */
+	private final int[] lines;
+	/**
+	 * The length of the processed file
+	 */
+	private final int length;
+	private SourceMap(int[] starts, int[] files, int[] lines, int length) {
+		this.starts = starts;
+		this.files = files;
+		this.lines = lines;
+		this.length = length;
+	}
+	/**
+	 * Creates the source map of the given file
+	 *
+	 * @param file
+	 *        the processed file
+	 * @return a map from offsets in the file to the origins of its lines
+	 */
+	public static SourceMap of(ReadFile<?> file) {
+		Builder builder = new Builder();
+		for (Line<?> line : file.lines)
+			builder.add(line.fileID, line.lineNumber, line.length());
+		return builder.build();
+	}
+	/**
+	 * Gets the sidecar file a source map for the given output is stored in
+	 *
+	 * @param output
+	 *        the processed output file
+	 * @return the path of its source map
+	 */
+	public static Path sidecarOf(Path output) {
+		return output.resolveSibling(output.getFileName() + ".edmmap");
+	}
+	/**
+	 * @return the length of the processed file
+	 */
+	public int length() {
+		return length;
+	}
+	/**
+	 * @return the number of intervals in this map
+	 */
+	public int size() {
+		return starts.length;
+	}
+	/**
+	 * Gets the original file of the given offset
+	 *
+	 * @param offset
+	 *        an offset in the processed file
+	 * @return the path of the file it came from
+	 */
+	public Path pathAt(int offset) {
+		return FileRegistry.pathOf(files[intervalAt(offset)]);
+	}
+	/**
+	 * Gets the original line of the given offset
+	 *
+	 * @param offset
+	 *        an offset in the processed file
+	 * @return the line number it came from
+	 */
+	public int lineAt(int offset) {
+		return lines[intervalAt(offset)];
+	}
+	/**
+	 * Gets the original file of the given offset
+	 *
+	 * @param offset
+	 *        an offset in the processed file
+	 * @return the {@link FileRegistry} id of the file it came from
+	 */
+	int fileIDAt(int offset) {
+		return files[intervalAt(offset)];
+	}
+	/**
+	 * Finds the interval containing the given offset
+	 *
+	 * @param offset
+	 *        an offset in the processed file
+	 * @return the index of the interval
+	 */
+	private int intervalAt(int offset) {
+		if (offset < 0 || offset >= length)
+			throw new IndexOutOfBoundsException(String.format(
+					"Offset %s out of [0, %s)", offset, length));
+		int interval = Arrays.binarySearch(starts, offset);
+		// not exact match. If -interval-1 is the insertion point, then
+		// -interval-2 is the interval it's in
+		return interval >= 0 ? interval : -interval - 2;
+	}
+	/**
+	 * Writes this map to the given file
+	 *
+	 * @param sidecar
+	 *        the file to write to
+	 * @throws IOException
+	 *         if there was an error writing the file
+	 */
+	public void write(Path sidecar) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(sidecar)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			// registry ids only mean something in this session, so each
+			// file is written as an index into a table of paths
+			Map<Integer, Integer> indices = new HashMap<>();
+			List<Path> paths = new ArrayList<>();
+			for (int file : files)
+				if (!indices.containsKey(file)) {
+					indices.put(file, paths.size());
+					paths.add(FileRegistry.pathOf(file));
+				}
+			out.writeInt(paths.size());
+			for (Path path : paths)
+				out.writeUTF(path.toString());
+			write(out, indices);
+		}
+	}
+	/**
+	 * Writes the intervals of this map, referring to each file by its index
+	 * in a table of paths written elsewhere
+	 *
+	 * @param out
+	 *        the stream to write to
+	 * @param indices
+	 *        the index of each {@link FileRegistry} id in the table of paths
+	 * @throws IOException
+	 *         if there was an error writing the stream
+	 */
+	void write(DataOutputStream out, Map<Integer, Integer> indices)
+			throws IOException {
+		out.writeInt(starts.length);
+		out.writeInt(length);
+		for (int i = 0; i < starts.length; i++) {
+			IOUtils.writeVarint(out, i == 0 ? starts[i] : starts[i]
+					- starts[i - 1]);
+			IOUtils.writeVarint(out, indices.get(files[i]));
+			IOUtils.writeVarint(out, zigzag(i == 0 ? lines[i] : lines[i]
+					- lines[i - 1]));
+		}
+	}
+	/**
+	 * Reads a map written by {@link #write(Path)}
+	 *
+	 * @param sidecar
+	 *        the file to read from
+	 * @return the map stored in the file
+	 * @throws IOException
+	 *         if there was an error reading the file, or it is not a source map
+	 */
+	public static SourceMap read(Path sidecar) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(sidecar)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(sidecar + " is not a source map");
+			int[] fileIDs = new int[in.readInt()];
+			for (int i = 0; i < fileIDs.length; i++)
+				fileIDs[i] = FileRegistry.idOf(Paths.get(in.readUTF()));
+			return read(in, fileIDs);
+		}
+	}
+	/**
+	 * Reads the intervals of a map written by
+	 * {@link #write(DataOutputStream, Map)}
+	 *
+	 * @param in
+	 *        the stream to read from
+	 * @param fileIDs
+	 *        the {@link FileRegistry} id of each file in the table of paths
+	 * @return the map
+	 * @throws IOException
+	 *         if there was an error reading the stream, or it refers to a
+	 *         file not in the table
+	 */
+	static SourceMap read(DataInputStream in, int[] fileIDs)
+			throws IOException {
+		int size = in.readInt();
+		int length = in.readInt();
+		if (size < 0 || length < 0)
+			throw new IOException("The source map is corrupt");
+		// the tables grow as they are read, since a corrupt size is only
+		// noticed at the end of the stream
+		int capacity = Math.min(size, 1 << 10);
+		int[] starts = new int[capacity], files = new int[capacity];
+		int[] lines = new int[capacity];
+		for (int i = 0; i < size; i++) {
+			if (i == capacity) {
+				capacity = (int) Math.min(size, 2L * capacity);
+				starts = Arrays.copyOf(starts, capacity);
+				files = Arrays.copyOf(files, capacity);
+				lines = Arrays.copyOf(lines, capacity);
+			}
+			starts[i] = IOUtils.readVarint(in) + (i == 0 ? 0 : starts[i - 1]);
+			files[i] = IOUtils.readVarint(in);
+			lines[i] = unzigzag(IOUtils.readVarint(in))
+					+ (i == 0 ? 0 : lines[i - 1]);
+			if (files[i] >= fileIDs.length)
+				throw new IOException("The source map is corrupt");
+			files[i] = fileIDs[files[i]];
+		}
+		return new SourceMap(starts, files, lines, length);
+	}
+	private static int zigzag(int value) {
+		return value << 1 ^ value >> 31;
+	}
+	private static int unzigzag(int value) {
+		return value >>> 1 ^ -(value & 1);
+	}
+	/**
+	 * Accumulates a source map line by line, as the processed file is built.
+	 */
+	public static final class Builder {
+		private int[] starts = new int[16], files = new int[16],
+				lines = new int[16];
+		private int size, length;
+		/**
+		 * Adds the next span of the processed file
+		 *
+		 * @param fileID
+		 *        the {@link FileRegistry} id of the file it came from
+		 * @param lineNumber
+		 *        the line it came from
+		 * @param spanLength
+		 *        its length in the processed file
+		 * @return this builder
+		 */
+		public Builder add(int fileID, int lineNumber, int spanLength) {
+			if (spanLength == 0) return this;
+			if (size == 0 || files[size - 1] != fileID
+					|| lines[size - 1] != lineNumber) {
+				if (size == starts.length) {
+					starts = Arrays.copyOf(starts, size * 2);
+					files = Arrays.copyOf(files, size * 2);
+					lines = Arrays.copyOf(lines, size * 2);
+				}
+				starts[size] = length;
+				files[size] = fileID;
+				lines[size] = lineNumber;
+				size++;
+			}
+			length += spanLength;
+			return this;
+		}
+		/**
+		 * @return the map of every span added so far
+		 */
+		public SourceMap build() {
+			return new SourceMap(Arrays.copyOf(starts, size), Arrays.copyOf(
+					files, size), Arrays.copyOf(lines, size), length);
+		}
+	}
+}
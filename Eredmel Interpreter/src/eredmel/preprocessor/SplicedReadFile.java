@@ -0,0 +1,365 @@
+package eredmel.preprocessor;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import eredmel.config.EredmelConfiguration;
+
+/**
+ * A file made of parts of other files, such as a file with the files it
+ * includes spliced into it.
+ *
+ * The parts are referenced rather than copied, so a library included by many
+ * files is held in memory once, and each file including it costs memory
+ * proportional to its own lines and the number of its inclusions. Lines and
+ * offsets are found by looking up the part containing them, then asking that
+ * part.
+ *
+ * The index of the blocks of a spliced file is spliced from those of its parts,
+ * if they have been built. Slices and concatenations of a spliced file are
+ * ordinary files of its lines, unless one of its parts is paged out, see
+ * {@link PagedReadFile}, in which case they are spliced files of ranges of
+ * its parts, so the paged text is never copied onto the heap.
+ *
+ * @author Kavi Gupta
+ */
+final class SplicedReadFile extends ReadFile<EredmelLine> {
+	private final Parts parts;
+	private final boolean paged;
+	private SplicedReadFile(Parts parts, EredmelConfiguration config) {
+		super(parts, null, config);
+		this.parts = parts;
+		this.paged = Arrays.stream(parts.files).anyMatch(ReadFile::paged);
+	}
+	/**
+	 * Splices the given files together
+	 *
+	 * @param files
+	 *        the files to splice, which must not be modified afterwards
+	 * @param config
+	 *        the configuration of the spliced file
+	 * @return the spliced file
+	 */
+	@SuppressWarnings("unchecked")
+	static SplicedReadFile of(List<ReadFile<EredmelLine>> files,
+			EredmelConfiguration config) {
+		SplicedReadFile spliced = new SplicedReadFile(new Parts(files.stream()
+				.filter(file -> file.numLines() != 0)
+				.toArray(ReadFile[]::new)), config);
+		BlockIndex blocks = BlockIndex.EMPTY;
+		for (ReadFile<EredmelLine> file : spliced.parts.files)
+			blocks = blocks == null || file.blocks == null ? null : blocks
+					.concat(file.blocks);
+		spliced.blocks = blocks;
+		return spliced;
+	}
+	/**
+	 * Splices the given files together, splicing in the parts of any spliced
+	 * file rather than the file itself, so spliced files do not nest
+	 *
+	 * @param files
+	 *        the files to splice
+	 * @param config
+	 *        the configuration of the spliced file
+	 * @return the spliced file
+	 */
+	static SplicedReadFile join(List<ReadFile<EredmelLine>> files,
+			EredmelConfiguration config) {
+		List<ReadFile<EredmelLine>> parts = new ArrayList<>();
+		for (ReadFile<EredmelLine> file : files)
+			addRange(file, 0, file.numLines(), parts);
+		return of(parts, config);
+	}
+	/**
+	 * Gets a slice of the given file, made of a line cut from it, a range of
+	 * its whole lines, and another line cut from it
+	 *
+	 * @param file
+	 *        the file to slice
+	 * @param first
+	 *        the first line of the slice
+	 * @param start
+	 *        the first whole line, inclusive
+	 * @param end
+	 *        the last whole line, exclusive
+	 * @param last
+	 *        the last line of the slice, or {@code null} if the slice ends
+	 *        with a whole line
+	 * @return the slice, whose lines between the cut lines are a range of
+	 *         {@code file}
+	 */
+	static SplicedReadFile slice(ReadFile<EredmelLine> file,
+			EredmelLine first, int start, int end, EredmelLine last) {
+		List<ReadFile<EredmelLine>> parts = new ArrayList<>();
+		parts.add(new ReadFile<>(Arrays.asList(first), file.config()));
+		addRange(file, start, end, parts);
+		if (last != null)
+			parts.add(new ReadFile<>(Arrays.asList(last), file.config()));
+		return of(parts, file.config());
+	}
+	/**
+	 * Adds a range of whole lines of the given file to a list of parts to
+	 * splice, adding the ranges of the parts of a spliced file rather than a
+	 * range of the spliced file itself, so splicing ranges of spliced files
+	 * does not nest them
+	 *
+	 * @param file
+	 *        the file the range is of
+	 * @param start
+	 *        the first line, inclusive
+	 * @param end
+	 *        the last line, exclusive
+	 * @param parts
+	 *        the parts to add to
+	 */
+	static void addRange(ReadFile<EredmelLine> file, int start, int end,
+			List<ReadFile<EredmelLine>> parts) {
+		addRange(file, start, end, 0, 0, parts);
+	}
+	/**
+	 * Adds a range of whole lines of the given file to a list of parts to
+	 * splice, as {@link #addRange(ReadFile, int, int, List)} does, shifting
+	 * the line numbers of the lines from one file, such as those after an
+	 * edit to it
+	 *
+	 * @param fileID
+	 *        the {@link FileRegistry} id of the file whose lines are shifted
+	 * @param shift
+	 *        the amount to shift their line numbers by
+	 */
+	static void addRange(ReadFile<EredmelLine> file, int start, int end,
+			int fileID, int shift, List<ReadFile<EredmelLine>> parts) {
+		if (start == end) return;
+		if (file instanceof Renumbered) {
+			Renumbered renumbered = (Renumbered) file;
+			// shifts of the same file are combined, rather than nested
+			if (shift == 0 || renumbered.fileID == fileID) {
+				addRange(renumbered.file, start, end, renumbered.fileID,
+						renumbered.shift + shift, parts);
+				return;
+			}
+		}
+		if (!(file instanceof SplicedReadFile)) {
+			ReadFile<EredmelLine> range = start == 0
+					&& end == file.numLines() ? file : file.lineRange(start,
+					end);
+			parts.add(shift == 0 ? range : new Renumbered(range, fileID,
+					shift));
+			return;
+		}
+		Parts spliced = ((SplicedReadFile) file).parts;
+		for (int part = spliced.partOfLine(start); part < spliced.files.length
+				&& spliced.lineStarts[part] < end; part++) {
+			int partStart = spliced.lineStarts[part];
+			int partEnd = spliced.lineStarts[part + 1];
+			addRange(spliced.files[part], Math.max(start, partStart)
+					- partStart, Math.min(end, partEnd) - partStart, fileID,
+					shift, parts);
+		}
+	}
+	/**
+	 * Shifts the line numbers of the lines of the given file from one file
+	 *
+	 * @param file
+	 *        the file to renumber
+	 * @param fileID
+	 *        the {@link FileRegistry} id of the file whose lines are shifted
+	 * @param shift
+	 *        the amount to shift their line numbers by
+	 * @return a file of the same text, referring to the lines of
+	 *         {@code file}
+	 */
+	static ReadFile<EredmelLine> renumber(ReadFile<EredmelLine> file,
+			int fileID, int shift) {
+		if (shift == 0) return file;
+		List<ReadFile<EredmelLine>> parts = new ArrayList<>();
+		addRange(file, 0, file.numLines(), fileID, shift, parts);
+		return parts.size() == 1 ? parts.get(0) : of(parts, file.config());
+	}
+	@Override
+	int offset(int line) {
+		if (line == parts.size()) return length();
+		int part = parts.partOfLine(line);
+		return parts.charStarts[part]
+				+ parts.files[part].offset(line - parts.lineStarts[part]);
+	}
+	@Override
+	int lineIndexAt(int index) {
+		if (index >= length()) return parts.size();
+		int part = parts.partOfChar(index);
+		return parts.lineStarts[part]
+				+ parts.files[part].lineIndexAt(index - parts.charStarts[part]);
+	}
+	@Override
+	public int length() {
+		return parts.charStarts[parts.files.length];
+	}
+	@Override
+	public char charAt(int index) {
+		if (index >= length())
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		int part = parts.partOfChar(index);
+		return parts.files[part].charAt(index - parts.charStarts[part]);
+	}
+	/**
+	 * The chunks of a spliced file are those of its parts
+	 */
+	@Override
+	public int chunkStart(int index) {
+		int part = parts.partOfChar(index);
+		return parts.charStarts[part]
+				+ parts.files[part].chunkStart(index - parts.charStarts[part]);
+	}
+	@Override
+	public int chunkEnd(int index) {
+		int part = parts.partOfChar(index);
+		return parts.charStarts[part]
+				+ parts.files[part].chunkEnd(index - parts.charStarts[part]);
+	}
+	@Override
+	public void getChars(int start, int end, char[] dst, int dstBegin) {
+		for (int part = parts.partOfChar(start); start < end; part++) {
+			int partStart = parts.charStarts[part];
+			int partEnd = Math.min(end, parts.charStarts[part + 1]);
+			parts.files[part].getChars(start - partStart, partEnd - partStart,
+					dst, dstBegin);
+			dstBegin += partEnd - start;
+			start = partEnd;
+		}
+	}
+	@Override
+	boolean paged() {
+		return paged;
+	}
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder(length());
+		for (ReadFile<EredmelLine> file : parts.files)
+			text.append(file);
+		return text.toString();
+	}
+	/**
+	 * A file whose lines from one file have their line numbers shifted, and
+	 * whose text and offsets are those of the underlying file
+	 */
+	private static final class Renumbered extends ReadFile<EredmelLine> {
+		final ReadFile<EredmelLine> file;
+		final int fileID, shift;
+		Renumbered(ReadFile<EredmelLine> file, int fileID, int shift) {
+			super(new Lines(file.lines, fileID, shift), null, file.config());
+			this.file = file;
+			this.fileID = fileID;
+			this.shift = shift;
+			this.blocks = file.blocks;
+		}
+		@Override
+		int offset(int line) {
+			return file.offset(line);
+		}
+		@Override
+		int lineIndexAt(int index) {
+			return file.lineIndexAt(index);
+		}
+		@Override
+		public char charAt(int index) {
+			return file.charAt(index);
+		}
+		@Override
+		public void getChars(int start, int end, char[] dst, int dstBegin) {
+			file.getChars(start, end, dst, dstBegin);
+		}
+		@Override
+		public int chunkStart(int index) {
+			return file.chunkStart(index);
+		}
+		@Override
+		public int chunkEnd(int index) {
+			return file.chunkEnd(index);
+		}
+		@Override
+		boolean paged() {
+			return file.paged();
+		}
+		@Override
+		public String toString() {
+			return file.toString();
+		}
+		/**
+		 * The lines of a file, with the line numbers of those from one file
+		 * shifted
+		 */
+		private static final class Lines extends AbstractList<EredmelLine>
+				implements RandomAccess {
+			private final List<EredmelLine> lines;
+			private final int fileID, shift;
+			Lines(List<EredmelLine> lines, int fileID, int shift) {
+				this.lines = lines;
+				this.fileID = fileID;
+				this.shift = shift;
+			}
+			@Override
+			public EredmelLine get(int index) {
+				EredmelLine line = lines.get(index);
+				if (line.fileID != fileID) return line;
+				return new EredmelLine(fileID, line.lineNumber + shift,
+						line.restOfLine(), line.tabs());
+			}
+			@Override
+			public int size() {
+				return lines.size();
+			}
+		}
+	}
+	/**
+	 * The parts of a file, which appear as a list of their lines
+	 */
+	private static final class Parts extends AbstractList<EredmelLine>
+			implements RandomAccess {
+		final ReadFile<EredmelLine>[] files;
+		/**
+		 * The index of the first line of each part, followed by the number of
+		 * lines
+		 */
+		final int[] lineStarts;
+		/**
+		 * The offset of the first character of each part, followed by the
+		 * length of the file
+		 */
+		final int[] charStarts;
+		Parts(ReadFile<EredmelLine>[] files) {
+			this.files = files;
+			this.lineStarts = new int[files.length + 1];
+			this.charStarts = new int[files.length + 1];
+			for (int i = 0; i < files.length; i++) {
+				lineStarts[i + 1] = lineStarts[i] + files[i].numLines();
+				charStarts[i + 1] = charStarts[i] + files[i].length();
+			}
+		}
+		int partOfLine(int line) {
+			return partOf(lineStarts, line);
+		}
+		int partOfChar(int index) {
+			return partOf(charStarts, index);
+		}
+		/**
+		 * Finds the part containing an index, given the starts of the parts,
+		 * which are distinct since no part is empty
+		 */
+		private int partOf(int[] starts, int index) {
+			int part = Arrays.binarySearch(starts, 0, files.length, index);
+			return part >= 0 ? part : -part - 2;
+		}
+		@Override
+		public EredmelLine get(int index) {
+			int part = partOfLine(index);
+			return files[part].lineAt(index - lineStarts[part]);
+		}
+		@Override
+		public int size() {
+			return lineStarts[files.length];
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package eredmel.preprocessor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import eredmel.regex.EnregexType;
+import eredmel.regex.SymbolPair;
+import eredmel.utils.string.ChunkCursor;
+
+/**
+ * The quote state and parenthesis depth at every position of a text, as the
+ * enhanced regex anchors {@code ~(}, {@code ~)}, {@code ~'} and {@code ~^'}
+ * define them, so that each check takes constant time rather than a scan from
+ * the start of the text.
+ *
+ * The quotes and parentheses are the {@link SymbolPair}s of an
+ * {@link EnregexType}. A quote or parenthesis character preceded by an
+ * unescaped {@code \} is ignored if that side of its pair is escapable.
+ *
+ * Position {@code i} is the point before the character at index {@code i}, so
+ * a text of length {@code n} has {@code n + 1} positions. The state of a
+ * position is a bit per quote in a bitmap, and a depth per parenthesis. The
+ * least depth over a range is found from the minima of blocks of positions,
+ * and a sparse table over those minima.
+ *
+ * States are computed lazily up to a watermark, and the tables only grow as
+ * far as the watermark. When a region of the text is rewritten, only the
+ * states after its start can change, so {@link #edit(CharSequence, int)}
+ * lowers the watermark to the start of the region and keeps everything before
+ * it. An index nobody queries costs nothing but its edits.
+ *
+ * An index is not safe for use by several threads at once.
+ *
+ * @author Kavi Gupta
+ */
+public final class SyntaxIndex {
+	/**
+	 * The character escaping the quote or parenthesis character after it
+	 */
+	private static final char ESCAPE = '\\';
+	/**
+	 * The number of positions whose least depth is stored together
+	 */
+	private static final int BLOCK = 64;
+	/**
+	 * The number of characters scanned at once past the watermark
+	 */
+	private static final int STRIDE = 1 << 12;
+	private final char[] quoteOpen, quoteClose, parenOpen, parenClose;
+	private final boolean[] quoteOpenEscapable, quoteCloseEscapable,
+			parenOpenEscapable, parenCloseEscapable;
+	/**
+	 * The text, as a head followed by a tail, so that a text being rewritten
+	 * from the front need not be concatenated after every rewrite
+	 */
+	private CharSequence head, tail;
+	/**
+	 * Cursors over {@link #head} and {@link #tail}, made when the text is
+	 * first scanned after an edit
+	 */
+	private CharSequence headCursor, tailCursor;
+	/**
+	 * The states of positions {@code [0, valid]} are known
+	 */
+	private int valid = 0;
+	/**
+	 * For each quote, the positions inside it
+	 */
+	private long[][] inQuote;
+	/**
+	 * The positions just after an unescaped escape character
+	 */
+	private long[] escaped = new long[1];
+	/**
+	 * For each parenthesis, its depth at each position
+	 */
+	private int[][] depths;
+	private final RangeMin[] minima;
+	private SyntaxIndex(CharSequence text, EnregexType type) {
+		List<SymbolPair> quotes = type.quotes, parens = type.parens;
+		this.quoteOpen = new char[quotes.size()];
+		this.quoteClose = new char[quotes.size()];
+		this.quoteOpenEscapable = new boolean[quotes.size()];
+		this.quoteCloseEscapable = new boolean[quotes.size()];
+		for (int q = 0; q < quotes.size(); q++) {
+			quoteOpen[q] = quotes.get(q).open;
+			quoteClose[q] = quotes.get(q).close;
+			quoteOpenEscapable[q] = quotes.get(q).openEscapable;
+			quoteCloseEscapable[q] = quotes.get(q).closeEscapable;
+		}
+		this.parenOpen = new char[parens.size()];
+		this.parenClose = new char[parens.size()];
+		this.parenOpenEscapable = new boolean[parens.size()];
+		this.parenCloseEscapable = new boolean[parens.size()];
+		for (int p = 0; p < parens.size(); p++) {
+			parenOpen[p] = parens.get(p).open;
+			parenClose[p] = parens.get(p).close;
+			parenOpenEscapable[p] = parens.get(p).openEscapable;
+			parenCloseEscapable[p] = parens.get(p).closeEscapable;
+		}
+		// position 0 is outside every quote, at depth 0
+		this.inQuote = new long[quotes.size()][1];
+		this.depths = new int[parens.size()][1];
+		this.minima = new RangeMin[parens.size()];
+		for (int p = 0; p < minima.length; p++)
+			minima[p] = new RangeMin();
+		this.head = text;
+		this.tail = "";
+	}
+	/**
+	 * Creates an index of the given text
+	 *
+	 * @param text
+	 *        the text to index
+	 * @param type
+	 *        the kind of enregex whose quotes and parentheses are indexed
+	 * @return the index, which computes states as they are needed
+	 */
+	public static SyntaxIndex of(CharSequence text, EnregexType type) {
+		return new SyntaxIndex(text, type);
+	}
+	/**
+	 * Updates the index after a region of the text has been rewritten
+	 *
+	 * @param text
+	 *        the whole text after the rewrite
+	 * @param start
+	 *        the start of the rewritten region; the text before it must be
+	 *        unchanged
+	 */
+	public void edit(CharSequence text, int start) {
+		edit(text, "", start);
+	}
+	/**
+	 * Updates the index after a region of the text has been rewritten, as
+	 * {@link #edit(CharSequence, int)} does, given the text in two pieces
+	 *
+	 * @param head
+	 *        the start of the whole text after the rewrite
+	 * @param tail
+	 *        the rest of the whole text
+	 * @param start
+	 *        the start of the rewritten region
+	 */
+	public void edit(CharSequence head, CharSequence tail, int start) {
+		this.head = head;
+		this.tail = tail;
+		headCursor = tailCursor = null;
+		valid = Math.min(valid, start);
+		for (RangeMin min : minima)
+			min.truncate((valid + 1) / BLOCK);
+	}
+	/**
+	 * @return the length of the text
+	 */
+	public int length() {
+		return head.length() + tail.length();
+	}
+	/**
+	 * @param position
+	 *        a position in the text
+	 * @return whether the position is inside any quote
+	 */
+	public boolean inQuote(int position) {
+		return quoteAt(position) >= 0;
+	}
+	/**
+	 * @param position
+	 *        a position in the text
+	 * @param open
+	 *        the open character of a quote
+	 * @return whether the position is inside a quote opened by {@code open}
+	 */
+	public boolean inQuote(int position, char open) {
+		int quote = quoteAt(position);
+		return quote >= 0 && quoteOpen[quote] == open;
+	}
+	/**
+	 * @param open
+	 *        the open character of a parenthesis
+	 * @param position
+	 *        a position in the text
+	 * @return the number of unquoted {@code open}s before the position, less
+	 *         the number of its unquoted closing characters
+	 */
+	public int depth(char open, int position) {
+		ensure(position);
+		return depths[paren(open)][position];
+	}
+	/**
+	 * Checks whether the text between two positions is balanced, as required
+	 * between a {@code ~(} and its {@code ~)}: it has as many unquoted open as
+	 * close characters, and no prefix of it has more close characters.
+	 *
+	 * @param open
+	 *        the open character of a parenthesis
+	 * @param start
+	 *        the position of the {@code ~(}
+	 * @param end
+	 *        the position of the {@code ~)}, which is not before {@code start}
+	 * @return whether the text between is balanced
+	 */
+	public boolean balanced(char open, int start, int end) {
+		ensure(end);
+		int paren = paren(open);
+		int[] depth = depths[paren];
+		return depth[start] == depth[end]
+				&& minima[paren].min(depth, start, end) >= depth[start];
+	}
+	private int quoteAt(int position) {
+		ensure(position);
+		for (int quote = 0; quote < inQuote.length; quote++)
+			if (get(inQuote[quote], position)) return quote;
+		return -1;
+	}
+	private int paren(char open) {
+		for (int p = 0; p < parenOpen.length; p++)
+			if (parenOpen[p] == open) return p;
+		throw new IllegalArgumentException("Not a parenthesis: " + open);
+	}
+	private char charAt(int index) {
+		int split = head.length();
+		if (index < split) {
+			if (headCursor == null) headCursor = ChunkCursor.of(head);
+			return headCursor.charAt(index);
+		}
+		if (tailCursor == null) tailCursor = ChunkCursor.of(tail);
+		return tailCursor.charAt(index - split);
+	}
+	/**
+	 * Computes the states up to the given position, and a little past it
+	 */
+	private void ensure(int position) {
+		int length = length();
+		if (position < 0 || position > length)
+			throw new IndexOutOfBoundsException(Integer.toString(position));
+		if (position <= valid) return;
+		int target = Math.min(length, Math.max(position, valid + STRIDE));
+		grow(target + 1);
+		int quote = -1;
+		for (int q = 0; q < inQuote.length; q++)
+			if (get(inQuote[q], valid)) quote = q;
+		boolean escape = get(escaped, valid);
+		for (int i = valid; i < target; i++) {
+			char c = charAt(i);
+			boolean escapes = !escape && c == ESCAPE;
+			int before = quote;
+			if (quote < 0) {
+				for (int q = 0; q < quoteOpen.length; q++)
+					if (c == quoteOpen[q]
+							&& !(escape && quoteOpenEscapable[q])) {
+						quote = q;
+						break;
+					}
+			} else if (c == quoteClose[quote]
+					&& !(escape && quoteCloseEscapable[quote])) {
+				quote = -1;
+			}
+			for (int p = 0; p < depths.length; p++) {
+				int depth = depths[p][i];
+				// quote characters and quoted characters are not counted
+				if (before < 0 && quote < 0) {
+					if (c == parenOpen[p] && !(escape && parenOpenEscapable[p]))
+						depth++;
+					else if (c == parenClose[p]
+							&& !(escape && parenCloseEscapable[p])) depth--;
+				}
+				depths[p][i + 1] = depth;
+			}
+			for (int q = 0; q < inQuote.length; q++)
+				set(inQuote[q], i + 1, q == quote);
+			set(escaped, i + 1, escapes);
+			escape = escapes;
+		}
+		valid = target;
+		for (int p = 0; p < minima.length; p++)
+			minima[p].extend(depths[p], (valid + 1) / BLOCK);
+	}
+	/**
+	 * Makes room for the states of the given number of positions
+	 */
+	private void grow(int positions) {
+		if (escaped.length >= words(positions)
+				&& (depths.length == 0 || depths[0].length >= positions))
+			return;
+		int size = Math.max(positions, positions + positions / 2);
+		for (int q = 0; q < inQuote.length; q++)
+			inQuote[q] = Arrays.copyOf(inQuote[q], words(size));
+		escaped = Arrays.copyOf(escaped, words(size));
+		for (int p = 0; p < depths.length; p++)
+			depths[p] = Arrays.copyOf(depths[p], size);
+	}
+	private static int words(int bits) {
+		return (bits + 63) >>> 6;
+	}
+	private static boolean get(long[] bits, int index) {
+		return (bits[index >>> 6] & 1L << index) != 0;
+	}
+	private static void set(long[] bits, int index, boolean value) {
+		if (value) bits[index >>> 6] |= 1L << index;
+		else bits[index >>> 6] &= ~(1L << index);
+	}
+	/**
+	 * The least depth of each complete block of positions, and a sparse table
+	 * over them, where entry {@code b} of level {@code j} is the least depth
+	 * of blocks {@code [b, b + 2^j)}
+	 */
+	private static final class RangeMin {
+		private int[][] levels = new int[1][0];
+		/**
+		 * The number of blocks whose minima are known
+		 */
+		private int blocks = 0;
+		void truncate(int blocks) {
+			this.blocks = Math.min(this.blocks, blocks);
+		}
+		void extend(int[] depth, int blocks) {
+			if (blocks <= this.blocks) return;
+			int height = 32 - Integer.numberOfLeadingZeros(blocks);
+			if (levels.length < height) levels = Arrays.copyOf(levels, height);
+			for (int j = 0; j < height; j++)
+				if (levels[j] == null || levels[j].length < blocks)
+					levels[j] = Arrays.copyOf(levels[j] == null ? new int[0]
+							: levels[j], Math.max(blocks, blocks * 3 / 2));
+			for (int b = this.blocks; b < blocks; b++) {
+				int min = Integer.MAX_VALUE;
+				for (int i = b * BLOCK; i < (b + 1) * BLOCK; i++)
+					min = Math.min(min, depth[i]);
+				levels[0][b] = min;
+			}
+			for (int j = 1; j < height; j++) {
+				int half = 1 << (j - 1);
+				// entries whose range reaches the new blocks
+				for (int b = Math.max(0, this.blocks - (1 << j) + 1); b
+						+ (1 << j) <= blocks; b++)
+					levels[j][b] = Math.min(levels[j - 1][b],
+							levels[j - 1][b + half]);
+			}
+			this.blocks = blocks;
+		}
+		/**
+		 * @return the least depth over positions {@code [from, to]}, which
+		 *         must all be known
+		 */
+		int min(int[] depth, int from, int to) {
+			int first = from / BLOCK + 1, last = to / BLOCK - 1;
+			if (first > last || last >= blocks) {
+				int min = Integer.MAX_VALUE;
+				for (int i = from; i <= to; i++)
+					min = Math.min(min, depth[i]);
+				return min;
+			}
+			int min = Integer.MAX_VALUE;
+			for (int i = from; i < first * BLOCK; i++)
+				min = Math.min(min, depth[i]);
+			for (int i = (last + 1) * BLOCK; i <= to; i++)
+				min = Math.min(min, depth[i]);
+			int j = 31 - Integer.numberOfLeadingZeros(last - first + 1);
+			return Math.min(min, Math.min(levels[j][first], levels[j][last
+					- (1 << j) + 1]));
+		}
+	}
+}
@@ -1,9 +1,12 @@
 CREATE TABLE variable_names (
-       name  TEXT		primary_key,
-       id    INTEGER
+       name  TEXT		NOT NULL,
+       id    INTEGER	NOT NULL
 );
 
+CREATE UNIQUE INDEX variable_names_name ON variable_names (name);
+CREATE UNIQUE INDEX variable_names_id ON variable_names (id);
+
 CREATE TABLE variable_values (
-       id    INTEGER	primary_key,
+       id    INTEGER	PRIMARY KEY,
        value TEXT
-);
\ No newline at end of file
+);
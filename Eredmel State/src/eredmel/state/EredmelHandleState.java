@@ -1,5 +1,20 @@
 package eredmel.state;
 
+/**
+ * The objects that can be referred to by an integer handle at some point in
+ * processing.
+ */
 public interface EredmelHandleState {
+	/**
+	 * Gets the object referred to by the given handle. The cast to {@code T}
+	 * is unchecked, so a handle used as the wrong type will only fail once the
+	 * result is used.
+	 *
+	 * @param handleID
+	 *        the handle
+	 * @return the object it refers to
+	 * @throws IllegalArgumentException
+	 *         if the handle does not refer to a live object
+	 */
 	public <T> T handleBy(int handleID);
 }
@@ -1,7 +1,29 @@
 package eredmel.state;
 
+/**
+ * The macros defined at some point in processing. Each defined macro is
+ * assigned an integer id, which can be used to look up its value without
+ * going through its name again.
+ */
 public interface EredmelMacroState {
+	/**
+	 * @param macroName
+	 *        the name of the macro
+	 * @return whether a macro with the given name has been defined
+	 */
 	public boolean isDefined(String macroName);
+	/**
+	 * @param macroName
+	 *        the name of the macro
+	 * @return the id of the macro, or {@code -1} if it has not been defined
+	 */
 	public int idOf(String macroName);
+	/**
+	 * @param macroID
+	 *        an id returned by {@link #idOf(String)}
+	 * @return the value of the macro with the given id
+	 * @throws IllegalArgumentException
+	 *         if no macro has been assigned the given id
+	 */
 	public String valueOf(int macroID);
 }
@@ -0,0 +1,208 @@
+package eredmel.state;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A macro state backed by an open-addressing intern table.
+ *
+ * Every macro name is assigned a dense id in order of definition. The table
+ * only holds {@code id + 1} for each occupied slot, while the names, their
+ * hashes and their values are held in arrays indexed by id, so a lookup is a
+ * linear probe over an {@code int[]} which does not allocate.
+ *
+ * This class is not thread-safe. Lookups may be shared between threads once
+ * all definitions have been made.
+ */
+public final class InternedMacroState implements EredmelMacroState {
+	/**
+	 * The largest table that can be allocated; slots are kept at most half
+	 * full, so this bounds the number of macros at {@code 2^29}
+	 */
+	private static final int MAX_TABLE = 1 << 30;
+	/**
+	 * The slots of the table. {@code 0} is an empty slot, anything else is
+	 * the id of the name in that slot plus one
+	 */
+	private int[] table;
+	/**
+	 * The spread hash of each name, indexed by id
+	 */
+	private int[] hashes;
+	/**
+	 * The names, indexed by id
+	 */
+	private String[] names;
+	/**
+	 * The values, indexed by id
+	 */
+	private String[] values;
+	/**
+	 * The number of names in the table, which is also the next id
+	 */
+	private int size;
+	/**
+	 * Creates an empty macro state
+	 */
+	public InternedMacroState() {
+		this(16);
+	}
+	/**
+	 * Creates an empty macro state with room for the given number of macros
+	 *
+	 * @param expected
+	 *        the number of macros expected to be defined
+	 */
+	public InternedMacroState(int expected) {
+		table = new int[tableSize(expected)];
+		hashes = new int[Math.max(expected, 1)];
+		names = new String[hashes.length];
+		values = new String[hashes.length];
+	}
+	@Override
+	public boolean isDefined(String macroName) {
+		return idOf(macroName) >= 0;
+	}
+	@Override
+	public int idOf(String macroName) {
+		int hash = spread(macroName.hashCode());
+		int mask = table.length - 1;
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			int slot = table[i];
+			if (slot == 0) return -1;
+			int id = slot - 1;
+			if (hashes[id] == hash && names[id].equals(macroName)) return id;
+		}
+	}
+	@Override
+	public String valueOf(int macroID) {
+		if (macroID < 0 || macroID >= size)
+			throw new IllegalArgumentException("No macro with id " + macroID);
+		return values[macroID];
+	}
+	/**
+	 * @param macroID
+	 *        an id returned by {@link #idOf(String)}
+	 * @return the name of the macro with the given id
+	 */
+	public String nameOf(int macroID) {
+		if (macroID < 0 || macroID >= size)
+			throw new IllegalArgumentException("No macro with id " + macroID);
+		return names[macroID];
+	}
+	/**
+	 * @return the number of macros defined, which is one more than the
+	 *         largest id
+	 */
+	public int size() {
+		return size;
+	}
+	/**
+	 * Defines a macro, or redefines it if it already exists. A redefined
+	 * macro keeps its id.
+	 *
+	 * @param macroName
+	 *        the name of the macro
+	 * @param value
+	 *        its value
+	 * @return the id of the macro
+	 */
+	public int define(String macroName, String value) {
+		int hash = spread(macroName.hashCode());
+		int mask = table.length - 1;
+		int i = hash & mask;
+		for (;; i = (i + 1) & mask) {
+			int slot = table[i];
+			if (slot == 0) break;
+			int id = slot - 1;
+			if (hashes[id] == hash && names[id].equals(macroName)) {
+				values[id] = value;
+				return id;
+			}
+		}
+		if (size == names.length || 2 * (size + 1) > table.length) {
+			ensureCapacity(size + 1 + (size >>> 1));
+			return define(macroName, value);
+		}
+		int id = size++;
+		hashes[id] = hash;
+		names[id] = macroName;
+		values[id] = value;
+		table[i] = id + 1;
+		return id;
+	}
+	/**
+	 * Defines all the given macros, growing the table only once.
+	 *
+	 * @param macroNames
+	 *        the names of the macros
+	 * @param macroValues
+	 *        their values, in the same order
+	 */
+	public void defineAll(String[] macroNames, String[] macroValues) {
+		if (macroNames.length != macroValues.length)
+			throw new IllegalArgumentException(String.format(
+					"%s names but %s values", macroNames.length,
+					macroValues.length));
+		ensureCapacity(size + macroNames.length);
+		for (int i = 0; i < macroNames.length; i++)
+			define(macroNames[i], macroValues[i]);
+	}
+	/**
+	 * Defines all the given macros, growing the table only once.
+	 *
+	 * @param macros
+	 *        a map from macro names to their values
+	 */
+	public void defineAll(Map<String, String> macros) {
+		ensureCapacity(size + macros.size());
+		for (Entry<String, String> macro : macros.entrySet())
+			define(macro.getKey(), macro.getValue());
+	}
+	/**
+	 * Presizes this table so that the given number of macros can be defined
+	 * without rehashing
+	 *
+	 * @param expected
+	 *        the total number of macros expected
+	 */
+	public void ensureCapacity(int expected) {
+		if (expected > names.length) {
+			hashes = Arrays.copyOf(hashes, expected);
+			names = Arrays.copyOf(names, expected);
+			values = Arrays.copyOf(values, expected);
+		}
+		int tableSize = tableSize(expected);
+		if (tableSize <= table.length) return;
+		int[] table = new int[tableSize];
+		int mask = tableSize - 1;
+		for (int id = 0; id < size; id++) {
+			int i = hashes[id] & mask;
+			while (table[i] != 0)
+				i = (i + 1) & mask;
+			table[i] = id + 1;
+		}
+		this.table = table;
+	}
+	/**
+	 * The smallest power of two that is at least twice the given size
+	 */
+	private static int tableSize(int expected) {
+		if (expected > MAX_TABLE / 2)
+			throw new IllegalStateException(String.format(
+					"Cannot hold %s macros", expected));
+		int size = 16;
+		while (size < 2 * expected)
+			size <<= 1;
+		return size;
+	}
+	/**
+	 * Mixes the high bits of a String hash into the low ones, since the table
+	 * is indexed by the low bits
+	 */
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
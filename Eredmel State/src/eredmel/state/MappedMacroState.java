@@ -0,0 +1,304 @@
+package eredmel.state;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only macro state stored in a memory-mapped file.
+ *
+ * Opening a table only maps the file, so it takes the same time whatever the
+ * size of the table, and the table lives in the OS page cache rather than on
+ * the heap, where it can be shared by every process that maps it. Tables are
+ * written by {@link #write(Path, String[], String[])}.
+ *
+ * The file consists of
+ * <ul>
+ * <li>a header of {@value #HEADER_SIZE} bytes, holding a magic number, the
+ * format version, the number of macros, the number of index slots, and the
+ * offsets of the other three sections</li>
+ * <li>an open-addressing index of {@code (hash, id + 1)} int pairs, where an
+ * id of {@code 0} marks an empty slot</li>
+ * <li>a table of {@code (name offset, name length, value offset, value
+ * length)} entries, indexed by id</li>
+ * <li>an arena holding the UTF-16 characters of every name and value</li>
+ * </ul>
+ * Lookups only read the mapped file, so they do not allocate, and may be made
+ * from any number of threads.
+ */
+public final class MappedMacroState implements EredmelMacroState {
+	private static final int MAGIC = 0x45444D54; // "EDMT"
+	/**
+	 * The version of the file format written by this class
+	 */
+	public static final int VERSION = 1;
+	private static final int HEADER_SIZE = 48;
+	private static final int SLOT_SIZE = 8;
+	private static final int ENTRY_SIZE = 24;
+	private final Region region;
+	private final int size;
+	private final int indexMask;
+	private final long indexOffset, entriesOffset;
+	private MappedMacroState(Region region) throws IOException {
+		this.region = region;
+		if (region.length < HEADER_SIZE || region.getInt(0) != MAGIC)
+			throw new IOException("Not a macro table");
+		if (region.getInt(4) != VERSION)
+			throw new IOException(String.format(
+					"Macro table version %s is not supported (expected %s)",
+					region.getInt(4), VERSION));
+		this.size = region.getInt(8);
+		int slots = region.getInt(12);
+		this.indexOffset = region.getLong(16);
+		this.entriesOffset = region.getLong(24);
+		long arenaOffset = region.getLong(32);
+		if (Integer.bitCount(slots) != 1 || size < 0 || size >= slots
+				|| indexOffset + (long) slots * SLOT_SIZE > entriesOffset
+				|| entriesOffset + (long) size * ENTRY_SIZE > arenaOffset
+				|| arenaOffset > region.length)
+			throw new IOException("Corrupt macro table header");
+		this.indexMask = slots - 1;
+	}
+	/**
+	 * Maps a macro table written by {@link #write(Path, String[], String[])}
+	 *
+	 * @param file
+	 *        the table
+	 * @return the macro state stored in the table
+	 * @throws IOException
+	 *         if the file cannot be mapped or is not a valid table
+	 */
+	public static MappedMacroState open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			return new MappedMacroState(new Region(channel,
+					MapMode.READ_ONLY, channel.size()));
+		}
+	}
+	/**
+	 * Writes a macro table
+	 *
+	 * @param file
+	 *        the file to write to, which is replaced if it exists
+	 * @param names
+	 *        the names of the macros, which must be distinct; the id of each
+	 *        macro will be its index in this array
+	 * @param values
+	 *        the values of the macros, in the same order
+	 * @throws IOException
+	 *         if the file cannot be written
+	 */
+	public static void write(Path file, String[] names, String[] values)
+			throws IOException {
+		if (names.length != values.length)
+			throw new IllegalArgumentException(String.format(
+					"%s names but %s values", names.length, values.length));
+		if (names.length > 1 << 29)
+			throw new IllegalArgumentException(String.format(
+					"Cannot hold %s macros", names.length));
+		int slots = 16;
+		while (slots < 2L * names.length)
+			slots <<= 1;
+		long indexOffset = HEADER_SIZE;
+		long entriesOffset = indexOffset + (long) slots * SLOT_SIZE;
+		long arenaOffset = entriesOffset + (long) names.length * ENTRY_SIZE;
+		long length = arenaOffset;
+		for (int i = 0; i < names.length; i++)
+			length += 2L * (names[i].length() + values[i].length());
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			Region region = new Region(channel, MapMode.READ_WRITE, length);
+			region.putInt(0, MAGIC);
+			region.putInt(4, VERSION);
+			region.putInt(8, names.length);
+			region.putInt(12, slots);
+			region.putLong(16, indexOffset);
+			region.putLong(24, entriesOffset);
+			region.putLong(32, arenaOffset);
+			// the region was mapped from a new file, so the index is zeroed
+			MappedMacroState table = new MappedMacroState(region);
+			long arena = arenaOffset;
+			for (int id = 0; id < names.length; id++) {
+				int hash = spread(names[id].hashCode());
+				long slot = table.slotOf(names[id], hash);
+				if (region.getInt(slot + 4) != 0)
+					throw new IllegalArgumentException("Duplicate macro "
+							+ names[id]);
+				long entry = entriesOffset + (long) id * ENTRY_SIZE;
+				region.putLong(entry, arena);
+				region.putInt(entry + 8, names[id].length());
+				arena = region.putChars(arena, names[id]);
+				region.putLong(entry + 12, arena);
+				region.putInt(entry + 20, values[id].length());
+				arena = region.putChars(arena, values[id]);
+				region.putInt(slot, hash);
+				region.putInt(slot + 4, id + 1);
+			}
+			region.force();
+		}
+	}
+	/**
+	 * Writes a macro table holding the macros in the given state, with the
+	 * same ids
+	 *
+	 * @param file
+	 *        the file to write to, which is replaced if it exists
+	 * @param state
+	 *        the macros to write
+	 * @throws IOException
+	 *         if the file cannot be written
+	 */
+	public static void write(Path file, InternedMacroState state)
+			throws IOException {
+		String[] names = new String[state.size()], values = new String[state
+				.size()];
+		for (int id = 0; id < names.length; id++) {
+			names[id] = state.nameOf(id);
+			values[id] = state.valueOf(id);
+		}
+		write(file, names, values);
+	}
+	@Override
+	public boolean isDefined(String macroName) {
+		return idOf(macroName) >= 0;
+	}
+	@Override
+	public int idOf(String macroName) {
+		long slot = slotOf(macroName, spread(macroName.hashCode()));
+		return region.getInt(slot + 4) - 1;
+	}
+	@Override
+	public String valueOf(int macroID) {
+		return region.getString(entry(macroID) + 12);
+	}
+	/**
+	 * @param macroID
+	 *        an id returned by {@link #idOf(String)}
+	 * @return the name of the macro with the given id
+	 */
+	public String nameOf(int macroID) {
+		return region.getString(entry(macroID));
+	}
+	/**
+	 * @return the number of macros in the table, which is one more than the
+	 *         largest id
+	 */
+	public int size() {
+		return size;
+	}
+	/**
+	 * Finds the slot holding the given name, or the empty slot where it would
+	 * be inserted
+	 */
+	private long slotOf(String macroName, int hash) {
+		for (int i = hash & indexMask;; i = (i + 1) & indexMask) {
+			long slot = indexOffset + (long) i * SLOT_SIZE;
+			int id = region.getInt(slot + 4) - 1;
+			if (id < 0) return slot;
+			if (region.getInt(slot) == hash
+					&& region.equalsString(entry(id), macroName)) return slot;
+		}
+	}
+	private long entry(int macroID) {
+		if (macroID < 0 || macroID >= size)
+			throw new IllegalArgumentException("No macro with id " + macroID);
+		return entriesOffset + (long) macroID * ENTRY_SIZE;
+	}
+	/**
+	 * Mixes the high bits of a String hash into the low ones, since the index
+	 * is addressed by the low bits
+	 */
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+	/**
+	 * A file mapped in segments, since a single buffer cannot be larger than
+	 * 2GB. Each segment overlaps the next by 8 bytes, so any primitive can be
+	 * accessed through the segment its first byte is in. The overlapping
+	 * mappings share the same pages, so writes through either are visible
+	 * through both.
+	 */
+	private static final class Region {
+		private static final int SEGMENT_BITS = 30;
+		private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+		private static final int OVERLAP = 8;
+		final long length;
+		private final MappedByteBuffer[] segments;
+		Region(FileChannel channel, MapMode mode, long length)
+				throws IOException {
+			this.length = length;
+			segments = new MappedByteBuffer[(int) (length >>> SEGMENT_BITS) + 1];
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long) i << SEGMENT_BITS;
+				segments[i] = channel.map(mode, start, Math.min(
+						SEGMENT_MASK + 1 + OVERLAP, length - start));
+			}
+		}
+		int getInt(long position) {
+			return segment(position).getInt(offset(position));
+		}
+		long getLong(long position) {
+			return segment(position).getLong(offset(position));
+		}
+		char getChar(long position) {
+			return segment(position).getChar(offset(position));
+		}
+		void putInt(long position, int value) {
+			segment(position).putInt(offset(position), value);
+		}
+		void putLong(long position, long value) {
+			segment(position).putLong(offset(position), value);
+		}
+		/**
+		 * Writes the characters of the given String
+		 *
+		 * @return the position after them
+		 */
+		long putChars(long position, String s) {
+			for (int i = 0; i < s.length(); i++, position += 2)
+				segment(position).putChar(offset(position), s.charAt(i));
+			return position;
+		}
+		/**
+		 * Reads the String whose offset and length are stored at the given
+		 * position
+		 */
+		String getString(long position) {
+			long start = getLong(position);
+			char[] chars = new char[getInt(position + 8)];
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = getChar(start + 2L * i);
+			return new String(chars);
+		}
+		/**
+		 * Compares the String whose offset and length are stored at the given
+		 * position to the given String
+		 */
+		boolean equalsString(long position, String s) {
+			if (getInt(position + 8) != s.length()) return false;
+			long start = getLong(position);
+			for (int i = 0; i < s.length(); i++)
+				if (getChar(start + 2L * i) != s.charAt(i)) return false;
+			return true;
+		}
+		void force() {
+			for (MappedByteBuffer segment : segments)
+				segment.force();
+		}
+		private MappedByteBuffer segment(long position) {
+			return segments[segmentIndex(position)];
+		}
+		private static int segmentIndex(long position) {
+			return (int) (position >>> SEGMENT_BITS);
+		}
+		private static int offset(long position) {
+			return (int) (position & SEGMENT_MASK);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package eredmel.state;
+
+import java.util.Arrays;
+
+/**
+ * An immutable macro state, where a definition returns a new state sharing
+ * all but O(log32 n) of its structure with the old one.
+ *
+ * Names are mapped to ids by a hash array mapped trie, and ids are mapped to
+ * values by a 32-way bit-partitioned trie. Since instances never change, every
+ * state is its own snapshot: include scopes and speculative expansions can
+ * branch from a state by simply keeping a reference to it, and any number of
+ * threads can read a state without locking.
+ *
+ * Ids are assigned in order of definition along each branch, so two branches
+ * of the same state may give different macros the same id.
+ */
+public final class PersistentMacroState implements EredmelMacroState {
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+	/**
+	 * The state with no macros defined
+	 */
+	public static final PersistentMacroState EMPTY = new PersistentMacroState(
+			new Node(0, new Object[0]), new Object[WIDTH], 0, 0);
+	/**
+	 * The root of the trie mapping names to ids
+	 */
+	private final Node names;
+	/**
+	 * The root of the trie mapping ids to values
+	 */
+	private final Object[] values;
+	/**
+	 * The shift of the root of {@link #values}; {@code 0} if it is a leaf
+	 */
+	private final int valuesShift;
+	/**
+	 * The number of macros defined, which is also the next id
+	 */
+	private final int size;
+	private PersistentMacroState(Node names, Object[] values, int valuesShift,
+			int size) {
+		this.names = names;
+		this.values = values;
+		this.valuesShift = valuesShift;
+		this.size = size;
+	}
+	@Override
+	public boolean isDefined(String macroName) {
+		return idOf(macroName) >= 0;
+	}
+	@Override
+	public int idOf(String macroName) {
+		int hash = spread(macroName.hashCode());
+		Object node = names;
+		for (int shift = 0;; shift += BITS) {
+			if (node instanceof Collision) {
+				for (Entry entry : ((Collision) node).entries)
+					if (entry.name.equals(macroName)) return entry.id;
+				return -1;
+			}
+			Node branch = (Node) node;
+			int bit = bit(hash, shift);
+			if ((branch.bitmap & bit) == 0) return -1;
+			node = branch.array[branch.index(bit)];
+			if (node instanceof Entry) {
+				Entry entry = (Entry) node;
+				return entry.hash == hash && entry.name.equals(macroName) ? entry.id
+						: -1;
+			}
+		}
+	}
+	@Override
+	public String valueOf(int macroID) {
+		if (macroID < 0 || macroID >= size)
+			throw new IllegalArgumentException("No macro with id " + macroID);
+		Object[] node = values;
+		for (int shift = valuesShift; shift > 0; shift -= BITS)
+			node = (Object[]) node[(macroID >>> shift) & MASK];
+		return (String) node[macroID & MASK];
+	}
+	/**
+	 * @return the number of macros defined, which is one more than the
+	 *         largest id
+	 */
+	public int size() {
+		return size;
+	}
+	/**
+	 * Defines a macro, or redefines it if it already exists. A redefined
+	 * macro keeps its id. This state is not modified.
+	 *
+	 * @param macroName
+	 *        the name of the macro
+	 * @param value
+	 *        its value
+	 * @return the state with the macro defined
+	 */
+	public PersistentMacroState define(String macroName, String value) {
+		int id = idOf(macroName);
+		if (id >= 0)
+			return new PersistentMacroState(names, assoc(values, valuesShift,
+					id, value), valuesShift, size);
+		if (size == Integer.MAX_VALUE)
+			throw new IllegalStateException("Too many macros");
+		id = size;
+		Object[] values = this.values;
+		int valuesShift = this.valuesShift;
+		if ((long) id == 1L << (valuesShift + BITS)) {
+			// the trie is full, so a level is added above it
+			values = new Object[WIDTH];
+			values[0] = this.values;
+			valuesShift += BITS;
+		}
+		Entry entry = new Entry(macroName, spread(macroName.hashCode()), id);
+		Node names = (Node) insert(this.names, entry, 0);
+		return new PersistentMacroState(names, assoc(values, valuesShift, id,
+				value), valuesShift, size + 1);
+	}
+	/**
+	 * Copies the path to the given id, setting its value
+	 */
+	private static Object[] assoc(Object[] node, int shift, int id,
+			String value) {
+		Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+		int i = (id >>> shift) & MASK;
+		if (shift == 0)
+			copy[i] = value;
+		else copy[i] = assoc((Object[]) copy[i], shift - BITS, id, value);
+		return copy;
+	}
+	/**
+	 * Copies the path to a new entry, which is not yet in the trie
+	 */
+	private static Object insert(Object node, Entry entry, int shift) {
+		if (node instanceof Collision) {
+			Collision collision = (Collision) node;
+			// only an entry with the same hash joins the collision
+			if (collision.hash != entry.hash)
+				return merge(collision, collision.hash, entry, shift);
+			Entry[] entries = Arrays.copyOf(collision.entries,
+					collision.entries.length + 1);
+			entries[entries.length - 1] = entry;
+			return new Collision(entries);
+		}
+		Node branch = (Node) node;
+		int bit = bit(entry.hash, shift), i = branch.index(bit);
+		if ((branch.bitmap & bit) == 0) {
+			Object[] array = new Object[branch.array.length + 1];
+			System.arraycopy(branch.array, 0, array, 0, i);
+			array[i] = entry;
+			System.arraycopy(branch.array, i, array, i + 1,
+					branch.array.length - i);
+			return new Node(branch.bitmap | bit, array);
+		}
+		Object[] array = branch.array.clone();
+		Object child = array[i];
+		array[i] = child instanceof Entry ? merge(child, ((Entry) child).hash,
+				entry, shift + BITS) : insert(child, entry, shift + BITS);
+		return new Node(branch.bitmap, array);
+	}
+	/**
+	 * Creates the smallest subtrie containing both a new entry and an
+	 * {@link Entry} or {@link Collision} already in the trie
+	 *
+	 * @param a
+	 *        the entry or collision in the trie
+	 * @param hashA
+	 *        its hash
+	 * @param b
+	 *        the new entry, whose hash differs from {@code hashA} if
+	 *        {@code a} is a collision
+	 */
+	private static Object merge(Object a, int hashA, Entry b, int shift) {
+		if (hashA == b.hash) return new Collision(new Entry[] { (Entry) a, b });
+		int bitA = bit(hashA, shift), bitB = bit(b.hash, shift);
+		if (bitA == bitB)
+			return new Node(bitA, new Object[] { merge(a, hashA, b, shift
+					+ BITS) });
+		Object[] array = Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[] {
+				a, b } : new Object[] { b, a };
+		return new Node(bitA | bitB, array);
+	}
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & MASK);
+	}
+	/**
+	 * Mixes the high bits of a String hash into the low ones, since the trie
+	 * is indexed starting from the low bits
+	 */
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+	/**
+	 * A branch of the trie, which only has space for the children present in
+	 * its bitmap
+	 */
+	private static final class Node {
+		final int bitmap;
+		/**
+		 * {@link Entry}s, {@link Node}s and {@link Collision}s, in the order of
+		 * their bits in the bitmap
+		 */
+		final Object[] array;
+		Node(int bitmap, Object[] array) {
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+		int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+	}
+	/**
+	 * A set of entries whose hashes are all equal
+	 */
+	private static final class Collision {
+		final Entry[] entries;
+		final int hash;
+		Collision(Entry[] entries) {
+			this.entries = entries;
+			this.hash = entries[0].hash;
+		}
+	}
+	private static final class Entry {
+		final String name;
+		final int hash;
+		final int id;
+		Entry(String name, int hash, int id) {
+			this.name = name;
+			this.hash = hash;
+			this.id = id;
+		}
+	}
+}
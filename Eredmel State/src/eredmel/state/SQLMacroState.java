@@ -0,0 +1,295 @@
+package eredmel.state;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A macro state stored in a database with the schema of
+ * {@code Eredmel SQL Interface/new.sql}, which is created if it does not
+ * already exist.
+ *
+ * Definitions are written behind: they are buffered and inserted in batches
+ * of prepared statements, either when a batch fills up or on
+ * {@link #flush()} or {@link #close()}. Lookups go through a bounded LRU cache
+ * of names and values before going to the database, so tables larger than
+ * the heap can be served from memory for the macros in use.
+ *
+ * The database is intended to be an embedded one stored in a local file, such
+ * as SQLite ({@code jdbc:sqlite:macros.db}) or H2 ({@code jdbc:h2:./macros});
+ * the driver must be on the classpath.
+ */
+public final class SQLMacroState implements EredmelMacroState, AutoCloseable {
+	/**
+	 * The statements creating the schema in {@code new.sql}
+	 */
+	private static final String[] SCHEMA = {
+			"CREATE TABLE IF NOT EXISTS variable_names (name TEXT NOT NULL, id INTEGER NOT NULL)",
+			"CREATE UNIQUE INDEX IF NOT EXISTS variable_names_name ON variable_names (name)",
+			"CREATE UNIQUE INDEX IF NOT EXISTS variable_names_id ON variable_names (id)",
+			"CREATE TABLE IF NOT EXISTS variable_values (id INTEGER PRIMARY KEY, value TEXT)" };
+	/**
+	 * The default number of names and of values held in memory
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+	/**
+	 * The default number of definitions buffered before they are written
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1 << 10;
+	private final Connection connection;
+	private final PreparedStatement selectId, selectValue, insertName,
+			insertValue, updateValue;
+	private final int batchSize;
+	/**
+	 * Recently used names and their ids, with {@code -1} for names known to
+	 * be undefined
+	 */
+	private final LruCache<String, Integer> ids;
+	/**
+	 * Recently used values, by id
+	 */
+	private final LruCache<Integer, String> values;
+	/**
+	 * Names that have been defined but not yet written
+	 */
+	private final Map<String, Integer> pendingIds = new LinkedHashMap<>();
+	/**
+	 * Values that have been set but not yet written
+	 */
+	private final Map<Integer, String> pendingValues = new LinkedHashMap<>();
+	/**
+	 * The id the next new macro will be assigned
+	 */
+	private int nextID;
+	/**
+	 * All ids below this one have rows in the database
+	 */
+	private int writtenID;
+	/**
+	 * Opens the database at the given JDBC URL with the default cache and
+	 * batch sizes
+	 *
+	 * @param url
+	 *        the JDBC URL of the database
+	 * @return a macro state over that database
+	 * @throws SQLException
+	 *         if the database could not be opened or the schema created
+	 */
+	public static SQLMacroState open(String url) throws SQLException {
+		return new SQLMacroState(DriverManager.getConnection(url),
+				DEFAULT_CACHE_SIZE, DEFAULT_BATCH_SIZE);
+	}
+	/**
+	 * Creates a macro state over the given connection, which is closed when
+	 * this is
+	 *
+	 * @param connection
+	 *        a connection to the database
+	 * @param cacheSize
+	 *        the number of names, and separately of values, to hold in memory
+	 * @param batchSize
+	 *        the number of definitions to buffer before writing them
+	 * @throws SQLException
+	 *         if the schema could not be created, in which case the
+	 *         connection is closed
+	 */
+	public SQLMacroState(Connection connection, int cacheSize, int batchSize)
+			throws SQLException {
+		this.connection = connection;
+		try {
+			if (batchSize < 1)
+				throw new IllegalArgumentException("batchSize must be positive");
+			this.batchSize = batchSize;
+			this.ids = new LruCache<>(cacheSize);
+			this.values = new LruCache<>(cacheSize);
+			connection.setAutoCommit(false);
+			try (Statement create = connection.createStatement()) {
+				for (String statement : SCHEMA)
+					create.executeUpdate(statement);
+				try (ResultSet max = create
+						.executeQuery("SELECT MAX(id) FROM variable_names")) {
+					max.next();
+					nextID = max.getInt(1) + (max.wasNull() ? 0 : 1);
+				}
+			}
+			connection.commit();
+			writtenID = nextID;
+			selectId = connection
+					.prepareStatement("SELECT id FROM variable_names WHERE name = ?");
+			selectValue = connection
+					.prepareStatement("SELECT value FROM variable_values WHERE id = ?");
+			insertName = connection
+					.prepareStatement("INSERT INTO variable_names (name, id) VALUES (?, ?)");
+			insertValue = connection
+					.prepareStatement("INSERT INTO variable_values (id, value) VALUES (?, ?)");
+			updateValue = connection
+					.prepareStatement("UPDATE variable_values SET value = ? WHERE id = ?");
+		} catch (SQLException | RuntimeException e) {
+			try {
+				connection.close();
+			} catch (SQLException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+	}
+	@Override
+	public synchronized boolean isDefined(String macroName) {
+		return idOf(macroName) >= 0;
+	}
+	@Override
+	public synchronized int idOf(String macroName) {
+		Integer id = ids.get(macroName);
+		if (id != null) return id;
+		id = pendingIds.get(macroName);
+		if (id == null) {
+			try {
+				selectId.setString(1, macroName);
+				try (ResultSet result = selectId.executeQuery()) {
+					id = result.next() ? result.getInt(1) : -1;
+				}
+			} catch (SQLException e) {
+				throw new IllegalStateException("Error reading macro "
+						+ macroName, e);
+			}
+		}
+		ids.put(macroName, id);
+		return id;
+	}
+	@Override
+	public synchronized String valueOf(int macroID) {
+		if (macroID < 0 || macroID >= nextID)
+			throw new IllegalArgumentException("No macro with id " + macroID);
+		String value = values.get(macroID);
+		if (value != null || values.containsKey(macroID)) return value;
+		if (pendingValues.containsKey(macroID))
+			value = pendingValues.get(macroID);
+		else {
+			try {
+				selectValue.setInt(1, macroID);
+				try (ResultSet result = selectValue.executeQuery()) {
+					if (result.next()) value = result.getString(1);
+				}
+			} catch (SQLException e) {
+				throw new IllegalStateException("Error reading macro id "
+						+ macroID, e);
+			}
+		}
+		values.put(macroID, value);
+		return value;
+	}
+	/**
+	 * Defines a macro, or redefines it if it already exists. A redefined
+	 * macro keeps its id. The definition is visible immediately, but is only
+	 * written once its batch is full or on {@link #flush()}.
+	 *
+	 * @param macroName
+	 *        the name of the macro
+	 * @param value
+	 *        its value
+	 * @return the id of the macro
+	 */
+	public synchronized int define(String macroName, String value) {
+		int id = idOf(macroName);
+		if (id < 0) {
+			id = nextID++;
+			pendingIds.put(macroName, id);
+			ids.put(macroName, id);
+		}
+		pendingValues.put(id, value);
+		values.put(id, value);
+		if (pendingValues.size() >= batchSize) flush();
+		return id;
+	}
+	/**
+	 * Writes all buffered definitions to the database and commits them. If
+	 * that fails, the transaction is rolled back and the definitions stay
+	 * buffered, to be written by the next flush.
+	 */
+	public synchronized void flush() {
+		if (pendingValues.isEmpty()) return;
+		try {
+			for (Entry<String, Integer> name : pendingIds.entrySet()) {
+				insertName.setString(1, name.getKey());
+				insertName.setInt(2, name.getValue());
+				insertName.addBatch();
+			}
+			boolean inserts = false, updates = false;
+			for (Entry<Integer, String> value : pendingValues.entrySet()) {
+				if (value.getKey() >= writtenID) {
+					insertValue.setInt(1, value.getKey());
+					insertValue.setString(2, value.getValue());
+					insertValue.addBatch();
+					inserts = true;
+				} else {
+					updateValue.setString(1, value.getValue());
+					updateValue.setInt(2, value.getKey());
+					updateValue.addBatch();
+					updates = true;
+				}
+			}
+			if (!pendingIds.isEmpty()) insertName.executeBatch();
+			if (inserts) insertValue.executeBatch();
+			if (updates) updateValue.executeBatch();
+			connection.commit();
+		} catch (SQLException e) {
+			// the rows are added to the batches again by the next flush
+			for (PreparedStatement batch : new PreparedStatement[] {
+					insertName, insertValue, updateValue })
+				try {
+					batch.clearBatch();
+				} catch (SQLException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+			try {
+				connection.rollback();
+			} catch (SQLException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw new IllegalStateException("Error writing macros", e);
+		}
+		pendingIds.clear();
+		pendingValues.clear();
+		writtenID = nextID;
+	}
+	/**
+	 * @return the number of macros defined, which is one more than the
+	 *         largest id
+	 */
+	public synchronized int size() {
+		return nextID;
+	}
+	/**
+	 * Flushes any buffered definitions and closes the database
+	 */
+	@Override
+	public synchronized void close() throws SQLException {
+		try {
+			flush();
+		} finally {
+			connection.close();
+		}
+	}
+	/**
+	 * A map holding at most a fixed number of entries, evicting the least
+	 * recently used
+	 */
+	private static final class LruCache<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+		LruCache(int capacity) {
+			super(16, .75f, true);
+			this.capacity = capacity;
+		}
+		@Override
+		protected boolean removeEldestEntry(Entry<K, V> eldest) {
+			return size() > capacity;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package eredmel.state;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A handle table storing objects in a chunked array of slots.
+ *
+ * A handle packs the index of its slot into its low {@value #INDEX_BITS} bits
+ * and the generation of the slot into the {@value #GENERATION_BITS} bits
+ * above them. Releasing a handle advances the generation of its slot, so a
+ * handle that outlives its object is detected rather than resolving to
+ * whatever reuses the slot, unless the slot has been reused
+ * {@code 2^GENERATION_BITS} times since.
+ *
+ * Released slots are kept on a lock-free stack, and chunks of slots are
+ * allocated lazily, so allocation, release and lookup are all lock-free.
+ * Lookups are O(1) and do not allocate.
+ */
+public final class SlotHandleState implements EredmelHandleState {
+	/**
+	 * The number of bits of a handle used for the index of its slot
+	 */
+	public static final int INDEX_BITS = 21;
+	/**
+	 * The number of bits of a handle used for the generation of its slot. The
+	 * sign bit is left clear, so handles are never negative.
+	 */
+	public static final int GENERATION_BITS = 31 - INDEX_BITS;
+	private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+	private static final int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	/**
+	 * The largest number of objects that can be held at once
+	 */
+	public static final int MAX_SLOTS = 1 << INDEX_BITS;
+	private final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(
+			MAX_SLOTS >>> CHUNK_BITS);
+	/**
+	 * The top of the stack of released slots: the index of the slot plus one
+	 * in the low half, or {@code 0} if the stack is empty, and a stamp which
+	 * changes on every update in the high half, which prevents ABA problems
+	 */
+	private final AtomicLong freeHead = new AtomicLong();
+	/**
+	 * The number of slots which have ever been used
+	 */
+	private final AtomicInteger highWater = new AtomicInteger();
+	private final AtomicInteger live = new AtomicInteger();
+	private final AtomicInteger free = new AtomicInteger();
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T handleBy(int handleID) {
+		return (T) lookup(handleID);
+	}
+	/**
+	 * Gets the object referred to by the given handle, checking its type
+	 *
+	 * @param handleID
+	 *        the handle
+	 * @param type
+	 *        the type of object expected
+	 * @return the object it refers to
+	 * @throws IllegalArgumentException
+	 *         if the handle does not refer to a live object
+	 * @throws ClassCastException
+	 *         if the object is not of the given type
+	 */
+	public <T> T handleBy(int handleID, Class<T> type) {
+		return type.cast(lookup(handleID));
+	}
+	/**
+	 * @param handleID
+	 *        the handle
+	 * @return whether it refers to a live object
+	 */
+	public boolean isLive(int handleID) {
+		Chunk chunk = chunkOf(handleID);
+		int slot = handleID & CHUNK_MASK;
+		return chunk != null
+				&& chunk.generations.get(slot) == generation(handleID)
+				&& chunk.values.get(slot) != null;
+	}
+	/**
+	 * Stores an object in the table
+	 *
+	 * @param value
+	 *        the object to store, which may not be {@code null}
+	 * @return a handle to it
+	 * @throws IllegalStateException
+	 *         if there are already {@link #MAX_SLOTS} objects in the table
+	 */
+	public int allocate(Object value) {
+		if (value == null)
+			throw new IllegalArgumentException("Cannot store null");
+		int index = popFree();
+		if (index < 0) {
+			index = highWater.getAndIncrement();
+			if (index >= MAX_SLOTS) {
+				highWater.decrementAndGet();
+				throw new IllegalStateException(String.format(
+						"Handle table is full (%s objects)", MAX_SLOTS));
+			}
+		}
+		Chunk chunk = chunkAt(index >>> CHUNK_BITS);
+		int slot = index & CHUNK_MASK;
+		chunk.values.set(slot, value);
+		live.incrementAndGet();
+		return chunk.generations.get(slot) << INDEX_BITS | index;
+	}
+	/**
+	 * Removes an object from the table, invalidating its handle
+	 *
+	 * @param handleID
+	 *        the handle
+	 * @return the object it referred to
+	 * @throws IllegalArgumentException
+	 *         if the handle does not refer to a live object
+	 */
+	public Object release(int handleID) {
+		Chunk chunk = chunkOf(handleID);
+		int slot = handleID & CHUNK_MASK, generation = generation(handleID);
+		if (chunk == null
+				|| !chunk.generations.compareAndSet(slot, generation,
+						(generation + 1) & GENERATION_MASK))
+			throw staleHandle(handleID);
+		Object value = chunk.values.getAndSet(slot, null);
+		live.decrementAndGet();
+		pushFree(handleID & INDEX_MASK, chunk);
+		return value;
+	}
+	/**
+	 * @return the number of objects in the table
+	 */
+	public int size() {
+		return live.get();
+	}
+	/**
+	 * @return the number of slots that have ever been used, whether or not
+	 *         they are in use now
+	 */
+	public int slotsUsed() {
+		return Math.min(highWater.get(), MAX_SLOTS);
+	}
+	/**
+	 * @return the fraction of the slots that have ever been used which hold
+	 *         an object, or {@code 1} if none have been used
+	 */
+	public double occupancy() {
+		int used = slotsUsed();
+		return used == 0 ? 1 : (double) live.get() / used;
+	}
+	/**
+	 * @return the fraction of the slots that have ever been used which are
+	 *         free to be reused, or {@code 0} if none have been used
+	 */
+	public double fragmentation() {
+		int used = slotsUsed();
+		return used == 0 ? 0 : (double) free.get() / used;
+	}
+	@Override
+	public String toString() {
+		return String.format(
+				"SlotHandleState [size=%s, slotsUsed=%s, free=%s]", size(),
+				slotsUsed(), free.get());
+	}
+	private Object lookup(int handleID) {
+		Chunk chunk = chunkOf(handleID);
+		if (chunk == null) throw staleHandle(handleID);
+		int slot = handleID & CHUNK_MASK, generation = generation(handleID);
+		if (chunk.generations.get(slot) != generation)
+			throw staleHandle(handleID);
+		Object value = chunk.values.get(slot);
+		// the slot may have been released and reused since the first check
+		if (value == null || chunk.generations.get(slot) != generation)
+			throw staleHandle(handleID);
+		return value;
+	}
+	/**
+	 * The chunk containing the slot of the given handle, or {@code null} if
+	 * it has never been allocated
+	 */
+	private Chunk chunkOf(int handleID) {
+		if (handleID < 0) return null;
+		return chunks.get((handleID & INDEX_MASK) >>> CHUNK_BITS);
+	}
+	/**
+	 * The given chunk, allocating it if it does not exist yet
+	 */
+	private Chunk chunkAt(int chunkIndex) {
+		Chunk chunk = chunks.get(chunkIndex);
+		if (chunk != null) return chunk;
+		chunks.compareAndSet(chunkIndex, null, new Chunk());
+		return chunks.get(chunkIndex);
+	}
+	private void pushFree(int index, Chunk chunk) {
+		while (true) {
+			long head = freeHead.get();
+			chunk.next.set(index & CHUNK_MASK, (int) head);
+			if (freeHead.compareAndSet(head, stamp(head) | index + 1)) {
+				free.incrementAndGet();
+				return;
+			}
+		}
+	}
+	/**
+	 * Pops a slot off the free stack
+	 *
+	 * @return the index of the slot, or {@code -1} if there are none
+	 */
+	private int popFree() {
+		while (true) {
+			long head = freeHead.get();
+			int index = (int) head - 1;
+			if (index < 0) return -1;
+			int next = chunks.get(index >>> CHUNK_BITS).next.get(
+					index & CHUNK_MASK);
+			if (freeHead.compareAndSet(head, stamp(head) | next)) {
+				free.decrementAndGet();
+				return index;
+			}
+		}
+	}
+	/**
+	 * The high half of an updated free stack head
+	 */
+	private static long stamp(long head) {
+		return ((head >>> 32) + 1) << 32;
+	}
+	private static int generation(int handleID) {
+		return handleID >>> INDEX_BITS;
+	}
+	private static IllegalArgumentException staleHandle(int handleID) {
+		return new IllegalArgumentException(String.format(
+				"Handle %s (slot %s, generation %s) is not live", handleID,
+				handleID & INDEX_MASK, generation(handleID)));
+	}
+	/**
+	 * A fixed-size block of slots
+	 */
+	private static final class Chunk {
+		final AtomicReferenceArray<Object> values = new AtomicReferenceArray<>(
+				CHUNK_SIZE);
+		final AtomicIntegerArray generations = new AtomicIntegerArray(
+				CHUNK_SIZE);
+		/**
+		 * For each slot on the free stack, the index plus one of the slot
+		 * below it, or {@code 0} at the bottom
+		 */
+		final AtomicIntegerArray next = new AtomicIntegerArray(CHUNK_SIZE);
+	}
+}
@@ -0,0 +1,160 @@
+package eredmel.preprocessor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import eredmel.config.ConfigSetting;
+import eredmel.config.EredmelConfiguration;
+import eredmel.preprocessor.DirectiveLexer.Directive;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+
+/**
+ * Checks the lexer against the regexes directives used to be found with. It
+ * is package-private, so this test lives in its package.
+ */
+public class DirectiveLexerTest {
+	/**
+	 * The inclusion regex the lexer replaced
+	 */
+	private static final String INCLUDE = "include\\s*\"(?<path>.+)\"\\s*$";
+	/**
+	 * The header of {@link EredmelPreprocessor#REPLACE}
+	 */
+	private static final String REPLACE_HEADER = "replace(?<lit>lit)?.+";
+	private static final String[] PREFIXES = { "", "#", "%%", "@@@",
+			"#+", "[#@]" };
+	private static final String[] KEYWORDS = { "config:", "conf", "include",
+			"includ", "replace", "replacelit", "rep", "x" };
+	private static final String[] SPACES = { "", " ", "\t", " \t " };
+	private static final String[] BODIES = { "", "name = value", "a=b",
+			"_a9 =\tb", "9a = b", "a = b c", "a =", "= b", "\"path\"",
+			"\"\"", "\"\"\"", "\"a\"b\"", "\"a \" \"", "\"a", "a\"", "lit",
+			"lit x", "x" };
+	private static final String[] ENDS = { "", " ", "\t ", "\n", " \n" };
+	@Test
+	public void literalPrefixTest() {
+		assertAgreesWithRegexes("#");
+		assertAgreesWithRegexes("%%");
+	}
+	@Test
+	public void emptyPrefixTest() {
+		assertAgreesWithRegexes("");
+	}
+	@Test
+	public void regexPrefixTest() {
+		// neither prefix can be compared literally
+		assertAgreesWithRegexes("#+");
+		assertAgreesWithRegexes("[#@]");
+	}
+	@Test
+	public void includeTest() {
+		DirectiveLexer lexer = lexer("");
+		assertEquals(null, include(lexer, "include \"\""));
+		assertEquals("\"", include(lexer, "include \"\"\""));
+		assertEquals("a\"b", include(lexer, "include\"a\"b\"  \t"));
+		assertEquals("a \" ", include(lexer, "include \"a \" \"\n"));
+		assertEquals("path", include(lexer, "include \"path\" \n"));
+		assertEquals(null, include(lexer, "include \"path\" x"));
+	}
+	@Test
+	public void configTest() {
+		DirectiveLexer lexer = lexer("#");
+		assertArrayEquals(new String[] { "name", "value" }, config(lexer,
+				"#config:name=value \t\n"));
+		assertArrayEquals(null, config(lexer, "#config: name = a b"));
+		assertArrayEquals(null, config(lexer, "config: name = value"));
+	}
+	@Test
+	public void mayContainReplaceTest() {
+		DirectiveLexer lexer = lexer("");
+		assertFalse(lexer.mayContainReplace(""));
+		assertFalse(lexer.mayContainReplace("x\nreplace\n"));
+		assertFalse(lexer.mayContainReplace("x\n replace x\n\ty\n"));
+		assertTrue(lexer.mayContainReplace("x\nreplace x\n\ty\n"));
+		// a header at the end of the file, without a replacement, is still
+		// reported, as the lexer only looks at a line at a time
+		assertTrue(lexer.mayContainReplace("x\nreplace x"));
+		assertTrue(lexer.mayContainReplace("x\nreplacelit"));
+		assertFalse(lexer.mayContainReplace("x\nreplace"));
+		for (String prefix : PREFIXES) {
+			lexer = lexer(prefix);
+			Pattern replace = config(prefix).patternMatch(
+					EredmelPreprocessor.REPLACE, 0);
+			for (String text : lines(prefix)) {
+				text = "plain\n" + text + "\tbody\nplain";
+				if (replace.matcher(text).find())
+					assertTrue(prefix + ": " + text, lexer
+							.mayContainReplace(text));
+			}
+		}
+	}
+	/**
+	 * Checks that the lexer classifies and parses every line the way the
+	 * regexes do
+	 */
+	private static void assertAgreesWithRegexes(String prefix) {
+		EredmelConfiguration config = config(prefix);
+		DirectiveLexer lexer = DirectiveLexer.of(config);
+		Pattern configPattern = config.patternMatch(
+				EredmelPreprocessor.CONFIG, 0);
+		Pattern includePattern = config.patternMatch(INCLUDE, 0);
+		Pattern replacePattern = config.patternMatch(REPLACE_HEADER, 0);
+		for (String line : lines(prefix)) {
+			Directive directive = lexer.classify(line, 0, line.length());
+			String message = prefix + ": " + line;
+			Matcher configMatch = configPattern.matcher(line);
+			String[] setting = config(lexer, line);
+			if (configMatch.find()) {
+				assertEquals(message, Directive.CONFIG, directive);
+				assertArrayEquals(message, new String[] {
+						configMatch.group("name"), configMatch.group("value") },
+						setting);
+			} else assertEquals(message, null, setting);
+			Matcher includeMatch = includePattern.matcher(line);
+			String path = include(lexer, line);
+			if (includeMatch.find()) {
+				assertEquals(message, Directive.INCLUDE, directive);
+				assertEquals(message, includeMatch.group("path"), path);
+			} else assertEquals(message, null, path);
+			assertEquals(message, replacePattern.matcher(line).find(),
+					directive == Directive.REPLACE);
+		}
+	}
+	private static String include(DirectiveLexer lexer, String line) {
+		return lexer.classify(line, 0, line.length()) == Directive.INCLUDE ? lexer
+				.includePath(line) : null;
+	}
+	private static String[] config(DirectiveLexer lexer, String line) {
+		return lexer.classify(line, 0, line.length()) == Directive.CONFIG ? lexer
+				.configSetting(line) : null;
+	}
+	/**
+	 * @return every combination of a prefix, keyword, whitespace, body and
+	 *         line ending, with and without the given prefix
+	 */
+	private static List<String> lines(String prefix) {
+		List<String> lines = new ArrayList<>();
+		for (String start : new String[] { prefix, "", " " + prefix, "#" })
+			for (String keyword : KEYWORDS)
+				for (String space : SPACES)
+					for (String body : BODIES)
+						for (String end : ENDS)
+							lines.add(start + keyword + space + body + end);
+		return lines;
+	}
+	private static DirectiveLexer lexer(String prefix) {
+		return DirectiveLexer.of(config(prefix));
+	}
+	private static EredmelConfiguration config(String prefix) {
+		return EredmelConfiguration.getDefault().with(ConfigSetting.PREFIX,
+				prefix);
+	}
+}
@@ -0,0 +1,146 @@
+package eredmel.preprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eredmel.config.ConfigSetting;
+import eredmel.config.EredmelConfiguration;
+import eredmel.utils.string.ChunkCursor;
+
+/**
+ * Checks that slices and concatenations of a paged file read its pages rather
+ * than copying its lines, and agree with those of the same file on the heap.
+ * Paged files are package-private, so this test lives in their package.
+ */
+public class PagedSliceTest {
+	private static final EredmelConfiguration CONFIG = EredmelConfiguration
+			.getDefault().with(ConfigSetting.MEMORY_BUDGET, "1");
+	@Test
+	public void sliceTest() throws IOException {
+		Random random = new Random(0);
+		ReadFile<EredmelLine> heap = file(random, new ArrayList<>(),
+				3 * PagedReadFile.PAGE_CHARS);
+		heap.blocks();
+		PagedReadFile paged = PagedReadFile.spill(heap);
+		try {
+			assertFile(heap, paged);
+			for (int check = 0; check < 100; check++) {
+				int start = random.nextInt(heap.length());
+				int end = start + random.nextInt(heap.length() - start + 1);
+				ReadFile<EredmelLine> expected = heap.subSequence(start, end);
+				ReadFile<EredmelLine> slice = paged.subSequence(start, end);
+				assertFile(expected, slice);
+				int mid = random.nextInt(slice.length() + 1);
+				ReadFile<EredmelLine> head = slice.subSequence(0, mid);
+				ReadFile<EredmelLine> tail = slice.subSequence(mid,
+						slice.length());
+				ReadFile<EredmelLine> heapHead = expected.subSequence(0, mid);
+				ReadFile<EredmelLine> heapTail = expected.subSequence(mid,
+						expected.length());
+				assertFile(heapHead, head);
+				assertFile(heapTail, tail);
+				assertFile(heapHead.concat(heapTail), head.concat(tail));
+				assertFile(ReadFile.concat(Arrays.asList(heapHead, heapTail,
+						heap), CONFIG), ReadFile.concat(Arrays.asList(head,
+						tail, paged), CONFIG));
+			}
+		} finally {
+			paged.close();
+		}
+	}
+	@Test
+	public void writerTest() throws IOException {
+		Random random = new Random(1);
+		ReadFile<EredmelLine> heap = file(random, new ArrayList<>(),
+				2 * PagedReadFile.PAGE_CHARS + 100);
+		String text = heap.toString();
+		PagedReadFile.Writer writer = PagedReadFile.writer(CONFIG);
+		for (int i = 0; i < heap.numLines(); i++) {
+			writer.write(heap.lineAt(i));
+			// what has been written can be read back, from the pages written
+			// out and the page being filled
+			if (i % 1000 == 0) {
+				int index = random.nextInt(writer.length());
+				assertEquals(text.charAt(index), writer.charAt(index));
+				assertEquals(text.substring(0, writer.length()), writer
+						.toString());
+			}
+		}
+		PagedReadFile file = writer.finish();
+		try {
+			assertFile(heap, file);
+		} finally {
+			file.close();
+		}
+	}
+	@Test
+	public void ruleTest() throws IOException {
+		List<EredmelLine> lines = new ArrayList<>();
+		int id = FileRegistry.idOf(Paths.get("paged.edmh"));
+		lines.add(new EredmelLine(id, 0, "replacelit line\n", 0));
+		lines.add(new EredmelLine(id, 1, "row\n", 1));
+		// without a budget, only the rule itself can page its result out
+		ReadFile<EredmelLine> heap = new ReadFile<>(file(new Random(2), lines,
+				3 * PagedReadFile.PAGE_CHARS).lines,
+				EredmelConfiguration.getDefault());
+		PagedReadFile paged = PagedReadFile.spill(heap);
+		ReadFile<EredmelLine> replaced = EredmelPreprocessor
+				.applyReplaces(paged);
+		try {
+			// the result is written out as the rule is applied
+			assertTrue(replaced instanceof PagedReadFile);
+			assertFile(EredmelPreprocessor.applyReplaces(heap), replaced);
+		} finally {
+			PagedReadFile.closeQuietly(replaced);
+			paged.close();
+		}
+	}
+	/**
+	 * Checks that a file has the text and lines of another, and that it is
+	 * paged if it has any lines not cut from a paged file
+	 */
+	private static void assertFile(ReadFile<EredmelLine> expected,
+			ReadFile<EredmelLine> actual) {
+		String text = expected.toString();
+		assertEquals(text, actual.toString());
+		char[] chars = new char[actual.length()];
+		actual.getChars(0, chars.length, chars, 0);
+		assertEquals(text, new String(chars));
+		CharSequence cursor = ChunkCursor.of(actual);
+		for (int i = 0; i < text.length(); i += 101)
+			assertEquals(text.charAt(i), cursor.charAt(i));
+		assertEquals(expected.numLines(), actual.numLines());
+		for (int i = 0; i < expected.numLines(); i += 37) {
+			assertEquals(expected.lineAt(i).displayWithTabs(), actual.lineAt(i)
+					.displayWithTabs());
+			assertEquals(expected.lineAt(i).lineNumber,
+					actual.lineAt(i).lineNumber);
+		}
+		if (actual.numLines() > 2) assertTrue(actual.paged());
+		assertEquals(expected.contentHash(), actual.contentHash());
+	}
+	/**
+	 * @return a file of the given lines, followed by random lines, of at least
+	 *         the given length
+	 */
+	private static ReadFile<EredmelLine> file(Random random,
+			List<EredmelLine> lines, int length) {
+		int id = FileRegistry.idOf(Paths.get("paged.edmh"));
+		for (int size = 0; size < length;) {
+			EredmelLine line = new EredmelLine(id, lines.size(), "line "
+					+ random.nextInt() + "\n", random.nextInt(4));
+			lines.add(line);
+			size += line.length();
+		}
+		return new ReadFile<>(lines, CONFIG);
+	}
+}
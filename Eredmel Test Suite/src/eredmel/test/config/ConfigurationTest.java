@@ -0,0 +1,39 @@
+package eredmel.test.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eredmel.config.ConfigSetting;
+import eredmel.config.EredmelConfiguration;
+
+public class ConfigurationTest {
+	@Test
+	public void derivationTest() {
+		EredmelConfiguration def = EredmelConfiguration.getDefault();
+		EredmelConfiguration eight = def.with(ConfigSetting.TABWIDTH, "8");
+		assertEquals("Default tabwidth", 4, def.tabwidth());
+		assertEquals("Derived tabwidth", 8, eight.tabwidth());
+		assertFalse(def.isDefined(ConfigSetting.TABWIDTH));
+		assertTrue(eight.isDefined(ConfigSetting.TABWIDTH));
+		assertEquals(eight, def.with(ConfigSetting.TABWIDTH, "8"));
+		assertSame(eight, eight.with(ConfigSetting.TABWIDTH, "8"));
+	}
+	@Test(
+			expected = IllegalArgumentException.class)
+	public void invalidTest() {
+		EredmelConfiguration.getDefault().with(ConfigSetting.TABWIDTH, "four");
+	}
+	@Test
+	public void preserveOnlySessionTest() {
+		EredmelConfiguration session = EredmelConfiguration.getDefault().with(
+				ConfigSetting.PREFIX, "#");
+		assertSame(session, session.preserveOnlySession());
+		EredmelConfiguration file = session.with(ConfigSetting.TABWIDTH, "2");
+		assertEquals(session, file.preserveOnlySession());
+		assertEquals("{TABWIDTH=2, PREFIX=#}", file.toString());
+	}
+}
@@ -0,0 +1,118 @@
+package eredmel.test.preprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eredmel.config.EredmelConfiguration;
+import eredmel.preprocessor.BlockIndex;
+import eredmel.preprocessor.EredmelLine;
+import eredmel.preprocessor.EredmelPreprocessor;
+import eredmel.preprocessor.ReadFile;
+import eredmel.utils.string.TextHash;
+
+public class BlockIndexTest {
+	@Test
+	public void basicTest() {
+		ReadFile<EredmelLine> file = EredmelPreprocessor.loadFile(
+				Paths.get("eg/inclusion/a/basic.edmh"), new ArrayList<>(),
+				EredmelConfiguration.getDefault());
+		BlockIndex blocks = file.blocks();
+		assertEquals(-1, blocks.level(1));
+		assertEquals(0, blocks.parent(1));
+		assertEquals(1, blocks.blockEnd(0));
+		assertEquals(-1, blocks.parent(2));
+		assertEquals(6, blocks.blockEnd(2));
+		assertEquals(Arrays.asList(3, 5), blocks.children(2));
+		assertEquals(2, blocks.parent(3));
+		assertEquals(3, blocks.parent(4));
+		assertEquals(2, blocks.parent(5));
+		assertEquals(5, blocks.parent(6));
+		assertEquals(5, file.enclosingBlock(file.length() - 1));
+		assertAgreesWithScan(file);
+		assertTrue(file.contentEquals(file.subSequence(0, 5).concat(
+				file.subSequence(5, file.length()))));
+		assertFalse(file.contentEquals(file.subSequence(1, file.length())
+				.concat(file.subSequence(0, 1))));
+	}
+	@Test
+	public void editTest() throws IOException {
+		Random random = new Random(0);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			int tabs = random.nextInt(4);
+			for (int t = 0; t < tabs; t++)
+				text.append('\t');
+			text.append(random.nextInt(5) == 0 ? "" : "line " + i).append('\n');
+		}
+		Path path = Files.createTempFile("blocks", ".edmh");
+		try {
+			Files.write(path, text.toString().getBytes());
+			ReadFile<EredmelLine> file = EredmelPreprocessor.loadFile(path,
+					new ArrayList<>(), EredmelConfiguration.getDefault());
+			assertAgreesWithScan(file);
+			for (int i = 0; i < 50; i++) {
+				// cut the file at arbitrary characters and swap the pieces
+				int a = random.nextInt(file.length()), b = a
+						+ random.nextInt(file.length() - a);
+				file = file.subSequence(b, file.length())
+						.concat(file.subSequence(a, b))
+						.concat(file.subSequence(0, a));
+				assertAgreesWithScan(file);
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+	/**
+	 * Checks the index of the given file against levels found by scanning
+	 */
+	private static void assertAgreesWithScan(ReadFile<EredmelLine> file) {
+		BlockIndex blocks = file.blocks();
+		int size = file.numLines();
+		assertEquals(size, blocks.size());
+		assertEquals(TextHash.of(file.toString()), file.contentHash());
+		// hashed a chunk at a time, across lines
+		assertEquals(file.contentHash(), TextHash.of(file));
+		int[] levels = new int[size];
+		for (int i = 0; i < size; i++) {
+			String line = file.lineAt(i).toString();
+			boolean starts = i == 0
+					|| file.lineAt(i - 1).toString().endsWith("\n");
+			int tabs = line.length() - line.replaceAll("^\t*", "").length();
+			levels[i] = starts && !line.trim().isEmpty() ? tabs : -1;
+			assertEquals(levels[i], blocks.level(i));
+		}
+		for (int i = 0; i < size; i++) {
+			int parent = i - 1;
+			while (parent >= 0
+					&& (levels[parent] < 0 || levels[i] >= 0
+							&& levels[parent] >= levels[i]))
+				parent--;
+			assertEquals(parent, blocks.parent(i));
+			int end = i;
+			List<Integer> children = new ArrayList<>();
+			if (levels[i] >= 0) {
+				while (end + 1 < size
+						&& (levels[end + 1] < 0 || levels[end + 1] > levels[i]))
+					end++;
+				for (int j = i + 1; j <= end; j++)
+					if (levels[j] >= 0 && blocks.parent(j) == i)
+						children.add(j);
+			}
+			assertEquals(end, blocks.blockEnd(i));
+			assertEquals(children, blocks.children(i));
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package eredmel.test.preprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import eredmel.config.EredmelConfiguration;
+import eredmel.preprocessor.EditSession;
+import eredmel.preprocessor.EredmelLine;
+import eredmel.preprocessor.EredmelPreprocessor;
+import eredmel.preprocessor.ReadFile;
+
+public class EditSessionTest {
+	@Test
+	public void replaceTest() throws IOException {
+		List<String> lines = new ArrayList<>(Arrays.asList("replace x(\\d+)",
+				"\ty$1", "replacelit : \\n\\t block", "\t: block"));
+		for (int i = 0; i < 2000; i++) {
+			lines.add("x" + i + " = x" + i % 7 + ":");
+			lines.add("\tblock x" + i);
+		}
+		Path path = Files.createTempFile("edit", ".edmh");
+		try {
+			Files.write(path, lines);
+			EditSession session = EditSession.open(path, new ArrayList<>(),
+					EredmelConfiguration.getDefault());
+			assertAgrees(session, lines, path);
+			edit(session, lines, 1004, 0, 1004, 4, "x77777");
+			assertTrue(session.incremental());
+			assertAgrees(session, lines, path);
+			int end = lines.get(2001).length();
+			edit(session, lines, 2001, end, 2001, end,
+					"\n\tblock extra\nx0 = x1:");
+			assertTrue(session.incremental());
+			assertAgrees(session, lines, path);
+			edit(session, lines, 3000, 0, 3002, 0, "");
+			assertTrue(session.incremental());
+			assertAgrees(session, lines, path);
+			// changes the rule itself
+			edit(session, lines, 1, 1, 1, 2, "z");
+			assertFalse(session.incremental());
+			assertAgrees(session, lines, path);
+		} finally {
+			Files.delete(path);
+		}
+	}
+	@Test
+	public void tabwidthTest() throws IOException {
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < 500; i++)
+			lines.addAll(Arrays.asList("a" + i + ":", "    b", "        c"));
+		Path path = Files.createTempFile("edit", ".edmh");
+		try {
+			Files.write(path, lines);
+			EditSession session = EditSession.open(path, new ArrayList<>(),
+					EredmelConfiguration.getDefault());
+			assertAgrees(session, lines, path);
+			edit(session, lines, 301, 4, 301, 5, "d");
+			assertTrue(session.incremental());
+			assertAgrees(session, lines, path);
+			// the tabwidth inferred is now 2
+			edit(session, lines, 600, 0, 600, 0, "  e\n");
+			assertFalse(session.incremental());
+			assertAgrees(session, lines, path);
+			edit(session, lines, 900, 0, 900, 0, "      f\n");
+			assertTrue(session.incremental());
+			assertAgrees(session, lines, path);
+		} finally {
+			Files.delete(path);
+		}
+	}
+	/**
+	 * Makes the same edit to the session and to the lines of the file
+	 */
+	private static void edit(EditSession session, List<String> lines,
+			int line, int column, int endLine, int endColumn, String text) {
+		session.edit(line, column, endLine, endColumn, text);
+		String edited = lines.get(line).substring(0, column) + text
+				+ lines.get(endLine).substring(endColumn);
+		lines.subList(line, endLine + 1).clear();
+		lines.addAll(line, Arrays.asList(edited.split("\n", -1)));
+	}
+	/**
+	 * Checks the session against the lines of the file loaded from scratch
+	 */
+	private static void assertAgrees(EditSession session, List<String> lines,
+			Path path) throws IOException {
+		Files.write(path, lines);
+		ReadFile<EredmelLine> linked = EredmelPreprocessor.loadFile(path,
+				new ArrayList<>(), EredmelConfiguration.getDefault());
+		ReadFile<EredmelLine> replaced = EredmelPreprocessor
+				.applyReplaces(linked);
+		assertEquals(linked.toString(), session.linked().toString());
+		assertEquals(linked.contentHash(), session.linked().contentHash());
+		assertEquals(replaced.toString(), session.replaced().toString());
+		assertEquals(replaced.contentHash(), session.replaced().contentHash());
+		assertOrigins(linked, session.linked());
+		assertOrigins(replaced, session.replaced());
+	}
+	private static void assertOrigins(ReadFile<EredmelLine> expected,
+			ReadFile<EredmelLine> actual) {
+		for (int i = 0; i < expected.numLines(); i++) {
+			assertEquals(expected.lineAt(i).path(), actual.lineAt(i).path());
+			assertEquals(expected.lineAt(i).lineNumber,
+					actual.lineAt(i).lineNumber);
+		}
+	}
+}
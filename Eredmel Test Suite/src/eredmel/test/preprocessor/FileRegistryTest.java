@@ -0,0 +1,44 @@
+package eredmel.test.preprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import eredmel.preprocessor.FileRegistry;
+
+public class FileRegistryTest {
+	@Test
+	public void resetTest() {
+		Path relative = Paths.get("eg/inclusion/a/simple.edmh");
+		try {
+			FileRegistry.reset();
+			int id = FileRegistry.idOf(relative);
+			assertEquals(id, FileRegistry.idOf(Paths
+					.get("eg/inclusion/b/../a/simple.edmh")));
+			assertEquals(relative, FileRegistry.pathOf(id));
+			FileRegistry.reset();
+			assertEquals(0, FileRegistry.size());
+			// registered again, as it is spelled now
+			Path absolute = relative.toAbsolutePath();
+			int again = FileRegistry.idOf(absolute);
+			assertTrue("Ids are not reused", again > id);
+			assertEquals(absolute, FileRegistry.pathOf(again));
+			assertEquals(again, FileRegistry.idOf(relative));
+			assertEquals(1, FileRegistry.size());
+			try {
+				FileRegistry.pathOf(id);
+				fail("The id from before the reset is still valid");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		} finally {
+			// later files are registered as they are spelled there
+			FileRegistry.reset();
+		}
+	}
+}
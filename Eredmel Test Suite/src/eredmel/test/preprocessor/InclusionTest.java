@@ -2,21 +2,26 @@ package eredmel.test.preprocessor;
 
 import static java.lang.String.format;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import eredmel.config.EredmelConfiguration;
+import eredmel.logger.Cancelled;
+import eredmel.logger.ControlFlow;
 import eredmel.logger.DebuggerLogger;
 import eredmel.logger.EredmelLogger;
 import eredmel.logger.EredmelMessage;
 import eredmel.logger.EredmelMessage.LoggingLevel;
+import eredmel.preprocessor.CancellationToken;
 import eredmel.preprocessor.EredmelLine;
 import eredmel.preprocessor.EredmelPreprocessor;
 import eredmel.preprocessor.NumberedLine;
@@ -65,6 +70,51 @@ public class InclusionTest {
 						Paths.get("eg/inclusion/a/404.edmh"), 0, Optional
 								.empty()));
 	}
+	@Test
+	public void cancelled() {
+		CancellationToken token = new CancellationToken();
+		token.cancel();
+		log.clear();
+		try {
+			EredmelPreprocessor.loadFile(Paths.get(relative("a/simple.edmh")),
+					new ArrayList<>(), EredmelConfiguration.getDefault(), token);
+		} catch (ControlFlow e) {
+			// raised by the logger, before the cancellation itself
+			assertTrue("Has message", log.containsMessage());
+			EredmelMessage actual = log.pop();
+			assertEquals(LoggingLevel.HIGH, actual.level);
+			assertEquals("Preprocessing was cancelled", actual.msg);
+			assertEquals(Paths.get(relative("a/simple.edmh")), actual.file);
+			return;
+		}
+		throw new AssertionError("No error raised");
+	}
+	@Test
+	public void cancelledQuietly() {
+		CancellationToken token = new CancellationToken();
+		token.cancel();
+		List<EredmelMessage> logged = new ArrayList<>();
+		EredmelLogger.set(new EredmelLogger() {
+			@Override
+			protected void log(EredmelMessage message) {
+				logged.add(message);
+			}
+		});
+		try {
+			EredmelPreprocessor.loadFile(Paths.get(relative("a/simple.edmh")),
+					new ArrayList<>(), EredmelConfiguration.getDefault(), token);
+		} catch (Cancelled e) {
+			assertEquals(1, logged.size());
+			assertSame(logged.get(0), e.message);
+			assertEquals(LoggingLevel.HIGH, e.message.level);
+			assertEquals("Preprocessing was cancelled", e.message.msg);
+			assertEquals(Paths.get(relative("a/simple.edmh")), e.message.file);
+			return;
+		} finally {
+			EredmelLogger.set(log);
+		}
+		throw new AssertionError("Not cancelled");
+	}
 	public static void testInclusionError(String path, EredmelMessage expect) {
 		log.clear();
 		try {
@@ -0,0 +1,143 @@
+package eredmel.test.preprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import eredmel.config.EredmelConfiguration;
+import eredmel.logger.EredmelLogger;
+import eredmel.logger.EredmelMessage;
+import eredmel.preprocessor.EredmelLine;
+import eredmel.preprocessor.EredmelPreprocessor;
+import eredmel.preprocessor.LibraryArtifact;
+import eredmel.preprocessor.ReadFile;
+
+public class LibraryArtifactTest {
+	private static final Path INCLUSION = Paths.get("eg/inclusion/a");
+	@Test
+	public void freshTest() throws IOException {
+		Path dir = Files.createTempDirectory("artifact");
+		Path simple = dir.resolve("simple.edmh"), basic = dir
+				.resolve("basic.edmh");
+		try {
+			Files.copy(INCLUSION.resolve("simple.edmh"), simple);
+			Files.copy(INCLUSION.resolve("basic.edmh"), basic);
+			EredmelConfiguration config = EredmelConfiguration.getDefault();
+			ReadFile<EredmelLine> expected = EredmelPreprocessor.loadFile(
+					simple, new ArrayList<>(), config);
+			LibraryArtifact.build(simple, new ArrayList<>(), config);
+			Optional<ReadFile<EredmelLine>> artifact = LibraryArtifact
+					.loadIfFresh(simple, new ArrayList<>(), config);
+			assertTrue(artifact.isPresent());
+			ReadFile<EredmelLine> actual = artifact.get();
+			assertEquals(expected.toString(), actual.toString());
+			assertEquals(expected.numLines(), actual.numLines());
+			for (int i = 0; i < expected.numLines(); i++) {
+				assertEquals(expected.lineAt(i).path(), actual.lineAt(i).path());
+				assertEquals(expected.lineAt(i).lineNumber,
+						actual.lineAt(i).lineNumber);
+			}
+			assertEquals(expected.toString(), EredmelPreprocessor.loadFile(
+					simple, new ArrayList<>(), config).toString());
+			Files.setLastModifiedTime(basic, FileTime.fromMillis(Files
+					.getLastModifiedTime(basic).toMillis() + 1000));
+			assertFalse(LibraryArtifact.loadIfFresh(simple, new ArrayList<>(),
+					config).isPresent());
+		} finally {
+			Files.deleteIfExists(LibraryArtifact.artifactOf(simple));
+			Files.deleteIfExists(simple);
+			Files.deleteIfExists(basic);
+			Files.delete(dir);
+		}
+	}
+	@Test
+	public void corruptTest() throws IOException {
+		Path dir = Files.createTempDirectory("artifact");
+		Path simple = dir.resolve("simple.edmh"), basic = dir
+				.resolve("basic.edmh");
+		Path artifact = LibraryArtifact.artifactOf(simple);
+		try {
+			Files.copy(INCLUSION.resolve("simple.edmh"), simple);
+			Files.copy(INCLUSION.resolve("basic.edmh"), basic);
+			EredmelConfiguration config = EredmelConfiguration.getDefault();
+			LibraryArtifact.build(simple, new ArrayList<>(), config);
+			byte[] bytes = Files.readAllBytes(artifact);
+			for (int length = 0; length < bytes.length; length++) {
+				Files.write(artifact, Arrays.copyOf(bytes, length));
+				assertFalse(LibraryArtifact.loadIfFresh(simple,
+						new ArrayList<>(), config).isPresent());
+			}
+			// any byte may be damaged, which is either noticed or harmless
+			for (int i = 0; i < bytes.length; i++) {
+				byte[] damaged = bytes.clone();
+				damaged[i] ^= 0x55;
+				Files.write(artifact, damaged);
+				LibraryArtifact.loadIfFresh(simple, new ArrayList<>(), config);
+			}
+			Files.write(artifact, bytes);
+			assertTrue(LibraryArtifact.loadIfFresh(simple, new ArrayList<>(),
+					config).isPresent());
+		} finally {
+			Files.deleteIfExists(artifact);
+			Files.deleteIfExists(simple);
+			Files.deleteIfExists(basic);
+			Files.delete(dir);
+		}
+	}
+	@Test
+	public void includeTest() throws IOException {
+		Path dir = Files.createTempDirectory("artifact");
+		Path libs = Files.createDirectory(dir.resolve("libs"));
+		Path main = dir.resolve("main.edmh"), lib = dir.resolve("lib.edmh"),
+				extra = dir.resolve("extra.edmh"), shadow = libs
+						.resolve("lib.edmh");
+		List<Path> linkedLibs = new ArrayList<>(Arrays.asList(libs));
+		EredmelConfiguration config = EredmelConfiguration.getDefault();
+		// the inclusion not found is reported, but not fatal
+		List<EredmelMessage> messages = new ArrayList<>();
+		EredmelLogger.set(new EredmelLogger() {
+			@Override
+			protected void log(EredmelMessage message) {
+				messages.add(message);
+			}
+		});
+		try {
+			Files.write(main, Arrays.asList("include \"lib.edmh\"",
+					"include \"extra.edmh\"", "main"));
+			Files.write(lib, Arrays.asList("lib"));
+			LibraryArtifact.build(main, linkedLibs, config);
+			assertEquals(1, messages.size());
+			assertTrue(LibraryArtifact.loadIfFresh(main, linkedLibs, config)
+					.isPresent());
+			// an inclusion which was not found is found
+			Files.write(extra, Arrays.asList("extra"));
+			assertFalse(LibraryArtifact.loadIfFresh(main, linkedLibs, config)
+					.isPresent());
+			Files.delete(extra);
+			assertTrue(LibraryArtifact.loadIfFresh(main, linkedLibs, config)
+					.isPresent());
+			// the search path is searched before the directory of the file
+			Files.write(shadow, Arrays.asList("shadow"));
+			assertFalse(LibraryArtifact.loadIfFresh(main, linkedLibs, config)
+					.isPresent());
+		} finally {
+			EredmelLogger.set(EredmelLogger.DEFAULT_LOGGER);
+			for (Path path : Arrays.asList(LibraryArtifact.artifactOf(main),
+					main, lib, extra, shadow, libs))
+				Files.deleteIfExists(path);
+			Files.delete(dir);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package eredmel.test.preprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eredmel.config.ConfigSetting;
+import eredmel.config.EredmelConfiguration;
+import eredmel.preprocessor.EredmelLine;
+import eredmel.preprocessor.EredmelPreprocessor;
+import eredmel.preprocessor.ReadFile;
+
+public class PagedReadFileTest {
+	@Test
+	public void budgetTest() throws IOException {
+		Random random = new Random(0);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 3 << 20) {
+			for (int tabs = random.nextInt(4); tabs > 0; tabs--)
+				text.append('\t');
+			text.append("line ").append(random.nextInt()).append('\n');
+		}
+		Path file = Files.createTempFile("paged", ".edmh");
+		try {
+			Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+			ReadFile<EredmelLine> heap = EredmelPreprocessor.loadFile(file,
+					new ArrayList<>(), EredmelConfiguration.getDefault());
+			ReadFile<EredmelLine> paged = EredmelPreprocessor.loadFile(file,
+					new ArrayList<>(), EredmelConfiguration.getDefault().with(
+							ConfigSetting.MEMORY_BUDGET, "1"));
+			assertEquals(heap.numLines(), paged.numLines());
+			assertEquals(heap.toString(), paged.toString());
+			for (int check = 0; check < 1000; check++) {
+				int i = random.nextInt(heap.numLines());
+				assertEquals(heap.lineAt(i).displayWithTabs(), paged.lineAt(i)
+						.displayWithTabs());
+				int index = random.nextInt(heap.length());
+				assertEquals(heap.charAt(index), paged.charAt(index));
+			}
+			close(paged);
+		} finally {
+			Files.delete(file);
+		}
+	}
+	@Test
+	public void normalizeTest() throws IOException {
+		Random random = new Random(0);
+		StringBuilder text = new StringBuilder(
+				"\nconfig: tabwidth = 2\n\nconfig: replacegrowth = 9\n");
+		while (text.length() < 1 << 20) {
+			for (int spaces = random.nextInt(4); spaces > 0; spaces--)
+				text.append("  ");
+			if (random.nextInt(8) == 0) text.append('\t');
+			if (random.nextInt(16) != 0)
+				text.append("line ").append(random.nextInt());
+			text.append(random.nextBoolean() ? "\n" : "\r\n");
+		}
+		Path file = Files.createTempFile("paged", ".edmh");
+		try {
+			Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+			ReadFile<EredmelLine> heap = EredmelPreprocessor.loadFile(file,
+					new ArrayList<>(), EredmelConfiguration.getDefault());
+			// the file is read straight out to disk, without being read
+			// onto the heap first
+			ReadFile<EredmelLine> paged = EredmelPreprocessor.loadFile(file,
+					new ArrayList<>(), EredmelConfiguration.getDefault().with(
+							ConfigSetting.MEMORY_BUDGET, "1"));
+			for (ReadFile<EredmelLine> loaded : Arrays.asList(heap, paged)) {
+				assertEquals(2, loaded.config().tabwidth());
+				assertEquals(9, loaded.config().intValue(
+						ConfigSetting.REPLACE_GROWTH));
+			}
+			assertEquals(heap.numLines(), paged.numLines());
+			assertEquals(heap.toString(), paged.toString());
+			assertEquals(heap.contentHash(), paged.contentHash());
+			for (int i = 0; i < heap.numLines(); i += 97)
+				assertEquals(heap.lineAt(i).lineNumber,
+						paged.lineAt(i).lineNumber);
+			close(paged);
+		} finally {
+			Files.delete(file);
+		}
+	}
+	@Test
+	public void replaceTest() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 600000; i++)
+			text.append("line ").append(i).append('\n');
+		int before = pages();
+		Path file = Files.createTempFile("paged", ".edmh");
+		try {
+			Files.write(file, Arrays.asList("replacelit line", "\trow",
+					"replacelit row", "\tentry", "replacelit entry", "\titem",
+					text.toString()));
+			ReadFile<EredmelLine> paged = EredmelPreprocessor.loadFile(file,
+					new ArrayList<>(), EredmelConfiguration.getDefault().with(
+							ConfigSetting.MEMORY_BUDGET, "1"));
+			ReadFile<EredmelLine> replaced = EredmelPreprocessor
+					.applyReplaces(paged);
+			assertEquals(text.toString().replace("line", "item") + "\n",
+					replaced.toString());
+			// the text paged out after each rule but the last is deleted
+			assertEquals(before + 2, pages());
+			close(replaced);
+			close(paged);
+			assertEquals(before, pages());
+		} finally {
+			Files.delete(file);
+		}
+	}
+	private static void close(ReadFile<EredmelLine> paged) throws IOException {
+		assertTrue("Paged", paged instanceof Closeable);
+		((Closeable) paged).close();
+	}
+	/**
+	 * @return the number of temporary files holding pages which are open
+	 */
+	private static int pages() throws IOException {
+		Path descriptors = Paths.get("/proc/self/fd");
+		// where there is a list of open files, the files are listed there,
+		// since they are deleted as soon as they are opened
+		if (!Files.isDirectory(descriptors))
+			return new File(System.getProperty("java.io.tmpdir"))
+					.listFiles((dir, name) -> isPages(name)).length;
+		int pages = 0;
+		try (DirectoryStream<Path> open = Files
+				.newDirectoryStream(descriptors)) {
+			for (Path descriptor : open) {
+				try {
+					if (isPages(Files.readSymbolicLink(descriptor)
+							.getFileName().toString())) pages++;
+				} catch (IOException e) {
+					// closed since it was listed
+				}
+			}
+		}
+		return pages;
+	}
+	private static boolean isPages(String name) {
+		return name.startsWith("eredmel") && name.contains(".pages");
+	}
+}
\ No newline at end of file
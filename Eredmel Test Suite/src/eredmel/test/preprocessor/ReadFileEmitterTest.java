@@ -0,0 +1,127 @@
+package eredmel.test.preprocessor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eredmel.config.EredmelConfiguration;
+import eredmel.preprocessor.EredmelLine;
+import eredmel.preprocessor.EredmelPreprocessor;
+import eredmel.preprocessor.ReadFile;
+import eredmel.preprocessor.ReadFileEmitter;
+import eredmel.preprocessor.ReadFileEmitter.Indentation;
+
+public class ReadFileEmitterTest {
+	@Test
+	public void tabsTest() throws IOException {
+		ReadFile<EredmelLine> file = load();
+		assertEquals(file.toString(), emit(file, Indentation.TABS));
+	}
+	@Test
+	public void spacesTest() throws IOException {
+		ReadFile<EredmelLine> file = load();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < file.numLines(); i++)
+			expected.append(file.lineAt(i).displayWithSpaces(
+					file.config().tabwidth()));
+		assertEquals(expected.toString(), emit(file, Indentation.SPACES));
+	}
+	@Test
+	public void encodingTest() throws IOException {
+		Random random = new Random(0);
+		StringBuilder text = new StringBuilder();
+		// enough to fill several batches of buffers
+		while (text.length() < 3 << 20) {
+			// deep enough indentation to run past the end of a buffer
+			for (int tabs = random.nextInt(300); tabs > 0; tabs--)
+				text.append('\t');
+			text.append('x');
+			for (int chars = random.nextInt(200); chars > 0; chars--)
+				text.appendCodePoint(randomCodePoint(random));
+			text.append('\n');
+		}
+		Path in = Files.createTempFile("encoded", ".edmh");
+		try {
+			Files.write(in, text.toString().getBytes(StandardCharsets.UTF_8));
+			ReadFile<EredmelLine> file = EredmelPreprocessor.loadFile(in,
+					new ArrayList<>(), EredmelConfiguration.getDefault());
+			assertEncoded(file);
+			// cutting surrogate pairs apart leaves unpaired surrogates, or
+			// pairs split across two lines
+			int high = pair(file, 0), low = pair(file, file.length() / 2);
+			ReadFile<EredmelLine> split = file.subSequence(0, high + 1)
+					.concat(file.subSequence(low + 1, file.length()));
+			assertEquals(Character.toCodePoint(file.charAt(high),
+					file.charAt(low + 1)), split.toString().codePointAt(high));
+			assertEncoded(split);
+			ReadFile<EredmelLine> unpairedHigh = file.subSequence(0, high + 1)
+					.concat(file.subSequence(high + 2, file.length()));
+			assertTrue(Character.isHighSurrogate(unpairedHigh.charAt(high))
+					&& !Character.isLowSurrogate(unpairedHigh.charAt(high + 1)));
+			assertEncoded(unpairedHigh);
+			ReadFile<EredmelLine> unpairedLow = file.subSequence(0, high)
+					.concat(file.subSequence(high + 1, file.length()));
+			assertTrue(Character.isLowSurrogate(unpairedLow.charAt(high))
+					&& !Character.isHighSurrogate(unpairedLow.charAt(high - 1)));
+			assertEncoded(unpairedLow);
+		} finally {
+			Files.delete(in);
+		}
+	}
+	private static void assertEncoded(ReadFile<EredmelLine> file)
+			throws IOException {
+		assertArrayEquals(file.toString().getBytes(StandardCharsets.UTF_8),
+				emitBytes(file, Indentation.TABS));
+	}
+	private static int randomCodePoint(Random random) {
+		switch (random.nextInt(4)) {
+			case 0:
+				return ' ' + random.nextInt(0x7F - ' ');
+			case 1:
+				return 0x80 + random.nextInt(0x800 - 0x80);
+			case 2:
+				int c = 0x800 + random.nextInt(0x10000 - 0x800);
+				return Character.isSurrogate((char) c) ? 0xFFFD : c;
+			default:
+				return 0x10000 + random.nextInt(0x110000 - 0x10000);
+		}
+	}
+	/**
+	 * The index of the high surrogate of the first surrogate pair at or after
+	 * the given index
+	 */
+	private static int pair(ReadFile<EredmelLine> file, int from) {
+		for (int i = from;; i++)
+			if (Character.isHighSurrogate(file.charAt(i))
+					&& Character.isLowSurrogate(file.charAt(i + 1))) return i;
+	}
+	private static ReadFile<EredmelLine> load() {
+		return EredmelPreprocessor.loadFile(
+				Paths.get("eg/inclusion/a/simple.edmh"), new ArrayList<>(),
+				EredmelConfiguration.getDefault());
+	}
+	private static String emit(ReadFile<EredmelLine> file,
+			Indentation indentation) throws IOException {
+		return new String(emitBytes(file, indentation), StandardCharsets.UTF_8);
+	}
+	private static byte[] emitBytes(ReadFile<EredmelLine> file,
+			Indentation indentation) throws IOException {
+		Path out = Files.createTempFile("emitted", ".edmh");
+		try {
+			ReadFileEmitter.emit(file, indentation, out);
+			return Files.readAllBytes(out);
+		} finally {
+			Files.delete(out);
+		}
+	}
+}
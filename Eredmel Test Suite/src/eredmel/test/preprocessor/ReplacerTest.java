@@ -1,18 +1,31 @@
 package eredmel.test.preprocessor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 
 import org.junit.Test;
 
 import eredmel.config.EredmelConfiguration;
+import eredmel.logger.ControlFlow;
+import eredmel.logger.DebuggerLogger;
+import eredmel.logger.EredmelLogger;
+import eredmel.logger.EredmelMessage;
+import eredmel.logger.EredmelMessage.LoggingLevel;
 import eredmel.preprocessor.EredmelLine;
 import eredmel.preprocessor.EredmelPreprocessor;
 import eredmel.preprocessor.NumberedLine;
 import eredmel.preprocessor.ReadFile;
+import eredmel.preprocessor.ReplaceTrace;
+import eredmel.preprocessor.ReplaceTrace.Step;
 
 public class ReplacerTest {
 	@Test
@@ -27,6 +40,145 @@ public class ReplacerTest {
 	public void recursiveTest() {
 		testReplace("recursive");
 	}
+	@Test
+	public void traceTest() throws IOException {
+		Path file = Files.createTempFile("trace", ".edmt");
+		try {
+			try (ReplaceTrace trace = ReplaceTrace.toFile(file).start()) {
+				testReplace("basic");
+				assertEquals(3, trace.recorded());
+			}
+			List<Step> steps = ReplaceTrace.read(file);
+			assertEquals(3, steps.size());
+			Path source = Paths.get(relative("basic.edmh"));
+			for (Step step : steps) {
+				assertEquals(source, step.rulePath);
+				assertEquals(0, step.ruleLine);
+				assertEquals(source, step.originPath);
+			}
+			assertEquals("if def(x)", steps.get(0).replacement);
+			assertEquals(3, steps.get(0).originLine);
+		} finally {
+			Files.delete(file);
+		}
+	}
+	@Test
+	public void cycleTest() {
+		testReplaceError("cycle", new EredmelMessage(LoggingLevel.HIGH,
+				"Replacement rule repeated an earlier state after 1 steps",
+				Paths.get("eg/replace/cycle.edmh"), 0, Optional.empty()));
+	}
+	@Test
+	public void stepLimitTest() {
+		testReplaceError("runaway", new EredmelMessage(LoggingLevel.HIGH,
+				"Replacement stopped after exceeding the replacerulesteps limit of 8",
+				Paths.get("eg/replace/runaway.edmh"), 1, Optional.empty()));
+	}
+	@Test
+	public void parallelTest() throws IOException {
+		// large enough to be split, with rules that are line- and block-local
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			body.append("x").append(i).append(" = x").append(i % 7)
+					.append(":\n\tblock x").append(i).append('\n');
+		assertReplaces(body.toString(), body.toString()
+				.replaceAll("x(\\d+)", "y$1").replace("y", "z")
+				.replace(":\n\tblock", ": block"), "replace x(\\d+)", "\ty$1",
+				"replacelit y", "\tz", "replacelit : \\n\\t block", "\t: block");
+		// a newline before a tab which may not match is not block-local, and
+		// every line of these ends in a match crossing into the next
+		body = new StringBuilder();
+		for (int i = 0; i < 8000; i++)
+			body.append(i % 3 == 0 ? "\tx" : "x").append(i).append(";\n");
+		assertReplaces(body.toString(), body.toString().replaceAll(
+				";\n\t*x", "; x"), "replace ;\\n\\t*x", "\t; x");
+		assertReplaces(body.toString(), body.toString().replaceAll(
+				";\n\t?x", "; x"), "replace ;\\n\\t?x", "\t; x");
+	}
+	@Test
+	public void parallelLimitTest() throws IOException {
+		StringBuilder body = new StringBuilder(), expected = new StringBuilder();
+		for (int i = 0; i < 12000; i++) {
+			body.append("x").append(i).append('\n');
+			expected.append(i < 5000 ? "y" : "x").append(i).append('\n');
+		}
+		// stopped where it would be applying the rule to the whole file in
+		// order, however the parts are scheduled
+		List<EredmelMessage> logged = assertReplacesLogging(body.toString(),
+				expected.toString(), "config: replacerulesteps = 5000",
+				"replacelit x", "\ty");
+		assertEquals(1, logged.size());
+		assertEquals(
+				"Replacement stopped after exceeding the replacerulesteps limit of 5000",
+				logged.get(0).msg);
+		// the text of the first part repeats only after its second rewrite,
+		// but the text of the whole file after its first
+		logged = assertReplacesLogging(body.toString(), body.toString(),
+				"replacelit x", "\tx");
+		assertEquals(1, logged.size());
+		assertEquals("Replacement rule repeated an earlier state after 1 steps",
+				logged.get(0).msg);
+	}
+	/**
+	 * Checks that the given rules replace the given body as expected, logging
+	 * messages rather than raising them
+	 * 
+	 * @return the messages logged
+	 */
+	private static List<EredmelMessage> assertReplacesLogging(String body,
+			String expected, String... rules) throws IOException {
+		List<EredmelMessage> logged = new ArrayList<>();
+		EredmelLogger.set(new EredmelLogger() {
+			@Override
+			protected void log(EredmelMessage message) {
+				logged.add(message);
+			}
+		});
+		try {
+			assertReplaces(body, expected, rules);
+		} finally {
+			EredmelLogger.set(EredmelLogger.DEFAULT_LOGGER);
+		}
+		return logged;
+	}
+	/**
+	 * Checks that the given rules replace the given body as expected
+	 */
+	private static void assertReplaces(String body, String expected,
+			String... rules) throws IOException {
+		Path file = Files.createTempFile("parallel", ".edmh");
+		try {
+			List<String> lines = new ArrayList<>(Arrays.asList(rules));
+			lines.add(body);
+			Files.write(file, lines);
+			ReadFile<EredmelLine> replaced = EredmelPreprocessor
+					.applyReplaces(EredmelPreprocessor.loadFile(file,
+							new ArrayList<>(), EredmelConfiguration.getDefault()));
+			assertEquals(expected + "\n", replaced.toString());
+		} finally {
+			Files.delete(file);
+		}
+	}
+	public static void testReplaceError(String path, EredmelMessage expect) {
+		DebuggerLogger log = new DebuggerLogger();
+		EredmelLogger.set(log);
+		try {
+			EredmelPreprocessor.applyReplaces(EredmelPreprocessor.loadFile(
+					Paths.get(relative(path + ".edmh")), new ArrayList<>(),
+					EredmelConfiguration.getDefault()));
+		} catch (ControlFlow e) {
+			assertTrue("Has message", log.containsMessage());
+			EredmelMessage actual = log.pop();
+			assertEquals(expect.level, actual.level);
+			assertEquals(expect.msg, actual.msg);
+			assertEquals(expect.file, actual.file);
+			assertEquals(expect.line, actual.line);
+			return;
+		} finally {
+			EredmelLogger.set(EredmelLogger.DEFAULT_LOGGER);
+		}
+		throw new AssertionError("No error raised");
+	}
 	public static void testReplace(String path) {
 		ReadFile<NumberedLine> replExpected;
 		try {
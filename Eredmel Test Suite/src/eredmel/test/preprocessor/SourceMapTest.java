@@ -0,0 +1,106 @@
+package eredmel.test.preprocessor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import eredmel.config.EredmelConfiguration;
+import eredmel.preprocessor.EredmelLine;
+import eredmel.preprocessor.EredmelPreprocessor;
+import eredmel.preprocessor.ReadFile;
+import eredmel.preprocessor.ReadFileEmitter;
+import eredmel.preprocessor.ReadFileEmitter.Indentation;
+import eredmel.preprocessor.SourceMap;
+
+public class SourceMapTest {
+	private static final Path SIMPLE = Paths.get("eg/inclusion/a/simple.edmh"),
+			BASIC = Paths.get("eg/inclusion/a/basic.edmh");
+	@Test
+	public void inclusionTest() {
+		ReadFile<EredmelLine> file = EredmelPreprocessor.loadFile(SIMPLE,
+				new ArrayList<>(), EredmelConfiguration.getDefault());
+		SourceMap map = SourceMap.of(file);
+		assertOrigins(file, map);
+		assertEquals(file.length(), map.length());
+		assertEquals(SIMPLE, map.pathAt(0));
+		assertEquals(0, map.lineAt(0));
+		int basicStart = 0;
+		for (int i = 0; i < 3; i++)
+			basicStart += file.lineAt(i).length();
+		assertEquals(BASIC, map.pathAt(basicStart));
+		assertEquals(0, map.lineAt(basicStart));
+		assertEquals(SIMPLE, map.pathAt(file.length() - 1));
+		assertEquals(5, map.lineAt(file.length() - 1));
+	}
+	@Test
+	public void sidecarTest() throws IOException {
+		ReadFile<EredmelLine> file = EredmelPreprocessor.loadFile(SIMPLE,
+				new ArrayList<>(), EredmelConfiguration.getDefault());
+		Path sidecar = Files.createTempFile("simple", ".edmmap");
+		try {
+			SourceMap.of(file).write(sidecar);
+			assertOrigins(file, SourceMap.read(sidecar));
+		} finally {
+			Files.delete(sidecar);
+		}
+	}
+	@Test
+	public void replacedSidecarTest() throws IOException {
+		Path source = Paths.get("eg/replace/basic.edmh");
+		ReadFile<EredmelLine> replaced = EredmelPreprocessor
+				.applyReplaces(EredmelPreprocessor.loadFile(source,
+						new ArrayList<>(), EredmelConfiguration.getDefault()));
+		Path out = Files.createTempFile("basic", ".edm");
+		Path sidecar = SourceMap.sidecarOf(out);
+		try {
+			SourceMap written = ReadFileEmitter.emitMapped(replaced,
+					Indentation.SPACES, out);
+			SourceMap map = SourceMap.read(sidecar);
+			String output = new String(Files.readAllBytes(out),
+					StandardCharsets.UTF_8);
+			assertEquals(output.length(), written.length());
+			assertEquals(output.length(), map.length());
+			assertEquals(written.size(), map.size());
+			// the offsets are those of the output, indented with spaces
+			int offset = 0, tabwidth = replaced.config().tabwidth();
+			for (int i = 0; i < replaced.numLines(); i++) {
+				EredmelLine line = replaced.lineAt(i);
+				String emitted = line.displayWithSpaces(tabwidth);
+				assertEquals(emitted, output.substring(offset, offset
+						+ emitted.length()));
+				for (int col = 0; col < emitted.length(); col++) {
+					assertEquals(line.path(), map.pathAt(offset + col));
+					assertEquals(line.lineNumber, map.lineAt(offset + col));
+				}
+				offset += emitted.length();
+			}
+			// the rewritten text maps back to the line it was matched in
+			assertEquals(source, map.pathAt(0));
+			assertEquals(3, map.lineAt(output.indexOf("if def(x)")));
+			int nested = output.indexOf("if def(y)");
+			assertEquals(9, map.lineAt(nested));
+			assertEquals(10, map.lineAt(output.indexOf("x = 2", nested)));
+		} finally {
+			Files.delete(out);
+			Files.deleteIfExists(sidecar);
+		}
+	}
+	private static void assertOrigins(ReadFile<EredmelLine> file, SourceMap map) {
+		int offset = 0;
+		for (int i = 0; i < file.numLines(); i++) {
+			EredmelLine line = file.lineAt(i);
+			for (int col = 0; col < line.length(); col++) {
+				assertEquals(line.path(), map.pathAt(offset + col));
+				assertEquals(line.lineNumber, map.lineAt(offset + col));
+			}
+			offset += line.length();
+		}
+	}
+}
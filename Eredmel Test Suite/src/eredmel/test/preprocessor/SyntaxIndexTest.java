@@ -0,0 +1,121 @@
+package eredmel.test.preprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eredmel.preprocessor.SyntaxIndex;
+import eredmel.regex.EnregexType;
+import eredmel.regex.SymbolPair;
+
+public class SyntaxIndexTest {
+	/**
+	 * A kind of enregex with a quote whose close is not escapable, and a
+	 * parenthesis whose open is
+	 */
+	private static final EnregexType CUSTOM = new EnregexType(
+			Arrays.asList(new SymbolPair('<', '>', true, false)),
+			Arrays.asList(new SymbolPair('"', '"', true, false)));
+	@Test
+	public void quoteTest() {
+		SyntaxIndex index = SyntaxIndex.of("a'b(\\'c'd)",
+				EnregexType.EREDMEL_STANDARD);
+		assertFalse(index.inQuote(1));
+		assertTrue(index.inQuote(2, '\''));
+		assertTrue(index.inQuote(6));
+		assertTrue(index.inQuote(7));
+		assertFalse(index.inQuote(8));
+		assertEquals(0, index.depth('(', 9));
+		assertEquals(-1, index.depth('(', 10));
+	}
+	@Test
+	public void typeTest() {
+		// the characters and escapes come from the type
+		SyntaxIndex index = SyntaxIndex.of("\\<<(\"a\\\"b", CUSTOM);
+		assertEquals(0, index.depth('<', 2));
+		assertEquals(1, index.depth('<', 3));
+		assertEquals(1, index.depth('<', 4));
+		assertFalse(index.inQuote(4));
+		assertTrue(index.inQuote(5, '"'));
+		// the close of the quote is not escapable, so the quote ends
+		assertFalse(index.inQuote(8));
+	}
+	@Test
+	public void editTest() {
+		Random random = new Random(0);
+		StringBuilder text = randomText(random, 20000);
+		SyntaxIndex index = SyntaxIndex.of(text.toString(),
+				EnregexType.EREDMEL_STANDARD);
+		for (int edit = 0; edit < 40; edit++) {
+			assertAgreesWithScan(index, text.toString(), random);
+			int start = random.nextInt(text.length()), end = start
+					+ random.nextInt(Math.min(500, text.length() - start));
+			text.replace(start, end, randomText(random, random.nextInt(500))
+					.toString());
+			index.edit(text.toString(), start);
+		}
+	}
+	@Test
+	public void rewriteTest() {
+		// rewritten from the front, as a rule rewrites a file, with the text
+		// given as the part finished with and the part left to match
+		Random random = new Random(1);
+		String rest = randomText(random, 20000).toString();
+		StringBuilder done = new StringBuilder();
+		SyntaxIndex index = SyntaxIndex.of(rest, EnregexType.EREDMEL_STANDARD);
+		while (rest.length() > 500) {
+			int start = random.nextInt(500), end = start
+					+ random.nextInt(100);
+			done.append(rest, 0, start);
+			rest = randomText(random, random.nextInt(100))
+					+ rest.substring(end);
+			index.edit(done.toString(), rest, done.length());
+			if (random.nextInt(10) == 0)
+				assertAgreesWithScan(index, done + rest, random);
+		}
+		assertAgreesWithScan(index, done + rest, random);
+	}
+	private static StringBuilder randomText(Random random, int length) {
+		String alphabet = "ab'\\()[]\n";
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < length; i++)
+			text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		return text;
+	}
+	private static void assertAgreesWithScan(SyntaxIndex index, String text,
+			Random random) {
+		assertEquals(text.length(), index.length());
+		int[] depth = new int[text.length() + 1];
+		boolean[] quoted = new boolean[text.length() + 1];
+		boolean inQuote = false, escape = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			boolean wasQuoted = inQuote;
+			if (c == '\'' && !escape) inQuote = !inQuote;
+			depth[i + 1] = depth[i];
+			if (!wasQuoted && !inQuote) {
+				if (c == '(') depth[i + 1]++;
+				if (c == ')') depth[i + 1]--;
+			}
+			quoted[i + 1] = inQuote;
+			escape = !escape && c == '\\';
+		}
+		for (int i = 0; i <= text.length(); i++) {
+			assertEquals(quoted[i], index.inQuote(i));
+			assertEquals(depth[i], index.depth('(', i));
+		}
+		for (int check = 0; check < 200; check++) {
+			int start = random.nextInt(text.length() + 1);
+			int end = start + random.nextInt(text.length() + 1 - start);
+			boolean balanced = depth[end] == depth[start];
+			for (int i = start; i <= end; i++)
+				balanced &= depth[i] >= depth[start];
+			assertEquals(balanced, index.balanced('(', start, end));
+		}
+	}
+}
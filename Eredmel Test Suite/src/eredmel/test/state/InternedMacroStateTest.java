@@ -0,0 +1,57 @@
+package eredmel.test.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eredmel.state.InternedMacroState;
+
+public class InternedMacroStateTest {
+	@Test
+	public void defineTest() {
+		InternedMacroState state = new InternedMacroState();
+		assertFalse(state.isDefined("x"));
+		assertEquals(-1, state.idOf("x"));
+		int x = state.define("x", "1");
+		int y = state.define("y", "2");
+		assertEquals(0, x);
+		assertEquals(1, y);
+		assertEquals("1", state.valueOf(state.idOf("x")));
+		assertEquals("2", state.valueOf(state.idOf("y")));
+		assertEquals("Redefinition keeps the id", x, state.define("x", "3"));
+		assertEquals("3", state.valueOf(x));
+		assertEquals(2, state.size());
+	}
+	@Test
+	public void growthTest() {
+		InternedMacroState state = new InternedMacroState(0);
+		for (int i = 0; i < 100000; i++)
+			assertEquals(i, state.define("macro" + i, Integer.toString(i)));
+		for (int i = 0; i < 100000; i++)
+			assertEquals(Integer.toString(i),
+					state.valueOf(state.idOf("macro" + i)));
+		assertFalse(state.isDefined("macro100000"));
+	}
+	@Test
+	public void bulkTest() {
+		String[] names = new String[1000], values = new String[1000];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "m" + i;
+			values[i] = "v" + i;
+		}
+		InternedMacroState state = new InternedMacroState();
+		state.defineAll(names, values);
+		for (int i = 0; i < names.length; i++) {
+			assertTrue(state.isDefined(names[i]));
+			assertEquals(names[i], state.nameOf(i));
+			assertEquals(values[i], state.valueOf(i));
+		}
+	}
+	@Test(
+			expected = IllegalArgumentException.class)
+	public void undefinedIdTest() {
+		new InternedMacroState().valueOf(0);
+	}
+}
@@ -0,0 +1,62 @@
+package eredmel.test.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import eredmel.state.InternedMacroState;
+import eredmel.state.MappedMacroState;
+
+public class MappedMacroStateTest {
+	@Test
+	public void roundTripTest() throws IOException {
+		InternedMacroState state = new InternedMacroState();
+		for (int i = 0; i < 10000; i++)
+			state.define("macro" + i, "value " + i);
+		state.define("Aa", "a");
+		state.define("BB", "b");
+		state.define("", "empty name");
+		Path file = Files.createTempFile("macros", ".edmt");
+		try {
+			MappedMacroState.write(file, state);
+			MappedMacroState mapped = MappedMacroState.open(file);
+			assertEquals(state.size(), mapped.size());
+			for (int id = 0; id < state.size(); id++) {
+				assertEquals(id, mapped.idOf(state.nameOf(id)));
+				assertEquals(state.nameOf(id), mapped.nameOf(id));
+				assertEquals(state.valueOf(id), mapped.valueOf(id));
+			}
+			assertFalse(mapped.isDefined("macro10000"));
+		} finally {
+			Files.delete(file);
+		}
+	}
+	@Test(
+			expected = IllegalArgumentException.class)
+	public void duplicateTest() throws IOException {
+		Path file = Files.createTempFile("macros", ".edmt");
+		try {
+			MappedMacroState.write(file, new String[] { "a", "a" },
+					new String[] { "1", "2" });
+		} finally {
+			Files.delete(file);
+		}
+	}
+	@Test(
+			expected = IOException.class)
+	public void notATableTest() throws IOException {
+		Path file = Files.createTempFile("macros", ".edmt");
+		try {
+			Files.write(file, "not a macro table at all, but long enough"
+					.getBytes());
+			MappedMacroState.open(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package eredmel.test.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import eredmel.state.PersistentMacroState;
+
+public class PersistentMacroStateTest {
+	@Test
+	public void branchTest() {
+		PersistentMacroState base = PersistentMacroState.EMPTY.define("x", "1");
+		PersistentMacroState left = base.define("y", "left");
+		PersistentMacroState right = base.define("x", "2").define("z", "3");
+		assertFalse(base.isDefined("y"));
+		assertEquals("1", base.valueOf(base.idOf("x")));
+		assertEquals("left", left.valueOf(left.idOf("y")));
+		assertFalse(left.isDefined("z"));
+		assertEquals("2", right.valueOf(right.idOf("x")));
+		assertEquals("Redefinition keeps the id", base.idOf("x"),
+				right.idOf("x"));
+		assertEquals(1, base.size());
+		assertEquals(2, right.size());
+	}
+	@Test
+	public void collisionTest() {
+		// "Aa" and "BB" have the same String hash
+		PersistentMacroState state = PersistentMacroState.EMPTY.define("Aa",
+				"a").define("BB", "b");
+		assertEquals("a", state.valueOf(state.idOf("Aa")));
+		assertEquals("b", state.valueOf(state.idOf("BB")));
+		assertFalse(state.isDefined("C#"));
+	}
+	@Test
+	public void collidingNamesTest() {
+		// every name of four "Aa" or "BB" blocks has the same String hash
+		List<String> colliding = new ArrayList<>();
+		for (int i = 0; i < 16; i++) {
+			StringBuilder name = new StringBuilder();
+			for (int b = 0; b < 4; b++)
+				name.append((i >> b & 1) == 0 ? "Aa" : "BB");
+			colliding.add(name.toString());
+		}
+		PersistentMacroState state = PersistentMacroState.EMPTY;
+		for (int i = 0; i < 8; i++)
+			state = state.define(colliding.get(i), "c" + i);
+		PersistentMacroState before = state;
+		// names with other hashes reaching the collision split it
+		for (int i = 0; i < 5000; i++)
+			state = state.define("macro" + i, Integer.toString(i));
+		for (int i = 8; i < 16; i++)
+			state = state.define(colliding.get(i), "c" + i);
+		for (int i = 0; i < 16; i++) {
+			assertEquals("c" + i, state.valueOf(state.idOf(colliding.get(i))));
+			assertEquals(i < 8, before.isDefined(colliding.get(i)));
+		}
+		for (int i = 0; i < 5000; i++) {
+			assertEquals(8 + i, state.idOf("macro" + i));
+			assertFalse(before.isDefined("macro" + i));
+		}
+		assertEquals(5016, state.size());
+	}
+	@Test
+	public void largeTest() {
+		PersistentMacroState state = PersistentMacroState.EMPTY;
+		PersistentMacroState half = null;
+		for (int i = 0; i < 50000; i++) {
+			if (i == 25000) half = state;
+			state = state.define("macro" + i, Integer.toString(i));
+		}
+		for (int i = 0; i < 50000; i++) {
+			assertEquals(i, state.idOf("macro" + i));
+			assertEquals(Integer.toString(i), state.valueOf(i));
+			assertEquals(i < 25000, half.isDefined("macro" + i));
+		}
+		assertTrue(state.isDefined("macro49999"));
+	}
+}
@@ -0,0 +1,232 @@
+package eredmel.test.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import eredmel.state.SQLMacroState;
+
+public class SQLMacroStateTest {
+	@Test
+	public void batchTest() throws SQLException {
+		FakeDatabase db = new FakeDatabase();
+		try (SQLMacroState state = new SQLMacroState(db.connect(), 16, 3)) {
+			assertEquals(0, state.define("a", "1"));
+			assertEquals(1, state.define("b", "2"));
+			// buffered, but visible
+			assertEquals(0, db.batches);
+			assertTrue(db.names.isEmpty());
+			assertEquals("2", state.valueOf(state.idOf("b")));
+			assertEquals(2, state.define("c", "3"));
+			// the batch is full
+			assertEquals(2, db.batches);
+			assertEquals(3, db.names.size());
+			assertEquals("3", db.values.get(2));
+			state.define("a", "4");
+			assertEquals("1", db.values.get(0));
+			state.flush();
+			assertEquals("4", db.values.get(0));
+			assertEquals(0, (int) db.names.get("a"));
+			state.define("d", "5");
+		}
+		// closing flushed the last definition
+		assertEquals("5", db.values.get(3));
+		try (SQLMacroState state = new SQLMacroState(db.connect(), 16, 3)) {
+			assertEquals(4, state.size());
+			assertEquals(4, state.define("e", "6"));
+			assertEquals("4", state.valueOf(state.idOf("a")));
+		}
+	}
+	@Test
+	public void cacheTest() throws SQLException {
+		FakeDatabase db = new FakeDatabase();
+		try (SQLMacroState state = new SQLMacroState(db.connect(), 2, 100)) {
+			for (int i = 0; i < 5; i++)
+				state.define("m" + i, "v" + i);
+			// each new name was looked for in the database
+			assertEquals(5, db.queries);
+			db.queries = 0;
+			// evicted from the cache, but still pending
+			assertEquals(0, state.idOf("m0"));
+			assertEquals("v0", state.valueOf(0));
+			assertEquals(0, db.queries);
+			state.flush();
+			assertFalse(state.isDefined("undefined"));
+			assertEquals(1, db.queries);
+			// the undefined name is cached too
+			assertFalse(state.isDefined("undefined"));
+			assertEquals(1, db.queries);
+			assertEquals(1, state.idOf("m1"));
+			assertEquals("v1", state.valueOf(1));
+			assertEquals(3, db.queries);
+			assertEquals(1, state.idOf("m1"));
+			assertEquals("v1", state.valueOf(1));
+			assertEquals(3, db.queries);
+		}
+	}
+	@Test
+	public void failedFlushTest() throws SQLException {
+		FakeDatabase db = new FakeDatabase();
+		try (SQLMacroState state = new SQLMacroState(db.connect(), 16, 100)) {
+			state.define("a", "1");
+			state.define("b", "2");
+			db.failing = true;
+			try {
+				state.flush();
+				fail("The flush did not fail");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			assertEquals(1, db.rollbacks);
+			assertTrue(db.names.isEmpty());
+			// still buffered, and visible
+			assertEquals("2", state.valueOf(state.idOf("b")));
+			db.failing = false;
+			// written once, rather than again on top of the failed batch
+			state.flush();
+			assertEquals(2, db.names.size());
+			assertEquals("1", db.values.get(0));
+			assertEquals("2", db.values.get(1));
+		}
+	}
+	@Test
+	public void failedOpenTest() {
+		FakeDatabase db = new FakeDatabase();
+		db.failing = true;
+		try {
+			new SQLMacroState(db.connect(), 16, 3).close();
+			fail("The schema was created");
+		} catch (SQLException e) {
+			// expected
+		}
+		assertTrue(db.closed);
+	}
+	/**
+	 * Just enough of a database to run the statements of an
+	 * {@link SQLMacroState}, counting the batches and queries it runs. Names
+	 * are unique, and while it is failing, updates fail.
+	 */
+	private static final class FakeDatabase {
+		final Map<String, Integer> names = new HashMap<>();
+		final Map<Integer, String> values = new HashMap<>();
+		int batches = 0, queries = 0, rollbacks = 0;
+		boolean failing = false, closed = false;
+		Connection connect() {
+			return proxy(Connection.class, (method, args) -> {
+				switch (method) {
+				case "rollback":
+					rollbacks++;
+					return null;
+				case "close":
+					closed = true;
+					return null;
+				case "createStatement":
+					return proxy(Statement.class, (m, a) -> {
+						if (failing && m.startsWith("execute"))
+							throw new SQLException("The disk is full");
+						if (m.equals("executeQuery"))
+							return result(names.values().stream()
+									.max(Integer::compare).orElse(null), true);
+						return m.equals("executeUpdate") ? 0 : null;
+					});
+				case "prepareStatement":
+					return prepare((String) args[0]);
+				default:
+					return null;
+				}
+			});
+		}
+		private PreparedStatement prepare(String sql) {
+			Object[] params = new Object[3];
+			List<Object[]> batch = new ArrayList<>();
+			return proxy(PreparedStatement.class, (method, args) -> {
+				switch (method) {
+				case "setString":
+				case "setInt":
+					params[(int) args[0]] = args[1];
+					return null;
+				case "addBatch":
+					batch.add(params.clone());
+					return null;
+				case "clearBatch":
+					batch.clear();
+					return null;
+				case "executeBatch":
+					batches++;
+					if (failing) throw new SQLException("The disk is full");
+					Set<Object> unique = new HashSet<>(names.keySet());
+					for (Object[] row : batch)
+						if (sql.startsWith("INSERT INTO variable_names")
+								&& !unique.add(row[1]))
+							throw new SQLException("Duplicate name " + row[1]);
+					for (Object[] row : batch) {
+						if (sql.startsWith("INSERT INTO variable_names"))
+							names.put((String) row[1], (Integer) row[2]);
+						else if (sql.startsWith("INSERT"))
+							values.put((Integer) row[1], (String) row[2]);
+						else values.put((Integer) row[2], (String) row[1]);
+					}
+					batch.clear();
+					return new int[0];
+				case "executeQuery":
+					queries++;
+					if (sql.contains("FROM variable_names"))
+						return result(names.get(params[1]), false);
+					return result(values.get(params[1]), false);
+				default:
+					return null;
+				}
+			});
+		}
+		/**
+		 * @return a result of one row holding the given value, or of no rows
+		 *         if it is {@code null} and a row is not required, as it is
+		 *         for an aggregate
+		 */
+		private static ResultSet result(Object value, boolean row) {
+			boolean[] read = { false };
+			return proxy(ResultSet.class, (method, args) -> {
+				switch (method) {
+				case "next":
+					boolean next = !read[0] && (row || value != null);
+					read[0] = true;
+					return next;
+				case "getInt":
+					return value == null ? 0 : value;
+				case "getString":
+					return value;
+				case "wasNull":
+					return value == null;
+				default:
+					return null;
+				}
+			});
+		}
+		private interface Handler {
+			Object invoke(String method, Object[] args) throws SQLException;
+		}
+		private static <T> T proxy(Class<T> type, Handler handler) {
+			return type.cast(Proxy.newProxyInstance(
+					SQLMacroStateTest.class.getClassLoader(),
+					new Class<?>[] { type },
+					(proxy, method, args) -> handler.invoke(method.getName(),
+							args)));
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package eredmel.test.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import eredmel.state.SlotHandleState;
+
+public class SlotHandleStateTest {
+	@Test
+	public void allocateReleaseTest() {
+		SlotHandleState state = new SlotHandleState();
+		int a = state.allocate("a"), b = state.allocate("b");
+		assertEquals("a", state.<String> handleBy(a));
+		assertEquals("b", state.handleBy(b, String.class));
+		assertEquals("a", state.release(a));
+		assertFalse(state.isLive(a));
+		int c = state.allocate("c");
+		assertEquals("Slot is reused", a & (SlotHandleState.MAX_SLOTS - 1),
+				c & (SlotHandleState.MAX_SLOTS - 1));
+		assertTrue("Generation differs", a != c);
+		assertEquals("c", state.<String> handleBy(c));
+		assertEquals(2, state.size());
+		assertEquals(1, state.occupancy(), 0);
+	}
+	@Test(
+			expected = IllegalArgumentException.class)
+	public void staleHandleTest() {
+		SlotHandleState state = new SlotHandleState();
+		int a = state.allocate("a");
+		state.release(a);
+		state.allocate("b");
+		state.handleBy(a);
+	}
+	@Test
+	public void fragmentationTest() {
+		SlotHandleState state = new SlotHandleState();
+		List<Integer> handles = new ArrayList<>();
+		for (int i = 0; i < 4000; i++)
+			handles.add(state.allocate(i));
+		for (int i = 0; i < 4000; i += 2)
+			state.release(handles.get(i));
+		assertEquals(.5, state.occupancy(), 1e-9);
+		assertEquals(.5, state.fragmentation(), 1e-9);
+	}
+	@Test
+	public void concurrentTest() throws InterruptedException {
+		SlotHandleState state = new SlotHandleState();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 20000; i++) {
+					Integer value = i;
+					int handle = state.allocate(value);
+					if (state.<Integer> handleBy(handle) != value)
+						throw new AssertionError();
+					state.release(handle);
+				}
+			});
+			threads[t].setUncaughtExceptionHandler((th, e) -> failure.set(e));
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		if (failure.get() != null) throw new AssertionError(failure.get());
+		assertEquals(0, state.size());
+		// a slot is only unavailable while it is live or being released
+		assertTrue(state.slotsUsed() <= 2 * threads.length);
+	}
+}
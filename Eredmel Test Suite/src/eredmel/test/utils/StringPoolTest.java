@@ -0,0 +1,88 @@
+package eredmel.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import eredmel.utils.string.StringPool;
+
+public class StringPoolTest {
+	@Test
+	public void statisticsTest() {
+		StringPool pool = new StringPool();
+		String first = new String("line");
+		assertSame(first, pool.intern(first));
+		assertSame(first, pool.intern(new String("line")));
+		// the pooled instance itself is not counted
+		assertSame(first, pool.intern(first));
+		assertSame("other", pool.intern("other"));
+		assertEquals(3, pool.lookups());
+		assertEquals(1, pool.hits());
+		assertEquals(1.0 / 3, pool.hitRate(), 1e-9);
+		assertEquals(2, pool.size());
+		String copy = new String("line");
+		assertSame(copy, StringPool.NONE.intern(copy));
+		assertEquals(0, StringPool.NONE.lookups());
+		assertEquals(0, new StringPool().hitRate(), 0);
+	}
+	@Test
+	public void weakTest() throws InterruptedException {
+		StringPool pool = new StringPool();
+		List<String> kept = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			String string = pool.intern(new String("line " + i));
+			if (i % 10 == 0) kept.add(string);
+		}
+		assertEquals(1000, pool.size());
+		for (int i = 0; i < 100 && pool.size() > kept.size(); i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(kept.size(), pool.size());
+		// the strings still referenced are still pooled
+		for (String string : kept)
+			assertSame(string, pool.intern(new String(string)));
+		// and a collected one is pooled again
+		String again = new String("line 1");
+		assertSame(again, pool.intern(again));
+	}
+	@Test
+	public void concurrentTest() throws InterruptedException,
+			ExecutionException {
+		StringPool pool = new StringPool();
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String[]>> results = new ArrayList<>();
+			for (int t = 0; t < 8; t++)
+				results.add(threads.submit(() -> {
+					String[] interned = new String[500];
+					for (int i = 0; i < interned.length; i++)
+						interned[i] = pool.intern(new String("line " + i));
+					return interned;
+				}));
+			String[] first = results.get(0).get();
+			for (Future<String[]> result : results) {
+				String[] interned = result.get();
+				for (int i = 0; i < interned.length; i++) {
+					assertEquals("line " + i, interned[i]);
+					assertSame(first[i], interned[i]);
+				}
+			}
+			assertEquals(500, pool.size());
+			assertEquals(8 * 500, pool.lookups());
+			assertEquals(7 * 500, pool.hits());
+			assertTrue(pool.hitRate() > 0.8);
+		} finally {
+			threads.shutdown();
+		}
+	}
+}
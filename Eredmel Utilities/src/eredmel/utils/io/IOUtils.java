@@ -1,5 +1,8 @@
 package eredmel.utils.io;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
@@ -35,4 +38,41 @@ public class IOUtils {
 		paths.remove(paths.size() - 1);
 		return resolved;
 	}
+	/**
+	 * Writes an int in 7-bit groups, low group first, so that small values
+	 * take a single byte
+	 * 
+	 * @param out
+	 *        the output to write to
+	 * @param value
+	 *        the value, which is treated as unsigned
+	 * @throws IOException
+	 *         if the output cannot be written to
+	 */
+	public static void writeVarint(DataOutput out, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte(value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+	/**
+	 * Reads an int written by {@link #writeVarint(DataOutput, int)}
+	 * 
+	 * @param in
+	 *        the input to read from
+	 * @return the value
+	 * @throws IOException
+	 *         if the input cannot be read from, or does not hold a varint
+	 */
+	public static int readVarint(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) return value;
+		}
+		throw new IOException("Malformed varint");
+	}
 }
@@ -0,0 +1,72 @@
+package eredmel.utils.string;
+
+/**
+ * A view of a {@link ChunkedCharSequence} for scanning, which copies the
+ * region around the last index read out of its chunk, so that reading nearby
+ * indices is an array access rather than a lookup in the sequence.
+ *
+ * A cursor holds mutable state, so it must not be shared between threads.
+ *
+ * @author Kavi Gupta
+ */
+public final class ChunkCursor implements CharSequence {
+	/**
+	 * The most characters copied out of a chunk at once
+	 */
+	private static final int WINDOW = 1 << 12;
+	private final ChunkedCharSequence text;
+	private final char[] window;
+	/**
+	 * The region of {@link #text} currently in {@link #window}
+	 */
+	private int start = 0, end = 0;
+	private ChunkCursor(ChunkedCharSequence text) {
+		this.text = text;
+		// no longer than the text, as many texts scanned are single lines
+		this.window = new char[Math.min(WINDOW, text.length())];
+	}
+	/**
+	 * Gets a sequence for scanning the given text
+	 *
+	 * @param text
+	 *        the text to scan
+	 * @return a cursor over the text if it is chunked, or the text itself
+	 *         otherwise
+	 */
+	public static CharSequence of(CharSequence text) {
+		if (text instanceof ChunkedCharSequence)
+			return new ChunkCursor((ChunkedCharSequence) text);
+		return text;
+	}
+	@Override
+	public char charAt(int index) {
+		if (index < start || index >= end) load(index);
+		return window[index - start];
+	}
+	/**
+	 * Copies the part of the chunk containing the index into the window,
+	 * starting a little before the index so that short backward steps stay in
+	 * the window
+	 */
+	private void load(int index) {
+		if (index < 0 || index >= text.length())
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		int chunkStart = text.chunkStart(index), chunkEnd = text
+				.chunkEnd(index);
+		start = Math.max(chunkStart, index - window.length / 8);
+		end = Math.min(chunkEnd, start + window.length);
+		text.getChars(start, end, window, 0);
+	}
+	@Override
+	public int length() {
+		return text.length();
+	}
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return text.subSequence(start, end);
+	}
+	@Override
+	public String toString() {
+		return text.toString();
+	}
+}
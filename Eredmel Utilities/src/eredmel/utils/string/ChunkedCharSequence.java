@@ -0,0 +1,44 @@
+package eredmel.utils.string;
+
+/**
+ * A {@code CharSequence} stored as a series of contiguous chunks, such as the
+ * lines of a file, which allows its text to be read a chunk at a time rather
+ * than through {@link #charAt(int)}.
+ *
+ * To scan one, use a {@link ChunkCursor}, which reads chunks in bulk and falls
+ * back to {@code charAt} for plain sequences.
+ *
+ * @author Kavi Gupta
+ */
+public interface ChunkedCharSequence extends CharSequence {
+	/**
+	 * @param index
+	 *        an index in this sequence
+	 * @return the start of the chunk containing the index, inclusive
+	 */
+	int chunkStart(int index);
+	/**
+	 * @param index
+	 *        an index in this sequence
+	 * @return the end of the chunk containing the index, exclusive
+	 */
+	int chunkEnd(int index);
+	/**
+	 * Copies characters out of this sequence, as {@link String#getChars} does.
+	 * Copying a region within a single chunk should take time proportional to
+	 * its length.
+	 *
+	 * @param start
+	 *        the start of the region to copy, inclusive
+	 * @param end
+	 *        the end of the region to copy, exclusive
+	 * @param dst
+	 *        the array to copy into
+	 * @param dstBegin
+	 *        the index in {@code dst} to copy to
+	 */
+	default void getChars(int start, int end, char[] dst, int dstBegin) {
+		for (int i = start; i < end; i++)
+			dst[dstBegin++] = charAt(i);
+	}
+}
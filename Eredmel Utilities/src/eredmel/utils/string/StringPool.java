@@ -0,0 +1,132 @@
+package eredmel.utils.string;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of canonical strings, like {@link String#intern()}, but which can be
+ * shared by many threads and does not keep its strings alive.
+ *
+ * Each string is held by a weak reference, which is cleared once no one else
+ * refers to the string, and its entry removed the next time the pool is
+ * used. The pool counts how many strings it has been asked to intern, and how
+ * many of those were replaced by an equal string already in the pool. A
+ * string which is itself the pooled instance is returned without being
+ * counted, so interning a string twice does not count as a hit.
+ *
+ * @author Kavi Gupta
+ */
+public final class StringPool {
+	/**
+	 * A pool which interns nothing, returning every string as it is given
+	 */
+	public static final StringPool NONE = new StringPool(false);
+	private final boolean enabled;
+	private final ConcurrentHashMap<Ref, Ref> pool = new ConcurrentHashMap<>();
+	private final ReferenceQueue<String> cleared = new ReferenceQueue<>();
+	private final LongAdder lookups = new LongAdder(), hits = new LongAdder();
+	private StringPool(boolean enabled) {
+		this.enabled = enabled;
+	}
+	/**
+	 * Creates an empty pool
+	 */
+	public StringPool() {
+		this(true);
+	}
+	/**
+	 * Gets the canonical instance of the given string
+	 *
+	 * @param string
+	 *        the string to intern
+	 * @return an equal string in the pool, or {@code string} itself, which is
+	 *         added to the pool, if there is none
+	 */
+	public String intern(String string) {
+		if (!enabled) return string;
+		expunge();
+		Ref probe = new Ref(string, null);
+		while (true) {
+			Ref found = pool.get(probe);
+			String pooled = found == null ? null : found.get();
+			if (pooled == string) return string;
+			if (pooled != null) {
+				lookups.increment();
+				hits.increment();
+				return pooled;
+			}
+			if (found != null) {
+				// cleared, but not yet expunged
+				pool.remove(found, found);
+				continue;
+			}
+			Ref ref = new Ref(string, cleared);
+			if (pool.putIfAbsent(ref, ref) == null) {
+				lookups.increment();
+				return string;
+			}
+		}
+	}
+	/**
+	 * @return the number of strings interned, not counting those which were
+	 *         already the pooled instance
+	 */
+	public long lookups() {
+		return lookups.sum();
+	}
+	/**
+	 * @return the number of strings interned which were replaced by an equal
+	 *         string in the pool
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+	/**
+	 * @return the fraction of lookups which were hits, or {@code 0} if there
+	 *         have been none
+	 */
+	public double hitRate() {
+		long lookups = lookups();
+		return lookups == 0 ? 0 : (double) hits() / lookups;
+	}
+	/**
+	 * @return the number of strings in the pool, including some which may no
+	 *         longer be referenced elsewhere
+	 */
+	public int size() {
+		expunge();
+		return pool.size();
+	}
+	/**
+	 * Removes the entries of strings which have been collected
+	 */
+	private void expunge() {
+		Object ref;
+		while ((ref = cleared.poll()) != null)
+			pool.remove(ref, ref);
+	}
+	/**
+	 * A weak reference to a string, which is equal to a reference to an equal
+	 * string. A cleared reference is only equal to itself.
+	 */
+	private static final class Ref extends WeakReference<String> {
+		private final int hash;
+		Ref(String string, ReferenceQueue<String> queue) {
+			super(string, queue);
+			this.hash = string.hashCode();
+		}
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Ref)) return false;
+			String string = get();
+			return string != null && string.equals(((Ref) obj).get());
+		}
+	}
+}
@@ -5,7 +5,7 @@ import java.util.Arrays;
 public class StringUtils {
 	public static String repeat(char c, int nRepeats) {
 		char[] repeated = new char[nRepeats];
-		Arrays.fill(repeated, '\t');
+		Arrays.fill(repeated, c);
 		return new String(repeated);
 	}
 }
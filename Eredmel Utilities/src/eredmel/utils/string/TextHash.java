@@ -0,0 +1,176 @@
+package eredmel.utils.string;
+
+import java.security.SecureRandom;
+
+/**
+ * Polynomial hashes of text, modulo the Mersenne prime {@code 2^61 - 1}.
+ *
+ * The hash of {@code s} is {@code sum(s[i] * B^(n - 1 - i))}, so the hash of a
+ * concatenation can be computed from the hashes of its parts, and the hash of
+ * a suffix from the hashes of the whole and of the prefix. This allows the
+ * hash of a text to be maintained as it is rewritten, in time proportional to
+ * the size of the rewrite rather than of the text.
+ *
+ * A prime modulus is used since polynomial hashes modulo {@code 2^64} collide
+ * on easily constructed inputs, such as the Thue-Morse strings, whatever the
+ * base. The base is drawn at random when this class is loaded, so two
+ * different texts of length at most {@code n} have the same hash with a
+ * probability of at most about {@code n * 2^-61}, as their difference is a
+ * polynomial of degree at most {@code n - 1} in the base. Hashes are therefore
+ * only comparable within a run.
+ *
+ * @author Kavi Gupta
+ */
+public final class TextHash {
+	private static final long MOD = (1L << 61) - 1;
+	private static final long BASE = randomBase();
+	/**
+	 * The longest region copied out of a chunked sequence at once
+	 */
+	private static final int BUFFER_SIZE = 1 << 8;
+	/**
+	 * The hash of the empty text
+	 */
+	public static final long EMPTY = 0;
+	private TextHash() {}
+	/**
+	 * @param text
+	 *        the text to hash
+	 * @return the hash of the text
+	 */
+	public static long of(CharSequence text) {
+		return of(text, 0, text.length());
+	}
+	/**
+	 * @param text
+	 *        the text containing the region to hash
+	 * @param start
+	 *        the start of the region, inclusive
+	 * @param end
+	 *        the end of the region, exclusive
+	 * @return the hash of the region
+	 */
+	public static long of(CharSequence text, int start, int end) {
+		long hash = EMPTY;
+		if (!(text instanceof ChunkedCharSequence)) {
+			for (int i = start; i < end; i++)
+				hash = append(hash, text.charAt(i));
+			return hash;
+		}
+		// copied out a chunk at a time, into a buffer no longer than the
+		// region, as most regions hashed are single lines
+		ChunkedCharSequence chunked = (ChunkedCharSequence) text;
+		char[] buffer = new char[Math.min(BUFFER_SIZE, end - start)];
+		for (int i = start; i < end;) {
+			int copied = Math.min(Math.min(end, chunked.chunkEnd(i)), i
+					+ buffer.length);
+			chunked.getChars(i, copied, buffer, 0);
+			for (int j = 0; j < copied - i; j++)
+				hash = append(hash, buffer[j]);
+			i = copied;
+		}
+		return hash;
+	}
+	/**
+	 * @param hash
+	 *        the hash of a text
+	 * @param c
+	 *        a character
+	 * @return the hash of the text followed by the character
+	 */
+	public static long append(long hash, char c) {
+		return reduce(multiply(hash, BASE) + c);
+	}
+	/**
+	 * @param prefix
+	 *        the hash of the first text
+	 * @param suffix
+	 *        the hash of the second text
+	 * @param suffixLength
+	 *        the length of the second text
+	 * @return the hash of the concatenation of the texts
+	 */
+	public static long concat(long prefix, long suffix, int suffixLength) {
+		return concatByPower(prefix, suffix, power(suffixLength));
+	}
+	/**
+	 * Concatenates hashes as {@link #concat(long, long, int)} does, given the
+	 * power of the base for the length of the suffix rather than the length,
+	 * so that a structure storing the powers of its parts need not recompute
+	 * them
+	 *
+	 * @param prefix
+	 *        the hash of the first text
+	 * @param suffix
+	 *        the hash of the second text
+	 * @param suffixPower
+	 *        {@code power(n)}, where {@code n} is the length of the second
+	 *        text
+	 * @return the hash of the concatenation of the texts
+	 */
+	public static long concatByPower(long prefix, long suffix,
+			long suffixPower) {
+		return reduce(multiply(prefix, suffixPower) + suffix);
+	}
+	/**
+	 * @param whole
+	 *        the hash of a text
+	 * @param prefix
+	 *        the hash of a prefix of that text
+	 * @param suffixLength
+	 *        the length of the rest of the text
+	 * @return the hash of the rest of the text
+	 */
+	public static long removePrefix(long whole, long prefix, int suffixLength) {
+		return reduce(whole + MOD - multiply(prefix, power(suffixLength)));
+	}
+	/**
+	 * @return {@code B^n}, where {@code B} is the base of the hash
+	 */
+	public static long power(int n) {
+		long result = 1, square = BASE;
+		for (; n > 0; n >>>= 1) {
+			if ((n & 1) != 0) result = multiply(result, square);
+			square = multiply(square, square);
+		}
+		return result;
+	}
+	/**
+	 * Multiplies two residues, splitting them into 31- and 30-bit halves so
+	 * that no partial product overflows. The product of {@code power(m)} and
+	 * {@code power(n)} is {@code power(m + n)}.
+	 *
+	 * @param a
+	 *        a residue, such as a hash or a power of the base
+	 * @param b
+	 *        another residue
+	 * @return the product of the residues
+	 */
+	public static long multiply(long a, long b) {
+		long aHigh = a >>> 31, aLow = a & 0x7FFFFFFFL;
+		long bHigh = b >>> 31, bLow = b & 0x7FFFFFFFL;
+		long mid = aLow * bHigh + aHigh * bLow;
+		// 2^62 = 2 and 2^61 = 1 modulo 2^61 - 1
+		return reduce(aHigh * bHigh * 2 + (mid >>> 30)
+				+ ((mid & 0x3FFFFFFFL) << 31) + aLow * bLow);
+	}
+	/**
+	 * @return a base chosen uniformly from the residues other than {@code 0}
+	 *         and {@code 1}
+	 */
+	private static long randomBase() {
+		SecureRandom random = new SecureRandom();
+		long base;
+		do
+			base = random.nextLong() & MOD;
+		while (base < 2 || base == MOD);
+		return base;
+	}
+	/**
+	 * Reduces a value, read as unsigned, to a residue
+	 */
+	private static long reduce(long x) {
+		x = (x >>> 61) + (x & MOD);
+		return x >= MOD ? x - MOD : x;
+	}
+}